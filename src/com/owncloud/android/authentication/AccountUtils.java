@@ -74,6 +74,24 @@ public class AccountUtils {
     }
 
     
+    /**
+     * @param   context     The current application {@link Context}
+     * @param   accountName Name of the ownCloud {@link Account} to find.
+     * @return              The ownCloud {@link Account} with the given name, or null if it's not registered in the 
+     *                      system anymore.
+     */
+    public static Account getOwnCloudAccountByName(Context context, String accountName) {
+        Account[] ocAccounts = AccountManager.get(context).getAccountsByType(
+                AccountAuthenticator.ACCOUNT_TYPE);
+        for (Account account : ocAccounts) {
+            if (account.name.equals(accountName)) {
+                return account;
+            }
+        }
+        return null;
+    }
+
+    
 
     /**
      * Checks, whether or not there are any ownCloud accounts setup.
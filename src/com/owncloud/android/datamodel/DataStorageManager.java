@@ -43,6 +43,8 @@ public interface DataStorageManager {
     public void saveFiles(List<OCFile> files);
 
     public Vector<OCFile> getDirectoryContent(OCFile f);
+
+    public DirectoryListing getDirectoryListing(OCFile folder);
     
     public void removeFile(OCFile file, boolean removeLocalCopy);
     
@@ -51,7 +53,11 @@ public interface DataStorageManager {
     public void moveDirectory(OCFile dir, String newPath);
 
     public Vector<OCFile> getDirectoryImages(OCFile mParentFolder);
+
+    public Vector<OCFile> getKeptInSyncFiles(OCFile folder);
     
     public void calculateFolderSize(long id);
+
+    public void updateEtag(long id, String etag);
     
 }
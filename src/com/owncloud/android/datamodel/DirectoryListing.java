@@ -0,0 +1,327 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.io.File;
+import java.util.Vector;
+
+import android.database.Cursor;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.utils.FileStorageUtils;
+
+/**
+ * Compact, read-only contents of a folder in the database.
+ *
+ * The properties of the files are kept in parallel arrays, one per property, instead of an {@link OCFile} per file:
+ * numeric properties in arrays of primitives, names relative to the path of the folder instead of full remote paths,
+ * and a single instance of every MIME type. A folder with thousands of files takes a fraction of the memory of the
+ * equivalent list of {@link OCFile}, and is read with no locks.
+ *
+ * Files are sorted in the same order than {@link OCFile#compareTo(OCFile)}: folders first, then by name ignoring
+ * case. {@link #getFile(int)} builds a new {@link OCFile} for a position when one is needed.
+ */
+public class DirectoryListing {
+
+    private static final String DIRECTORY_MIMETYPE = "DIR";
+
+    private final String mFolderPath;
+    private final long mFolderId;
+    private final int mSize;
+
+    private final long[] mIds;
+    private final long[] mLengths;
+    private final long[] mCreationTimestamps;
+    private final long[] mModificationTimestamps;
+    private final long[] mModificationTimestampsAtLastSyncForData;
+    private final long[] mLastSyncDatesForProperties;
+    private final long[] mLastSyncDatesForData;
+    private final boolean[] mKeepInSync;
+
+    /** Names relative to {@link #mFolderPath}, with a trailing separator for folders */
+    private final String[] mNames;
+    private final String[] mMimeTypes;
+    private final String[] mStoragePaths;
+    private final String[] mEtags;
+    private final String[] mChecksums;
+
+
+    private DirectoryListing(String folderPath, long folderId, int size) {
+        mFolderPath = folderPath;
+        mFolderId = folderId;
+        mSize = size;
+        mIds = new long[size];
+        mLengths = new long[size];
+        mCreationTimestamps = new long[size];
+        mModificationTimestamps = new long[size];
+        mModificationTimestampsAtLastSyncForData = new long[size];
+        mLastSyncDatesForProperties = new long[size];
+        mLastSyncDatesForData = new long[size];
+        mKeepInSync = new boolean[size];
+        mNames = new String[size];
+        mMimeTypes = new String[size];
+        mStoragePaths = new String[size];
+        mEtags = new String[size];
+        mChecksums = new String[size];
+    }
+
+
+    /**
+     * Reads the contents of a folder from a cursor over the files table.
+     *
+     * @param folder        Folder whose contents are in 'c'.
+     * @param c             Cursor over all the columns of the children of 'folder'; not closed.
+     * @param accountName   Name of the account owning the files, to find local copies in the default location.
+     * @return              New listing with all the rows in 'c'.
+     */
+    static DirectoryListing fromCursor(OCFile folder, Cursor c, String accountName) {
+        String folderPath = folder.getRemotePath();
+        if (!folderPath.endsWith(OCFile.PATH_SEPARATOR)) {
+            folderPath += OCFile.PATH_SEPARATOR;
+        }
+        DirectoryListing read = new DirectoryListing(folderPath, folder.getFileId(), c.getCount());
+        int idIndex = c.getColumnIndex(ProviderTableMeta._ID);
+        int pathIndex = c.getColumnIndex(ProviderTableMeta.FILE_PATH);
+        int lengthIndex = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH);
+        int creationIndex = c.getColumnIndex(ProviderTableMeta.FILE_CREATION);
+        int modifiedIndex = c.getColumnIndex(ProviderTableMeta.FILE_MODIFIED);
+        int modifiedAtLastSyncIndex = c.getColumnIndex(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA);
+        int lastSyncIndex = c.getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE);
+        int lastSyncForDataIndex = c.getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA);
+        int keepInSyncIndex = c.getColumnIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC);
+        int mimeTypeIndex = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE);
+        int storagePathIndex = c.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH);
+        int etagIndex = c.getColumnIndex(ProviderTableMeta.FILE_ETAG);
+        int checksumIndex = c.getColumnIndex(ProviderTableMeta.FILE_CHECKSUM);
+        String defaultSavePath = FileStorageUtils.getSavePath(accountName);
+
+        int i = 0;
+        while (i < read.mSize && c.moveToNext()) {
+            read.mIds[i] = c.getLong(idIndex);
+            String remotePath = c.getString(pathIndex);
+            // copied, so that the full path is not retained by the substring 
+            read.mNames[i] = remotePath.startsWith(folderPath) ? new String(remotePath.substring(folderPath.length())) : remotePath;
+            read.mLengths[i] = c.getLong(lengthIndex);
+            read.mCreationTimestamps[i] = c.getLong(creationIndex);
+            read.mModificationTimestamps[i] = c.getLong(modifiedIndex);
+            read.mModificationTimestampsAtLastSyncForData[i] = c.getLong(modifiedAtLastSyncIndex);
+            read.mLastSyncDatesForProperties[i] = c.getLong(lastSyncIndex);
+            read.mLastSyncDatesForData[i] = c.getLong(lastSyncForDataIndex);
+            read.mKeepInSync[i] = (c.getInt(keepInSyncIndex) == 1);
+            String mimeType = c.getString(mimeTypeIndex);
+            read.mMimeTypes[i] = (mimeType != null) ? mimeType.intern() : null;     // a few different values
+            read.mEtags[i] = c.getString(etagIndex);
+            read.mChecksums[i] = c.getString(checksumIndex);
+            if (!DIRECTORY_MIMETYPE.equals(mimeType)) {
+                read.mStoragePaths[i] = c.getString(storagePathIndex);
+                if (read.mStoragePaths[i] == null) {
+                    // same as FileDataStorageManager#createFileInstance : bind the local copy in the default location, if any
+                    File f = new File(defaultSavePath + remotePath);
+                    if (f.exists()) {
+                        read.mStoragePaths[i] = f.getAbsolutePath();
+                        read.mLastSyncDatesForData[i] = f.lastModified();
+                    }
+                }
+            }
+            i++;
+        }
+        return read.sorted(i);
+    }
+
+
+    /**
+     * @param count     Number of positions filled.
+     * @return          Listing with the first 'count' files of this one, in the order of {@link OCFile#compareTo(OCFile)}.
+     */
+    private DirectoryListing sorted(int count) {
+        String[] keys = new String[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = mNames[i].toLowerCase();
+            order[i] = i;
+        }
+        mergeSort(order, new int[count], 0, count, keys);
+
+        DirectoryListing sorted = new DirectoryListing(mFolderPath, mFolderId, count);
+        for (int i = 0; i < count; i++) {
+            int from = order[i];
+            sorted.mIds[i] = mIds[from];
+            sorted.mLengths[i] = mLengths[from];
+            sorted.mCreationTimestamps[i] = mCreationTimestamps[from];
+            sorted.mModificationTimestamps[i] = mModificationTimestamps[from];
+            sorted.mModificationTimestampsAtLastSyncForData[i] = mModificationTimestampsAtLastSyncForData[from];
+            sorted.mLastSyncDatesForProperties[i] = mLastSyncDatesForProperties[from];
+            sorted.mLastSyncDatesForData[i] = mLastSyncDatesForData[from];
+            sorted.mKeepInSync[i] = mKeepInSync[from];
+            sorted.mNames[i] = mNames[from];
+            sorted.mMimeTypes[i] = mMimeTypes[from];
+            sorted.mStoragePaths[i] = mStoragePaths[from];
+            sorted.mEtags[i] = mEtags[from];
+            sorted.mChecksums[i] = mChecksums[from];
+        }
+        return sorted;
+    }
+
+
+    /**
+     * Sorts a range of positions in the order of {@link OCFile#compareTo(OCFile)}, with no boxing.
+     * 
+     * @param order     Positions to sort.
+     * @param buffer    Working space, as long as 'order'.
+     * @param from      First position in the range, included.
+     * @param to        Last position in the range, excluded.
+     * @param keys      Names of the files in lower case, by position.
+     */
+    private void mergeSort(int[] order, int[] buffer, int from, int to, String[] keys) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle, keys);
+        mergeSort(order, buffer, middle, to, keys);
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from, right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compare(buffer[left], buffer[right], keys) <= 0)) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    private int compare(int a, int b, String[] keys) {
+        boolean aDir = isDirectory(a), bDir = isDirectory(b);
+        if (aDir != bDir) {
+            return aDir ? -1 : 1;
+        }
+        return keys[a].compareTo(keys[b]);
+    }
+
+
+    /**
+     * @return      Remote path of the folder, ending with {@link OCFile#PATH_SEPARATOR}.
+     */
+    public String getFolderPath() {
+        return mFolderPath;
+    }
+
+    public long getFolderId() {
+        return mFolderId;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public long getFileId(int position) {
+        return mIds[position];
+    }
+
+    public String getRemotePath(int position) {
+        return mFolderPath + mNames[position];
+    }
+
+    public String getFileName(int position) {
+        String name = mNames[position];
+        return name.endsWith(OCFile.PATH_SEPARATOR) ? name.substring(0, name.length() - 1) : name;
+    }
+
+    public String getMimetype(int position) {
+        return mMimeTypes[position];
+    }
+
+    public boolean isDirectory(int position) {
+        return DIRECTORY_MIMETYPE.equals(mMimeTypes[position]);
+    }
+
+    public long getFileLength(int position) {
+        return mLengths[position];
+    }
+
+    public long getModificationTimestamp(int position) {
+        return mModificationTimestamps[position];
+    }
+
+    public long getLastSyncDateForProperties(int position) {
+        return mLastSyncDatesForProperties[position];
+    }
+
+    public boolean keepInSync(int position) {
+        return mKeepInSync[position];
+    }
+
+    /**
+     * @return      'true' if the file in the position has a local copy; see {@link OCFile#isDown()}.
+     */
+    public boolean isDown(int position) {
+        String storagePath = mStoragePaths[position];
+        return (storagePath != null && storagePath.length() > 0 && new File(storagePath).exists());
+    }
+
+    /**
+     * @return      Position of the file with the given id, or -1 if it's not in the folder.
+     */
+    public int indexOf(long id) {
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return      New {@link OCFile} with the properties of the file in the position.
+     */
+    public OCFile getFile(int position) {
+        OCFile file = new OCFile(getRemotePath(position));
+        file.setFileId(mIds[position]);
+        file.setParentId(mFolderId);
+        file.setFileLength(mLengths[position]);
+        file.setCreationTimestamp(mCreationTimestamps[position]);
+        file.setModificationTimestamp(mModificationTimestamps[position]);
+        file.setModificationTimestampAtLastSyncForData(mModificationTimestampsAtLastSyncForData[position]);
+        file.setLastSyncDateForProperties(mLastSyncDatesForProperties[position]);
+        file.setLastSyncDateForData(mLastSyncDatesForData[position]);
+        file.setKeepInSync(mKeepInSync[position]);
+        file.setMimetype(mMimeTypes[position]);
+        file.setStoragePath(mStoragePaths[position]);
+        file.setEtag(mEtags[position]);
+        file.setChecksum(mChecksums[position]);
+        return file;
+    }
+
+
+    /**
+     * @return      New list with an {@link OCFile} per file in the folder, in the same order.
+     */
+    public Vector<OCFile> toVector() {
+        Vector<OCFile> files = new Vector<OCFile>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            files.add(getFile(i));
+        }
+        return files;
+    }
+
+}
@@ -21,8 +21,9 @@ package com.owncloud.android.datamodel;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import com.owncloud.android.DisplayUtils;
@@ -34,11 +35,11 @@ import com.owncloud.android.utils.FileStorageUtils;
 import android.accounts.Account;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.RemoteException;
 /**
@@ -51,6 +52,12 @@ public class FileDataStorageManager implements DataStorageManager {
     private Account mAccount;
 
     private static String TAG = "FileDataStorageManager";
+    
+    /** Projection for existence checks; no need to read the full row, the index on remote paths is enough */
+    private static final String[] EXISTENCE_PROJECTION = new String[] { ProviderTableMeta._ID };
+    
+    /** Maximum number of remote paths looked up in a single query; SQLite allows up to 999 arguments */
+    private static final int MAX_PATHS_PER_QUERY = 500;
 
     public FileDataStorageManager(Account account, ContentResolver cr) {
         mContentProvider = null;
@@ -64,12 +71,25 @@ public class FileDataStorageManager implements DataStorageManager {
         mAccount = account;
     }
 
+    /**
+     * @return      Cache of the files of the current account, shared by all the instances.
+     */
+    private FileMetadataCache getCache() {
+        return FileMetadataCache.getInstance(mAccount.name);
+    }
+
     @Override
     public OCFile getFileByPath(String path) {
+        FileMetadataCache cache = getCache();
+        OCFile file = cache.getFileByPath(path);
+        if (file != null) {
+            return file;
+        }
+        long generation = cache.getGeneration();
         Cursor c = getCursorForValue(ProviderTableMeta.FILE_PATH, path);
-        OCFile file = null;
         if (c.moveToFirst()) {
             file = createFileInstance(c);
+            cache.putFile(file, generation);
         }
         c.close();
         if (file == null && OCFile.PATH_SEPARATOR.equals(path)) {
@@ -89,10 +109,16 @@ public class FileDataStorageManager implements DataStorageManager {
 
     @Override
     public OCFile getFileById(long id) {
+        FileMetadataCache cache = getCache();
+        OCFile file = cache.getFileById(id);
+        if (file != null) {
+            return file;
+        }
+        long generation = cache.getGeneration();
         Cursor c = getCursorForValue(ProviderTableMeta._ID, String.valueOf(id));
-        OCFile file = null;
         if (c.moveToFirst()) {
             file = createFileInstance(c);
+            cache.putFile(file, generation);
         }
         c.close();
         return file;
@@ -115,6 +141,9 @@ public class FileDataStorageManager implements DataStorageManager {
 
     @Override
     public boolean fileExists(String path) {
+        if (getCache().containsPath(path)) {
+            return true;
+        }
         return fileExists(ProviderTableMeta.FILE_PATH, path);
     }
 
@@ -137,9 +166,10 @@ public class FileDataStorageManager implements DataStorageManager {
         cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE, file.getLastSyncDateForProperties());
         cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, file.getLastSyncDateForData());
         cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, file.keepInSync() ? 1 : 0);
+        cv.put(ProviderTableMeta.FILE_ETAG, file.getEtag());
+        cv.put(ProviderTableMeta.FILE_CHECKSUM, file.getChecksum());
 
         boolean sameRemotePath = fileExists(file.getRemotePath());
-        boolean changesSizeOfAncestors = false;
         if (sameRemotePath ||
                 fileExists(file.getFileId())        ) {           // for renamed files; no more delete and create
 
@@ -150,7 +180,11 @@ public class FileDataStorageManager implements DataStorageManager {
             } else {
                 oldFile = getFileById(file.getFileId());
             }
-            changesSizeOfAncestors = (oldFile.getFileLength() != file.getFileLength());
+            if (file.isDirectory()) {
+                // the size of a folder is the size of its contents, kept up to date in every change of them
+                cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, oldFile.getFileLength());
+                file.setFileLength(oldFile.getFileLength());
+            }
 
             overriden = true;
             if (getContentResolver() != null) {
@@ -168,8 +202,22 @@ public class FileDataStorageManager implements DataStorageManager {
                                     + e.getMessage());
                 }
             }
+            
+            getCache().invalidate(file.getRemotePath(), false);
+            if (sameRemotePath) {
+                updateSizesToTheRoot(getParentPath(file.getRemotePath()), file.getFileLength() - oldFile.getFileLength());
+            } else {
+                getCache().invalidate(oldFile.getRemotePath(), false);
+                updateSizesToTheRoot(getParentPath(oldFile.getRemotePath()), -oldFile.getFileLength());
+                updateSizesToTheRoot(getParentPath(file.getRemotePath()), file.getFileLength());
+            }
+            
         } else {
-            changesSizeOfAncestors = true;
+            if (file.isDirectory()) {
+                // the contents of a new folder are still unknown
+                cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 0);
+                file.setFileLength(0);
+            }
             Uri result_uri = null;
             if (getContentResolver() != null) {
                 result_uri = getContentResolver().insert(
@@ -184,39 +232,45 @@ public class FileDataStorageManager implements DataStorageManager {
                                     + e.getMessage());
                 }
             }
+            getCache().invalidate(file.getRemotePath(), false);
             if (result_uri != null) {
                 long new_id = Long.parseLong(result_uri.getPathSegments()
                         .get(1));
                 file.setFileId(new_id);
+                updateSizesToTheRoot(getParentPath(file.getRemotePath()), file.getFileLength());
             }            
         }
 
-        if (file.isDirectory()) {
-            calculateFolderSize(file.getFileId());
-            if (file.needsUpdatingWhileSaving()) {
-                for (OCFile f : getDirectoryContent(file))
-                    saveFile(f);
-            }
-        }
-        
-        if (changesSizeOfAncestors || file.isDirectory()) {
-            updateSizesToTheRoot(file.getParentId());
+        if (file.isDirectory() && file.needsUpdatingWhileSaving()) {
+            for (OCFile f : getDirectoryContent(file))
+                saveFile(f);
         }
         
         return overriden;
     }
 
 
+    /**
+     * Saves a list of files in the database, updating the existing entries and inserting the new ones.
+     * 
+     * The entries already existing are looked up by remote path, and all the files are written in a single 
+     * bulk transaction: existing entries are updated keeping their ids, and the rest are inserted.
+     */
     @Override
     public void saveFiles(List<OCFile> files) {
 
-        Iterator<OCFile> filesIt = files.iterator();
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(files.size());
+        // pre-load the entries already existing, keyed by remote path
+        Map<String, OCFile> oldFiles = getExistingFiles(files);
+        
+        ContentValues[] values = new ContentValues[files.size()];
+        Map<String, Long> sizeDeltas = new HashMap<String, Long>();
+        List<String> renamedPaths = new ArrayList<String>();
+        boolean newFiles = false;
         OCFile file = null;
 
-        // prepare operations to perform
-        while (filesIt.hasNext()) {
-            file = filesIt.next();
+        // prepare values to save
+        for (int i=0; i < files.size(); i++) {
+            file = files.get(i);
             ContentValues cv = new ContentValues();
             cv.put(ProviderTableMeta.FILE_MODIFIED, file.getModificationTimestamp());
             cv.put(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA, file.getModificationTimestampAtLastSyncForData());
@@ -233,24 +287,21 @@ public class FileDataStorageManager implements DataStorageManager {
             cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE, file.getLastSyncDateForProperties());
             cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, file.getLastSyncDateForData());
             cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, file.keepInSync() ? 1 : 0);
+            cv.put(ProviderTableMeta.FILE_ETAG, file.getEtag());
+            cv.put(ProviderTableMeta.FILE_CHECKSUM, file.getChecksum());
 
-            if (fileExists(file.getRemotePath())) {
-                OCFile oldFile = getFileByPath(file.getRemotePath());
+            OCFile oldFile = oldFiles.get(file.getRemotePath());
+            if (oldFile != null) {
                 file.setFileId(oldFile.getFileId());
                
                 if (file.isDirectory()) {
                     cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, oldFile.getFileLength());
                     file.setFileLength(oldFile.getFileLength());
                 }
-                
-                operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                        withValues(cv).
-                        withSelection(  ProviderTableMeta._ID + "=?", 
-                                new String[] { String.valueOf(file.getFileId()) })
-                                .build());
-
-            } else if (fileExists(file.getFileId())) {
-                OCFile oldFile = getFileById(file.getFileId());
+                cv.put(ProviderTableMeta._ID, file.getFileId());
+                addSizeDelta(sizeDeltas, getParentPath(file.getRemotePath()), file.getFileLength() - oldFile.getFileLength());
+
+            } else if (file.fileExists() && (oldFile = getFileById(file.getFileId())) != null) {    // for renamed files
                 if (file.getStoragePath() == null && oldFile.getStoragePath() != null)
                     file.setStoragePath(oldFile.getStoragePath());
                 
@@ -260,43 +311,68 @@ public class FileDataStorageManager implements DataStorageManager {
                     cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, oldFile.getFileLength());
                     file.setFileLength(oldFile.getFileLength());
                 }
-                
-                operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                        withValues(cv).
-                        withSelection(  ProviderTableMeta._ID + "=?", 
-                                new String[] { String.valueOf(file.getFileId()) })
-                                .build());
+                cv.put(ProviderTableMeta._ID, file.getFileId());
+                renamedPaths.add(oldFile.getRemotePath());
+                addSizeDelta(sizeDeltas, getParentPath(oldFile.getRemotePath()), -oldFile.getFileLength());
+                addSizeDelta(sizeDeltas, getParentPath(file.getRemotePath()), file.getFileLength());
 
             } else {
-                operations.add(ContentProviderOperation.newInsert(ProviderTableMeta.CONTENT_URI).withValues(cv).build());
+                if (file.isDirectory()) {
+                    // the contents of a new folder are still unknown
+                    cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 0);
+                    file.setFileLength(0);
+                }
+                file.setFileId(-1);
+                newFiles = true;
+                addSizeDelta(sizeDeltas, getParentPath(file.getRemotePath()), file.getFileLength());
             }
+            values[i] = cv;
         }
 
-        // apply operations in batch
-        ContentProviderResult[] results = null;
+        // save all the values in a single transaction
+        boolean saved = false;
         try {
             if (getContentResolver() != null) {
-                results = getContentResolver().applyBatch(ProviderMeta.AUTHORITY_FILES, operations);
+                getContentResolver().bulkInsert(ProviderTableMeta.CONTENT_URI, values);
 
             } else {
-                results = getContentProvider().applyBatch(operations);
+                getContentProvider().bulkInsert(ProviderTableMeta.CONTENT_URI, values);
             }
-
-        } catch (OperationApplicationException e) {
-            Log_OC.e(TAG, "Fail to update/insert list of files to database " + e.getMessage());
+            saved = true;
 
         } catch (RemoteException e) {
             Log_OC.e(TAG, "Fail to update/insert list of files to database " + e.getMessage());
+            
+        } catch (SQLException e) {
+            Log_OC.e(TAG, "Fail to update/insert list of files to database " + e.getMessage());
         }
 
-        // update new id in file objects for insertions
-        if (results != null) {
-            long newId;
-            for (int i=0; i<results.length; i++) {
-                if (results[i].uri != null) {
-                    newId = Long.parseLong(results[i].uri.getPathSegments().get(1));
-                    files.get(i).setFileId(newId);
-                    //Log_OC.v(TAG, "Found and added id in insertion for " + files.get(i).getRemotePath());
+        FileMetadataCache cache = getCache();
+        for (OCFile aFile : files) {
+            cache.invalidate(aFile.getRemotePath(), false);
+        }
+        for (String oldPath : renamedPaths) {
+            cache.invalidate(oldPath, false);
+        }
+
+        if (!saved) {
+            return;     // the transaction was rolled back; sizes of the ancestors didn't change 
+        }
+
+        // update sizes of the ancestor folders, once per parent folder
+        for (Map.Entry<String, Long> delta : sizeDeltas.entrySet()) {
+            updateSizesToTheRoot(delta.getKey(), delta.getValue());
+        }
+
+        // update new ids in file objects for insertions
+        if (newFiles) {
+            Map<String, OCFile> savedFiles = getExistingFiles(files);
+            for (OCFile aFile : files) {
+                if (!aFile.fileExists()) {
+                    OCFile savedFile = savedFiles.get(aFile.getRemotePath());
+                    if (savedFile != null) {
+                        aFile.setFileId(savedFile.getFileId());
+                    }
                 }
             }
         }
@@ -308,6 +384,59 @@ public class FileDataStorageManager implements DataStorageManager {
 
     }
 
+    /**
+     * Reads the entries in the database with the same remote paths than a list of files.
+     * 
+     * Only the id, remote path and size of the entries are read, with a query per {@link #MAX_PATHS_PER_QUERY} 
+     * files using the index on account and path.
+     * 
+     * @param files     Files to look for.
+     * @return          Entries existing in the database, keyed by remote path.
+     */
+    private Map<String, OCFile> getExistingFiles(List<OCFile> files) {
+        Map<String, OCFile> existing = new HashMap<String, OCFile>();
+        String[] projection = new String[] {
+                ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH, ProviderTableMeta.FILE_CONTENT_LENGTH
+        };
+        for (int from = 0; from < files.size(); from += MAX_PATHS_PER_QUERY) {
+            int to = Math.min(from + MAX_PATHS_PER_QUERY, files.size());
+            String[] selectionArgs = new String[to - from + 1];
+            StringBuilder selection = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PATH + " IN (");
+            selectionArgs[0] = mAccount.name;
+            for (int i = from; i < to; i++) {
+                selection.append((i == from) ? "?" : ",?");
+                selectionArgs[i - from + 1] = files.get(i).getRemotePath();
+            }
+            selection.append(")");
+            
+            Cursor c = null;
+            try {
+                if (getContentResolver() != null) {
+                    c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, projection, 
+                            selection.toString(), selectionArgs, null);
+                } else {
+                    c = getContentProvider().query(ProviderTableMeta.CONTENT_URI, projection, 
+                            selection.toString(), selectionArgs, null);
+                }
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Could not read existing files: " + e.getMessage());
+            }
+            if (c != null) {
+                int idIndex = c.getColumnIndex(ProviderTableMeta._ID);
+                int pathIndex = c.getColumnIndex(ProviderTableMeta.FILE_PATH);
+                int lengthIndex = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH);
+                while (c.moveToNext()) {
+                    OCFile file = new OCFile(c.getString(pathIndex));
+                    file.setFileId(c.getLong(idIndex));
+                    file.setFileLength(c.getLong(lengthIndex));
+                    existing.put(file.getRemotePath(), file);
+                }
+                c.close();
+            }
+        }
+        return existing;
+    }
+
     public void setAccount(Account account) {
         mAccount = account;
     }
@@ -334,36 +463,48 @@ public class FileDataStorageManager implements DataStorageManager {
     
     @Override
     public Vector<OCFile> getDirectoryContent(OCFile f) {
-        if (f != null && f.isDirectory() && f.getFileId() != -1) {
-            return getDirectoryContent(f.getFileId());
+        DirectoryListing listing = getDirectoryListing(f);
+        return (listing != null) ? listing.toVector() : new Vector<OCFile>();
+    }
 
-        } else {
-            return new Vector<OCFile>();
+    /**
+     * Reads the contents of a folder in a compact form, preferred to {@link #getDirectoryContent(OCFile)} for 
+     * folders that can be large.
+     * 
+     * @param folder    Folder to read.
+     * @return          Contents of the folder, or NULL if 'folder' is not a folder in the database.
+     */
+    @Override
+    public DirectoryListing getDirectoryListing(OCFile folder) {
+        if (folder == null || !folder.isDirectory() || folder.getFileId() == -1) {
+            return null;
+        }
+        FileMetadataCache cache = getCache();
+        DirectoryListing listing = cache.getListing(folder.getFileId());
+        if (listing != null) {
+            return listing;
+        }
+        long generation = cache.getGeneration();
+        Cursor c = getDirectoryCursor(folder.getFileId());
+        if (c == null) {
+            return null;
         }
+        try {
+            listing = DirectoryListing.fromCursor(folder, c, mAccount.name);
+        } finally {
+            c.close();
+        }
+        cache.putListing(listing, generation);
+        return listing;
     }
 
     private Vector<OCFile> getDirectoryContent(long parentId) {
 
         Vector<OCFile> ret = new Vector<OCFile>();
 
-        Uri req_uri = Uri.withAppendedPath(
-                ProviderTableMeta.CONTENT_URI_DIR,
-                String.valueOf(parentId));
-        Cursor c = null;
-
-        if (getContentProvider() != null) {
-            try {
-                c = getContentProvider().query(req_uri, null, 
-                        ProviderTableMeta.FILE_PARENT + "=?" ,
-                        new String[] { String.valueOf(parentId)}, null);
-            } catch (RemoteException e) {
-                Log_OC.e(TAG, e.getMessage());
-                return ret;
-            }
-        } else {
-            c = getContentResolver().query(req_uri, null, 
-                    ProviderTableMeta.FILE_PARENT + "=?" ,
-                    new String[] { String.valueOf(parentId)}, null);
+        Cursor c = getDirectoryCursor(parentId);
+        if (c == null) {
+            return ret;
         }
 
         if (c.moveToFirst()) {
@@ -382,12 +523,44 @@ public class FileDataStorageManager implements DataStorageManager {
     
     
 
+    /**
+     * @return      Cursor over all the columns of the children of the folder with id 'parentId', or NULL if 
+     *              the content provider could not be reached.
+     */
+    private Cursor getDirectoryCursor(long parentId) {
+        return getDirectoryCursor(parentId, Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR, String.valueOf(parentId)));
+    }
+
+    /**
+     * @param parentId  Id of a folder.
+     * @param req_uri   URI of the folder, with the query parameters to filter and sort its children; see 
+     *                  {@link ProviderTableMeta#QUERY_SORT} and others.
+     * @return          Cursor over all the columns of the selected children of the folder, or NULL if the 
+     *                  content provider could not be reached.
+     */
+    private Cursor getDirectoryCursor(long parentId, Uri req_uri) {
+        if (getContentProvider() != null) {
+            try {
+                return getContentProvider().query(req_uri, null, 
+                        ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PARENT + "=?" ,
+                        new String[] { mAccount.name, String.valueOf(parentId)}, null);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, e.getMessage());
+                return null;
+            }
+        } else {
+            return getContentResolver().query(req_uri, null, 
+                    ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PARENT + "=?" ,
+                    new String[] { mAccount.name, String.valueOf(parentId)}, null);
+        }
+    }
+
     private boolean fileExists(String cmp_key, String value) {
         Cursor c;
         if (getContentResolver() != null) {
             c = getContentResolver()
                     .query(ProviderTableMeta.CONTENT_URI,
-                            null,
+                            EXISTENCE_PROJECTION,
                             cmp_key + "=? AND "
                                     + ProviderTableMeta.FILE_ACCOUNT_OWNER
                                     + "=?",
@@ -396,7 +569,7 @@ public class FileDataStorageManager implements DataStorageManager {
             try {
                 c = getContentProvider().query(
                         ProviderTableMeta.CONTENT_URI,
-                        null,
+                        EXISTENCE_PROJECTION,
                         cmp_key + "=? AND "
                                 + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
                                 new String[] { value, mAccount.name }, null);
@@ -474,26 +647,44 @@ public class FileDataStorageManager implements DataStorageManager {
                     getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA)));
             file.setKeepInSync(c.getInt(
                     c.getColumnIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC)) == 1 ? true : false);
+            file.setEtag(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_ETAG)));
+            file.setChecksum(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_CHECKSUM)));
         }
         return file;
     }
 
     @Override
     public void removeFile(OCFile file, boolean removeLocalCopy) {
+        removeFile(file, removeLocalCopy, true);
+    }
+    
+    /**
+     * Removes a file from the database and, optionally, its local copy.
+     * 
+     * @param file              File to remove.
+     * @param removeLocalCopy   When 'true', the local copy of the file is also removed.
+     * @param updateSizes       When 'false', the size of the ancestor folders is not updated; used when
+     *                          removing the contents of a folder that will be removed later.
+     */
+    private void removeFile(OCFile file, boolean removeLocalCopy, boolean updateSizes) {
+        // the length in the caller's instance could be out of date; the one in the database was added to the ancestors 
+        long storedLength = (updateSizes) ? getStoredFileLength(file.getFileId()) : 0;
         Uri file_uri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_FILE, ""+file.getFileId());
+        int deleted = 0;
         if (getContentProvider() != null) {
             try {
-                getContentProvider().delete(file_uri,
+                deleted = getContentProvider().delete(file_uri,
                         ProviderTableMeta.FILE_ACCOUNT_OWNER+"=?",
                         new String[]{mAccount.name});
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
         } else {
-            getContentResolver().delete(file_uri,
+            deleted = getContentResolver().delete(file_uri,
                     ProviderTableMeta.FILE_ACCOUNT_OWNER+"=?",
                     new String[]{mAccount.name});
         }
+        getCache().invalidate(file.getRemotePath(), file.isDirectory());
         if (file.isDown() && removeLocalCopy) {
             new File(file.getStoragePath()).delete();
         }
@@ -504,13 +695,36 @@ public class FileDataStorageManager implements DataStorageManager {
             }
         }
         
-        if (file.getFileLength() > 0) {
-            updateSizesToTheRoot(file.getParentId());
+        if (updateSizes && deleted > 0) {
+            updateSizesToTheRoot(getParentPath(file.getRemotePath()), -storedLength);
         }
     }
 
+    /**
+     * @param id    Id of a file in the database.
+     * @return      Length of the file saved in the database, skipping the cache; 0 if the file is not there.
+     */
+    private long getStoredFileLength(long id) {
+        long length = 0;
+        Cursor c = getCursorForValue(ProviderTableMeta._ID, String.valueOf(id));
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    length = c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return length;
+    }
+
     @Override
     public void removeDirectory(OCFile dir, boolean removeDBData, boolean removeLocalContent) {
+        removeDirectory(dir, removeDBData, removeLocalContent, true);
+    }
+    
+    private void removeDirectory(OCFile dir, boolean removeDBData, boolean removeLocalContent, boolean updateSizes) {
         // TODO consider possible failures
         if (dir != null && dir.isDirectory() && dir.getFileId() != -1) {
             Vector<OCFile> children = getDirectoryContent(dir);
@@ -519,10 +733,10 @@ public class FileDataStorageManager implements DataStorageManager {
                 for (int i=0; i<children.size(); i++) {
                     child = children.get(i);
                     if (child.isDirectory()) {
-                        removeDirectory(child, removeDBData, removeLocalContent);
+                        removeDirectory(child, removeDBData, removeLocalContent, false);
                     } else {
                         if (removeDBData) {
-                            removeFile(child, removeLocalContent);
+                            removeFile(child, removeLocalContent, false);
                         } else if (removeLocalContent) {
                             if (child.isDown()) {
                                 new File(child.getStoragePath()).delete();
@@ -532,11 +746,8 @@ public class FileDataStorageManager implements DataStorageManager {
                 }
             }
             if (removeDBData) {
-                removeFile(dir, true);
-            }
-            
-            if (dir.getFileLength() > 0) {
-                updateSizesToTheRoot(dir.getParentId());
+                // the size of the folder is subtracted from its ancestors only once, for the full subtree
+                removeFile(dir, true, updateSizes);
             }
         }
     }
@@ -608,6 +819,8 @@ public class FileDataStorageManager implements DataStorageManager {
             } catch (RemoteException e) {
                 Log_OC.e(TAG, "Fail to update desendants of " + dir.getFileId() + " in database", e);
             }
+            getCache().invalidate(dir.getRemotePath(), true);
+            getCache().invalidate(newPath, true);
 
         }
     }
@@ -616,13 +829,24 @@ public class FileDataStorageManager implements DataStorageManager {
     public Vector<OCFile> getDirectoryImages(OCFile directory) {
         Vector<OCFile> ret = new Vector<OCFile>(); 
         if (directory != null) {
-            // TODO better implementation, filtering in the access to database (if possible) instead of here 
-            Vector<OCFile> tmp = getDirectoryContent(directory);
-            OCFile current = null; 
-            for (int i=0; i<tmp.size(); i++) {
-                current = tmp.get(i);
-                if (current.isImage()) {
-                    ret.add(current);
+            // the database selects the files with an image type, or no known type; the name decides in the latter 
+            Uri req_uri = ProviderTableMeta.CONTENT_URI_DIR.buildUpon()
+                    .appendPath(String.valueOf(directory.getFileId()))
+                    .appendQueryParameter(ProviderTableMeta.QUERY_MIMETYPE_PREFIX, "image/")
+                    .appendQueryParameter(ProviderTableMeta.QUERY_INCLUDE_UNKNOWN_MIMETYPE, "1")
+                    .appendQueryParameter(ProviderTableMeta.QUERY_SORT, ProviderTableMeta.SORT_BY_NAME)
+                    .build();
+            Cursor c = getDirectoryCursor(directory.getFileId(), req_uri);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        OCFile current = createFileInstance(c);
+                        if (current.isImage()) {
+                            ret.add(current);
+                        }
+                    }
+                } finally {
+                    c.close();
                 }
             }
         }
@@ -630,7 +854,53 @@ public class FileDataStorageManager implements DataStorageManager {
     }
 
     /**
-     * Calculate and save the folderSize on DB
+     * Provides the files in the subtree of a folder that must be kept synchronized, at any depth.
+     * 
+     * @param folder    Folder whose subtree is searched.
+     * @return          Files marked to be kept in sync below 'folder'.
+     */
+    @Override
+    public Vector<OCFile> getKeptInSyncFiles(OCFile folder) {
+        Vector<OCFile> ret = new Vector<OCFile>();
+        if (folder == null || !folder.isDirectory()) {
+            return ret;
+        }
+        String selection = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_KEEP_IN_SYNC 
+                + "=1 AND " + ProviderTableMeta.FILE_PATH + " LIKE ?";
+        String[] selectionArgs = new String[] { mAccount.name, folder.getRemotePath() + "%" };
+        Cursor c = null;
+        if (getContentProvider() != null) {
+            try {
+                c = getContentProvider().query(ProviderTableMeta.CONTENT_URI, null, selection, selectionArgs, null);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Could not get files kept in sync: " + e.getMessage());
+            }
+        } else {
+            c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, null, selection, selectionArgs, null);
+        }
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    OCFile file = createFileInstance(c);
+                    // LIKE also takes '_' and '%' in the path as wildcards
+                    if (!file.isDirectory() && file.getRemotePath().startsWith(folder.getRemotePath())) {
+                        ret.add(file);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Calculate and save the folderSize on DB, adding the difference with the previous
+     * size to the ancestor folders.
+     * 
+     * Not needed in normal operation, since every change in the database updates incrementally 
+     * the size of the ancestor folders; useful to fix a folder with a wrong size.
+     *  
      * @param id
      */
     @Override
@@ -644,7 +914,11 @@ public class FileDataStorageManager implements DataStorageManager {
             folderSize = folderSize + f.getFileLength();
         }
         
+        OCFile folder = getFileById(id);
         updateSize(id, folderSize);
+        if (folder != null) {
+            updateSizesToTheRoot(getParentPath(folder.getRemotePath()), folderSize - folder.getFileLength());
+        }
     }
 
     /**
@@ -665,29 +939,94 @@ public class FileDataStorageManager implements DataStorageManager {
                 Log_OC.e(TAG,"Fail to update size column into database " + e.getMessage());
             }
         }
+        getCache().invalidate(id);
         return result;
     }
 
+    /**
+     * Update the ETag value of an OCFile in DB, without modifying any other property.
+     * 
+     * Used to mark a folder as completely synchronized, once all its subtree was fetched.
+     * 
+     * @param id        Id of the file in the local database
+     * @param etag      New ETag value for the file
+     */
+    @Override
+    public void updateEtag(long id, String etag) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_ETAG, etag);
+        if (getContentResolver() != null) {
+            getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv, ProviderTableMeta._ID + "=?", 
+                    new String[] { String.valueOf(id) });
+        } else {
+            try {
+                getContentProvider().update(ProviderTableMeta.CONTENT_URI, cv, ProviderTableMeta._ID + "=?", 
+                        new String[] { String.valueOf(id) });
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to update etag column into database " + e.getMessage());
+            }
+        }
+        getCache().invalidate(id);
+    }
+
     /** 
-     * Update the size of a subtree of folder from a file to the root
-     * @param parentId: parent of the file
+     * Adds a size change to a folder and all its ancestors up to the root, in a single database update.
+     * 
+     * @param folderPath    Remote path of the folder containing the changed file.
+     * @param delta         Bytes to add to the size of every folder; negative to subtract.
      */
-    private void updateSizesToTheRoot(long parentId) {
+    private void updateSizesToTheRoot(String folderPath, long delta) {
+        if (delta == 0 || folderPath == null) {
+            return;
+        }
         
-        OCFile file; 
-
-        while (parentId != 0) {
-            
-            Log_OC.d(TAG, "parent = " + parentId);
-            // Update the size of the parent
-            calculateFolderSize(parentId);
-            
-            // search the next parent
-            file = getFileById(parentId);            
-            parentId = file.getParentId();
-            
-        }              
+        List<String> selectionArgs = new ArrayList<String>();
+        selectionArgs.add(mAccount.name);
+        StringBuilder selection = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PATH + " IN (?");
+        selectionArgs.add(folderPath);
+        for (String path = getParentPath(folderPath); path != null; path = getParentPath(path)) {
+            selection.append(",?");
+            selectionArgs.add(path);
+        }
+        selection.append(")");
         
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, delta);
+        if (getContentResolver() != null) {
+            getContentResolver().update(ProviderTableMeta.CONTENT_URI_SIZES, cv, selection.toString(), 
+                    selectionArgs.toArray(new String[selectionArgs.size()]));
+        } else {
+            try {
+                getContentProvider().update(ProviderTableMeta.CONTENT_URI_SIZES, cv, selection.toString(), 
+                        selectionArgs.toArray(new String[selectionArgs.size()]));
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to update sizes of ancestors of " + folderPath + " in database " + e.getMessage());
+            }
+        }
+        getCache().invalidate(folderPath, false);
+    }
+    
+    /**
+     * Accumulates the size change of a file for its parent folder.
+     */
+    private static void addSizeDelta(Map<String, Long> sizeDeltas, String folderPath, long delta) {
+        if (delta != 0 && folderPath != null) {
+            Long previous = sizeDeltas.get(folderPath);
+            sizeDeltas.put(folderPath, (previous == null) ? delta : previous + delta);
+        }
+    }
+    
+    /**
+     * @param remotePath    Remote path of a file or folder.
+     * @return              Remote path of its parent folder, or null for the root folder. 
+     */
+    private static String getParentPath(String remotePath) {
+        String path = remotePath;
+        if (path.endsWith(OCFile.PATH_SEPARATOR)) {
+            path = path.substring(0, path.length() - 1);
+        }
+        int index = path.lastIndexOf(OCFile.PATH_SEPARATOR);
+        return (index < 0) ? null : path.substring(0, index + 1);
     }
     
 }
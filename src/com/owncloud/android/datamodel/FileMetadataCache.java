@@ -0,0 +1,288 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.owncloud.android.Log_OC;
+
+/**
+ * Bounded in-memory cache of the files of an account in the database, in front of {@link FileDataStorageManager}.
+ *
+ * Keeps the last files read, by id and by remote path, and the last folder listings read, so that repeated
+ * lookups of the same files don't go through the content provider. Entries are evicted in least recently used
+ * order beyond {@link #MAX_FILES} files and {@link #MAX_LISTINGS} listings.
+ *
+ * {@link FileDataStorageManager} invalidates the entries affected by every change it writes, including the
+ * ancestor folders whose sizes change with it, so that reads after a write never get old values. Changes
+ * written to the content provider through other way must be followed by a call to {@link #clearAll()}.
+ *
+ * Files are copied in and out of the cache, so callers can freely modify the instances received; listings are
+ * immutable, and shared.
+ */
+public class FileMetadataCache {
+
+    private static final String TAG = FileMetadataCache.class.getSimpleName();
+
+    /** Maximum number of files kept by id and by remote path */
+    public static final int MAX_FILES = 1000;
+
+    /** Maximum number of folder listings kept */
+    public static final int MAX_LISTINGS = 8;
+
+    /** Caches, by account name */
+    private static final Map<String, FileMetadataCache> sCaches = new HashMap<String, FileMetadataCache>();
+
+
+    private final Map<String, Long> mIdsByPath = new HashMap<String, Long>();
+
+    private final LinkedHashMap<Long, OCFile> mFilesById = new LinkedHashMap<Long, OCFile>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, OCFile> eldest) {
+            if (size() > MAX_FILES) {
+                mIdsByPath.remove(eldest.getValue().getRemotePath());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final LinkedHashMap<Long, DirectoryListing> mListings = new LinkedHashMap<Long, DirectoryListing>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, DirectoryListing> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+
+    /** Incremented in every invalidation, so that values read from the database before it are not cached */
+    private long mGeneration = 0;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+
+
+    /**
+     * @param accountName   Name of an ownCloud account.
+     * @return              Cache of the files of the account.
+     */
+    static FileMetadataCache getInstance(String accountName) {
+        synchronized (sCaches) {
+            FileMetadataCache cache = sCaches.get(accountName);
+            if (cache == null) {
+                cache = new FileMetadataCache();
+                sCaches.put(accountName, cache);
+            }
+            return cache;
+        }
+    }
+
+
+    /**
+     * Clears the caches of all the accounts.
+     */
+    public static void clearAll() {
+        synchronized (sCaches) {
+            for (FileMetadataCache cache : sCaches.values()) {
+                cache.clear();
+            }
+        }
+    }
+
+
+    /**
+     * @return      Current generation of the cache; values read from the database must be put in the cache
+     *              with the generation got before reading them.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+
+    synchronized OCFile getFileById(long id) {
+        OCFile file = mFilesById.get(id);
+        countLookup(file != null);
+        return (file != null) ? new OCFile(file) : null;
+    }
+
+
+    synchronized OCFile getFileByPath(String path) {
+        Long id = mIdsByPath.get(path);
+        OCFile file = (id != null) ? mFilesById.get(id) : null;
+        countLookup(file != null);
+        return (file != null) ? new OCFile(file) : null;
+    }
+
+
+    /**
+     * @return      'true' if a file with the given remote path is in the cache; 'false' if it's not known.
+     */
+    synchronized boolean containsPath(String path) {
+        return mIdsByPath.containsKey(path);
+    }
+
+
+    /**
+     * @return      Contents of the folder, or NULL if not cached.
+     */
+    synchronized DirectoryListing getListing(long folderId) {
+        DirectoryListing listing = mListings.get(folderId);
+        countLookup(listing != null);
+        return listing;
+    }
+
+
+    synchronized void putFile(OCFile file, long generation) {
+        if (generation == mGeneration && file.fileExists()) {
+            OCFile copy = new OCFile(file);
+            OCFile old = mFilesById.put(copy.getFileId(), copy);
+            if (old != null && !old.getRemotePath().equals(copy.getRemotePath())) {
+                mIdsByPath.remove(old.getRemotePath());
+            }
+            mIdsByPath.put(copy.getRemotePath(), copy.getFileId());
+        }
+    }
+
+
+    synchronized void putListing(DirectoryListing listing, long generation) {
+        if (generation == mGeneration) {
+            mListings.put(listing.getFolderId(), listing);
+        }
+    }
+
+
+    /**
+     * Invalidates the cached values that change with a change in a file: the file itself, all its ancestor
+     * folders, whose sizes change with it, and the listings of all of them.
+     *
+     * @param path          Remote path of the file changed.
+     * @param subtree       When 'true', the descendants of 'path' are also invalidated.
+     */
+    synchronized void invalidate(String path, boolean subtree) {
+        mGeneration++;
+
+        // file and ancestors
+        for (String ancestor = path; ancestor != null; ancestor = getParentPath(ancestor)) {
+            Long id = mIdsByPath.remove(ancestor);
+            if (id != null) {
+                mFilesById.remove(id);
+            }
+        }
+        if (subtree) {
+            Iterator<OCFile> files = mFilesById.values().iterator();
+            while (files.hasNext()) {
+                OCFile file = files.next();
+                if (file.getRemotePath().startsWith(path)) {
+                    mIdsByPath.remove(file.getRemotePath());
+                    files.remove();
+                }
+            }
+        }
+
+        // listings of ancestors, and of descendants if requested
+        Iterator<DirectoryListing> listings = mListings.values().iterator();
+        while (listings.hasNext()) {
+            DirectoryListing listing = listings.next();
+            if (path.startsWith(listing.getFolderPath()) || (subtree && listing.getFolderPath().startsWith(path))) {
+                listings.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Invalidates the cached values that change with a change in a file, knowing only its id.
+     *
+     * @param id            Id of the file changed.
+     */
+    synchronized void invalidate(long id) {
+        OCFile file = mFilesById.get(id);
+        String path = (file != null) ? file.getRemotePath() : null;
+        if (path == null) {
+            for (DirectoryListing listing : mListings.values()) {
+                int position = listing.indexOf(id);
+                if (position >= 0) {
+                    path = listing.getRemotePath(position);
+                    break;
+                }
+            }
+        }
+        if (path != null) {
+            invalidate(path, false);
+        } else {
+            mGeneration++;      // not cached; values being read now could be old
+        }
+    }
+
+
+    synchronized void clear() {
+        mGeneration++;
+        mFilesById.clear();
+        mIdsByPath.clear();
+        mListings.clear();
+    }
+
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+
+    private void countLookup(boolean hit) {
+        if (hit) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        if ((mHits + mMisses) % 1000 == 0) {
+            Log_OC.d(TAG, toString());
+        }
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return mFilesById.size() + " files and " + mListings.size() + " listings cached, " +
+                mHits + " hits, " + mMisses + " misses";
+    }
+
+
+    /**
+     * @return      Remote path of the parent folder of 'remotePath', or NULL for the root folder.
+     */
+    private static String getParentPath(String remotePath) {
+        String path = remotePath;
+        if (path.endsWith(OCFile.PATH_SEPARATOR)) {
+            path = path.substring(0, path.length() - 1);
+        }
+        int index = path.lastIndexOf(OCFile.PATH_SEPARATOR);
+        return (index < 0) ? null : path.substring(0, index + 1);
+    }
+
+}
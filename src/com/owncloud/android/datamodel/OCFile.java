@@ -59,6 +59,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
     private boolean mKeepInSync;
 
     private String mEtag;
+    private String mChecksum;
 
     /**
      * Create new {@link OCFile} with given path.
@@ -76,6 +77,29 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mRemotePath = path;
     }
 
+    /**
+     * Creates a copy of another {@link OCFile}.
+     * 
+     * @param source    File to copy.
+     */
+    OCFile(OCFile source) {
+        mId = source.mId;
+        mParentId = source.mParentId;
+        mLength = source.mLength;
+        mCreationTimestamp = source.mCreationTimestamp;
+        mModifiedTimestamp = source.mModifiedTimestamp;
+        mModifiedTimestampAtLastSyncForData = source.mModifiedTimestampAtLastSyncForData;
+        mRemotePath = source.mRemotePath;
+        mLocalPath = source.mLocalPath;
+        mMimeType = source.mMimeType;
+        mNeedsUpdating = source.mNeedsUpdating;
+        mKeepInSync = source.mKeepInSync;
+        mLastSyncDateForProperties = source.mLastSyncDateForProperties;
+        mLastSyncDateForData = source.mLastSyncDateForData;
+        mEtag = source.mEtag;
+        mChecksum = source.mChecksum;
+    }
+
     /**
      * Reconstruct from parcel
      * 
@@ -95,6 +119,8 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mKeepInSync = source.readInt() == 1;
         mLastSyncDateForProperties = source.readLong();
         mLastSyncDateForData = source.readLong();
+        mEtag = source.readString();
+        mChecksum = source.readString();
     }
 
     @Override
@@ -112,6 +138,8 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         dest.writeInt(mKeepInSync ? 1 : 0);
         dest.writeLong(mLastSyncDateForProperties);
         dest.writeLong(mLastSyncDateForData);
+        dest.writeString(mEtag);
+        dest.writeString(mChecksum);
     }
     
     /**
@@ -319,6 +347,8 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mLastSyncDateForData = 0;
         mKeepInSync = false;
         mNeedsUpdating = false;
+        mEtag = null;
+        mChecksum = null;
     }
 
     /**
@@ -444,10 +474,44 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         return asString;
     }
 
+    /**
+     * Returns the ETag of the file, as reported by the server the last time the contents
+     * of the file (or the whole subtree, for folders) were synchronized.
+     * 
+     * @return  ETag of the file; NULL if unknown
+     */
     public String getEtag() {
         return mEtag;
     }
 
+    /**
+     * Sets the ETag of the file.
+     * 
+     * @param etag  ETag value returned by the server
+     */
+    public void setEtag(String etag) {
+        mEtag = etag;
+    }
+
+    /**
+     * Returns the checksum of the contents of the file the last time they were synchronized, 
+     * as "TYPE:value"; see {@link com.owncloud.android.utils.FileChecksum}.
+     * 
+     * @return  Checksum of the contents of the file; NULL if unknown
+     */
+    public String getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * Sets the checksum of the contents of the file.
+     * 
+     * @param checksum  Checksum of the contents, as "TYPE:value"
+     */
+    public void setChecksum(String checksum) {
+        mChecksum = checksum;
+    }
+
     public long getLocalModificationTimestamp() {
         if (mLocalPath != null && mLocalPath.length() > 0) {
             File f = new File(mLocalPath);
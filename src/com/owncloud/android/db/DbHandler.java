@@ -17,6 +17,9 @@
  */
 package com.owncloud.android.db;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import com.owncloud.android.Log_OC;
 
 import android.content.ContentValues;
@@ -35,13 +38,61 @@ public class DbHandler {
     private SQLiteDatabase mDB;
     private OpenerHelper mHelper;
     private final String mDatabaseName = "ownCloud";
-    private final int mDatabaseVersion = 3;
+    private final int mDatabaseVersion = 8;
 
     private final String TABLE_INSTANT_UPLOAD = "instant_upload";
+    private final String TABLE_CHUNKED_UPLOAD = "chunked_upload";
+    private final String TABLE_UPLOADED_CHUNK = "uploaded_chunk";
+    private final String TABLE_PARTIAL_DOWNLOAD = "partial_download";
+    private final String TABLE_TRANSFER_QUEUE = "transfer_queue";
 
     public static final int UPLOAD_STATUS_UPLOAD_LATER = 0;
     public static final int UPLOAD_STATUS_UPLOAD_FAILED = 1;
 
+    public static final String CHUNKED_UPLOAD_ID = "_id";
+    public static final String CHUNKED_UPLOAD_ACCOUNT = "account";
+    public static final String CHUNKED_UPLOAD_REMOTE_PATH = "remote_path";
+    public static final String CHUNKED_UPLOAD_LOCAL_PATH = "local_path";
+    public static final String CHUNKED_UPLOAD_TRANSFER_ID = "transfer_id";
+    public static final String CHUNKED_UPLOAD_CHUNK_SIZE = "chunk_size";
+    public static final String CHUNKED_UPLOAD_FILE_SIZE = "file_size";
+    public static final String CHUNKED_UPLOAD_FILE_MODIFIED = "file_modified";
+
+    public static final String PARTIAL_DOWNLOAD_ACCOUNT = "account";
+    public static final String PARTIAL_DOWNLOAD_REMOTE_PATH = "remote_path";
+    public static final String PARTIAL_DOWNLOAD_ETAG = "etag";
+    public static final String PARTIAL_DOWNLOAD_FILE_SIZE = "file_size";
+    public static final String PARTIAL_DOWNLOAD_UPDATED = "updated";
+
+    public static final int TRANSFER_TYPE_UPLOAD = 0;
+    public static final int TRANSFER_TYPE_DOWNLOAD = 1;
+
+    public static final int TRANSFER_STATE_QUEUED = 0;
+    public static final int TRANSFER_STATE_IN_PROGRESS = 1;
+    public static final int TRANSFER_STATE_FAILED = 2;
+
+    /** Priority of the transfers started by the system: synchronizations and instant uploads */
+    public static final int TRANSFER_PRIORITY_BACKGROUND = 0;
+    /** Priority of the transfers requested by the user */
+    public static final int TRANSFER_PRIORITY_USER = 1;
+
+    public static final String TRANSFER_ID = "_id";
+    public static final String TRANSFER_TYPE = "transfer_type";
+    public static final String TRANSFER_ACCOUNT = "account";
+    public static final String TRANSFER_REMOTE_PATH = "remote_path";
+    public static final String TRANSFER_LOCAL_PATH = "local_path";
+    public static final String TRANSFER_MIME_TYPE = "mime_type";
+    public static final String TRANSFER_FORCE_OVERWRITE = "force_overwrite";
+    public static final String TRANSFER_INSTANT_UPLOAD = "instant_upload";
+    public static final String TRANSFER_LOCAL_BEHAVIOUR = "local_behaviour";
+    public static final String TRANSFER_STATE = "state";
+    public static final String TRANSFER_PRIORITY = "priority";
+    public static final String TRANSFER_ATTEMPTS = "attempts";
+    public static final String TRANSFER_BYTES_DONE = "bytes_done";
+    public static final String TRANSFER_LAST_ERROR = "last_error";
+    /** Time when a failed transfer must be tried again, in milliseconds since epoch; -1 if it must not be retried */
+    public static final String TRANSFER_NEXT_ATTEMPT = "next_attempt";
+
     public DbHandler(Context context) {
         mHelper = new OpenerHelper(context);
         mDB = mHelper.getWritableDatabase();
@@ -95,6 +146,339 @@ public class DbHandler {
 
     }
 
+    /**
+     * Adds a chunked upload to the journal of chunked uploads, in order to resume it if interrupted.
+     * 
+     * @param account       Name of the account where the file is uploaded.
+     * @param remotePath    Path of the file in the server.
+     * @param localPath     Path of the local file uploaded.
+     * @param transferId    Identifier of the transfer, included in the names of the chunks.
+     * @param chunkSize     Size of the chunks.
+     * @param fileSize      Size of the local file when the upload started.
+     * @param fileModified  Modification timestamp of the local file when the upload started.
+     * @return              Identifier of the upload in the journal, or -1 if it could not be added.
+     */
+    public long putChunkedUpload(String account, String remotePath, String localPath, long transferId, long chunkSize,
+            long fileSize, long fileModified) {
+        ContentValues cv = new ContentValues();
+        cv.put(CHUNKED_UPLOAD_ACCOUNT, account);
+        cv.put(CHUNKED_UPLOAD_REMOTE_PATH, remotePath);
+        cv.put(CHUNKED_UPLOAD_LOCAL_PATH, localPath);
+        cv.put(CHUNKED_UPLOAD_TRANSFER_ID, transferId);
+        cv.put(CHUNKED_UPLOAD_CHUNK_SIZE, chunkSize);
+        cv.put(CHUNKED_UPLOAD_FILE_SIZE, fileSize);
+        cv.put(CHUNKED_UPLOAD_FILE_MODIFIED, fileModified);
+        long result = mDB.insert(TABLE_CHUNKED_UPLOAD, null, cv);
+        Log_OC.d(TABLE_CHUNKED_UPLOAD, "putChunkedUpload returns with: " + result + " for file: " + localPath);
+        return result;
+    }
+
+    /**
+     * @param account       Name of the account where the file is uploaded.
+     * @param remotePath    Path of the file in the server.
+     * @param localPath     Path of the local file uploaded.
+     * @return              Cursor on the chunked upload of the local file to the remote path, if interrupted before.
+     */
+    public Cursor getChunkedUpload(String account, String remotePath, String localPath) {
+        return mDB.query(TABLE_CHUNKED_UPLOAD, null, CHUNKED_UPLOAD_ACCOUNT + "=? AND " + CHUNKED_UPLOAD_REMOTE_PATH
+                + "=? AND " + CHUNKED_UPLOAD_LOCAL_PATH + "=?", new String[] { account, remotePath, localPath }, null,
+                null, null);
+    }
+
+    /**
+     * Registers a chunk of a chunked upload as received by the server.
+     * 
+     * @param uploadId      Identifier of the upload in the journal.
+     * @param chunkIndex    Index of the chunk received by the server.
+     */
+    public boolean putUploadedChunk(long uploadId, long chunkIndex) {
+        ContentValues cv = new ContentValues();
+        cv.put("upload_id", uploadId);
+        cv.put("chunk_index", chunkIndex);
+        long result = mDB.insertWithOnConflict(TABLE_UPLOADED_CHUNK, null, cv, SQLiteDatabase.CONFLICT_IGNORE);
+        return result != -1;
+    }
+
+    /**
+     * @param uploadId      Identifier of the upload in the journal.
+     * @return              Indexes of the chunks of the upload already received by the server.
+     */
+    public Set<Long> getUploadedChunks(long uploadId) {
+        Set<Long> chunks = new HashSet<Long>();
+        Cursor c = mDB.query(TABLE_UPLOADED_CHUNK, new String[] { "chunk_index" }, "upload_id=?",
+                new String[] { String.valueOf(uploadId) }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                chunks.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return chunks;
+    }
+
+    /**
+     * Removes a chunked upload from the journal, with all its chunks.
+     * 
+     * @param uploadId      Identifier of the upload in the journal.
+     */
+    public void removeChunkedUpload(long uploadId) {
+        String[] whereArgs = new String[] { String.valueOf(uploadId) };
+        mDB.beginTransaction();
+        try {
+            mDB.delete(TABLE_UPLOADED_CHUNK, "upload_id=?", whereArgs);
+            long result = mDB.delete(TABLE_CHUNKED_UPLOAD, CHUNKED_UPLOAD_ID + "=?", whereArgs);
+            Log_OC.d(TABLE_CHUNKED_UPLOAD, "delete returns with: " + result + " for upload: " + uploadId);
+            mDB.setTransactionSuccessful();
+        } finally {
+            mDB.endTransaction();
+        }
+    }
+
+    /**
+     * Registers the version of a file being downloaded, in order to continue the download if interrupted.
+     * 
+     * @param account       Name of the account where the file is stored.
+     * @param remotePath    Path of the file in the server.
+     * @param etag          ETag of the version of the file downloaded, as received in the response header.
+     * @param fileSize      Full size of the version of the file downloaded; -1 if unknown.
+     */
+    public boolean putPartialDownload(String account, String remotePath, String etag, long fileSize) {
+        ContentValues cv = new ContentValues();
+        cv.put("account", account);
+        cv.put("remote_path", remotePath);
+        cv.put(PARTIAL_DOWNLOAD_ETAG, etag);
+        cv.put(PARTIAL_DOWNLOAD_FILE_SIZE, fileSize);
+        cv.put(PARTIAL_DOWNLOAD_UPDATED, System.currentTimeMillis());
+        long result = -1;
+        mDB.beginTransaction();
+        try {
+            mDB.delete(TABLE_PARTIAL_DOWNLOAD, "account=? AND remote_path=?", new String[] { account, remotePath });
+            result = mDB.insert(TABLE_PARTIAL_DOWNLOAD, null, cv);
+            mDB.setTransactionSuccessful();
+        } finally {
+            mDB.endTransaction();
+        }
+        Log_OC.d(TABLE_PARTIAL_DOWNLOAD, "putPartialDownload returns with: " + result + " for file: " + remotePath);
+        return result != -1;
+    }
+
+    /**
+     * @param account       Name of the account where the file is stored.
+     * @param remotePath    Path of the file in the server.
+     * @return              Cursor on the version of the file partially downloaded, if any.
+     */
+    public Cursor getPartialDownload(String account, String remotePath) {
+        return mDB.query(TABLE_PARTIAL_DOWNLOAD, null, "account=? AND remote_path=?", new String[] { account,
+                remotePath }, null, null, null);
+    }
+
+    /**
+     * Provides the partial downloads that won't be continued: not updated for a time, and whose download is not
+     * in the persistent queue of transfers.
+     * 
+     * @param updatedBefore     Time before the last update of the partial downloads provided, in milliseconds 
+     *                          since epoch.
+     * @return                  Cursor on the stale partial downloads.
+     */
+    public Cursor getStalePartialDownloads(long updatedBefore) {
+        return mDB.rawQuery("SELECT " + PARTIAL_DOWNLOAD_ACCOUNT + ", " + PARTIAL_DOWNLOAD_REMOTE_PATH + " FROM "
+                + TABLE_PARTIAL_DOWNLOAD + " p WHERE " + PARTIAL_DOWNLOAD_UPDATED + "<? AND NOT EXISTS (SELECT 1 FROM "
+                + TABLE_TRANSFER_QUEUE + " q WHERE q." + TRANSFER_TYPE + "=" + TRANSFER_TYPE_DOWNLOAD + " AND q."
+                + TRANSFER_ACCOUNT + "=p." + PARTIAL_DOWNLOAD_ACCOUNT + " AND q." + TRANSFER_REMOTE_PATH + "=p."
+                + PARTIAL_DOWNLOAD_REMOTE_PATH + ")", new String[] { String.valueOf(updatedBefore) });
+    }
+
+    /**
+     * Forgets the partial download of a file.
+     * 
+     * @param account       Name of the account where the file is stored.
+     * @param remotePath    Path of the file in the server.
+     */
+    public void removePartialDownload(String account, String remotePath) {
+        long result = mDB.delete(TABLE_PARTIAL_DOWNLOAD, "account=? AND remote_path=?", new String[] { account,
+                remotePath });
+        Log_OC.d(TABLE_PARTIAL_DOWNLOAD, "delete returns with: " + result + " for file: " + remotePath);
+    }
+
+    /**
+     * Adds an upload to the persistent queue of transfers, replacing any previous entry for the same file.
+     * 
+     * @param account           Name of the account where the file is uploaded.
+     * @param remotePath        Path of the file in the server.
+     * @param localPath         Path of the file to upload in the device.
+     * @param mimeType          MIME type of the file.
+     * @param forceOverwrite    'true' if the file in the server must be overwritten.
+     * @param instantUpload     'true' if the upload is an instant upload.
+     * @param localBehaviour    What to do with the local file after the upload, as defined in FileUploader.
+     * @param priority          Priority of the upload, {@link #TRANSFER_PRIORITY_USER} or {@link #TRANSFER_PRIORITY_BACKGROUND}.
+     */
+    public boolean putQueuedUpload(String account, String remotePath, String localPath, String mimeType,
+            boolean forceOverwrite, boolean instantUpload, int localBehaviour, int priority) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_TYPE, TRANSFER_TYPE_UPLOAD);
+        cv.put(TRANSFER_ACCOUNT, account);
+        cv.put(TRANSFER_REMOTE_PATH, remotePath);
+        cv.put(TRANSFER_LOCAL_PATH, localPath);
+        cv.put(TRANSFER_MIME_TYPE, mimeType);
+        cv.put(TRANSFER_FORCE_OVERWRITE, forceOverwrite ? 1 : 0);
+        cv.put(TRANSFER_INSTANT_UPLOAD, instantUpload ? 1 : 0);
+        cv.put(TRANSFER_LOCAL_BEHAVIOUR, localBehaviour);
+        cv.put(TRANSFER_PRIORITY, priority);
+        return putQueuedTransfer(cv);
+    }
+
+    /**
+     * Adds a download to the persistent queue of transfers, replacing any previous entry for the same file.
+     * 
+     * @param account           Name of the account where the file is stored.
+     * @param remotePath        Path of the file in the server.
+     * @param priority          Priority of the download, {@link #TRANSFER_PRIORITY_USER} or {@link #TRANSFER_PRIORITY_BACKGROUND}.
+     */
+    public boolean putQueuedDownload(String account, String remotePath, int priority) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_TYPE, TRANSFER_TYPE_DOWNLOAD);
+        cv.put(TRANSFER_ACCOUNT, account);
+        cv.put(TRANSFER_REMOTE_PATH, remotePath);
+        cv.put(TRANSFER_PRIORITY, priority);
+        return putQueuedTransfer(cv);
+    }
+
+    private boolean putQueuedTransfer(ContentValues cv) {
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_QUEUED);
+        cv.put(TRANSFER_ATTEMPTS, 0);
+        cv.put(TRANSFER_BYTES_DONE, 0);
+        cv.put(TRANSFER_NEXT_ATTEMPT, -1);
+        long result = -1;
+        mDB.beginTransaction();
+        try {
+            mDB.delete(TABLE_TRANSFER_QUEUE, TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT + "=? AND " + TRANSFER_REMOTE_PATH
+                    + "=?", new String[] { cv.getAsString(TRANSFER_TYPE), cv.getAsString(TRANSFER_ACCOUNT),
+                    cv.getAsString(TRANSFER_REMOTE_PATH) });
+            result = mDB.insert(TABLE_TRANSFER_QUEUE, null, cv);
+            mDB.setTransactionSuccessful();
+        } finally {
+            mDB.endTransaction();
+        }
+        Log_OC.d(TABLE_TRANSFER_QUEUE, "putQueuedTransfer returns with: " + result + " for file: "
+                + cv.getAsString(TRANSFER_REMOTE_PATH));
+        return result != -1;
+    }
+
+    /**
+     * Provides the transfers of a type that were queued or in progress when the process finished, in the order they
+     * should be started: higher priority first, older first.
+     * 
+     * @param transferType      {@link #TRANSFER_TYPE_UPLOAD} or {@link #TRANSFER_TYPE_DOWNLOAD}.
+     * @return                  Cursor on the pending transfers.
+     */
+    public Cursor getQueuedTransfers(int transferType) {
+        return mDB.query(TABLE_TRANSFER_QUEUE, null, TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + "<>?", new String[] {
+                String.valueOf(transferType), String.valueOf(TRANSFER_STATE_FAILED) }, null, null, TRANSFER_PRIORITY
+                + " DESC, " + TRANSFER_ID + " ASC");
+    }
+
+    /**
+     * Marks a transfer as started, counting a new attempt.
+     */
+    public void updateTransferStarted(int transferType, String account, String remotePath) {
+        mDB.execSQL("UPDATE " + TABLE_TRANSFER_QUEUE + " SET " + TRANSFER_STATE + "=" + TRANSFER_STATE_IN_PROGRESS + ", "
+                + TRANSFER_ATTEMPTS + "=" + TRANSFER_ATTEMPTS + "+1 WHERE " + TRANSFER_TYPE + "=? AND "
+                + TRANSFER_ACCOUNT + "=? AND " + TRANSFER_REMOTE_PATH + "=?", new Object[] { transferType, account,
+                remotePath });
+    }
+
+    /**
+     * Returns to the queue the failed transfers of a type whose time to be retried arrived, so that they are 
+     * provided by {@link #getQueuedTransfers(int)}.
+     * 
+     * @param transferType      {@link #TRANSFER_TYPE_UPLOAD} or {@link #TRANSFER_TYPE_DOWNLOAD}.
+     * @param now               Current time, in milliseconds since epoch.
+     * @return                  Number of transfers returned to the queue.
+     */
+    public int requeueTransfersToRetry(int transferType, long now) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_QUEUED);
+        cv.put(TRANSFER_NEXT_ATTEMPT, -1);
+        int result = mDB.update(TABLE_TRANSFER_QUEUE, cv, TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + "=? AND "
+                + TRANSFER_NEXT_ATTEMPT + ">=0 AND " + TRANSFER_NEXT_ATTEMPT + "<=?", new String[] {
+                String.valueOf(transferType), String.valueOf(TRANSFER_STATE_FAILED), String.valueOf(now) });
+        Log_OC.d(TABLE_TRANSFER_QUEUE, "requeueTransfersToRetry returns with: " + result);
+        return result;
+    }
+
+    /**
+     * @param transferType      {@link #TRANSFER_TYPE_UPLOAD} or {@link #TRANSFER_TYPE_DOWNLOAD}.
+     * @return                  Earliest time when a failed transfer of the type must be tried again, in milliseconds
+     *                          since epoch; -1 if no transfer is waiting to be retried.
+     */
+    public long getNextRetryTime(int transferType) {
+        long result = -1;
+        Cursor c = mDB.rawQuery("SELECT MIN(" + TRANSFER_NEXT_ATTEMPT + ") FROM " + TABLE_TRANSFER_QUEUE + " WHERE "
+                + TRANSFER_TYPE + "=? AND " + TRANSFER_STATE + "=? AND " + TRANSFER_NEXT_ATTEMPT + ">=0", new String[] {
+                String.valueOf(transferType), String.valueOf(TRANSFER_STATE_FAILED) });
+        try {
+            if (c.moveToFirst() && !c.isNull(0)) {
+                result = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return      Number of times the transfer was started since it was queued; 0 if it's not in the queue.
+     */
+    public int getTransferAttempts(int transferType, String account, String remotePath) {
+        int result = 0;
+        Cursor c = mDB.query(TABLE_TRANSFER_QUEUE, new String[] { TRANSFER_ATTEMPTS }, TRANSFER_TYPE + "=? AND "
+                + TRANSFER_ACCOUNT + "=? AND " + TRANSFER_REMOTE_PATH + "=?", new String[] {
+                String.valueOf(transferType), account, remotePath }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                result = c.getInt(0);
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    /**
+     * Marks a transfer as failed. Failed transfers are not restored when the process starts again, unless 
+     * their time to be retried arrived. Transfers that won't be tried again are removed from the queue.
+     * 
+     * @param bytesDone     Bytes transferred before the failure.
+     * @param lastError     Description of the error.
+     * @param nextAttempt   Time when the transfer must be tried again, in milliseconds since epoch; -1 if never.
+     */
+    public void updateTransferFailed(int transferType, String account, String remotePath, long bytesDone, 
+            String lastError, long nextAttempt) {
+        if (nextAttempt < 0) {
+            Log_OC.d(TABLE_TRANSFER_QUEUE, "Given up " + remotePath + " after error " + lastError);
+            removeQueuedTransfer(transferType, account, remotePath);
+            return;
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_FAILED);
+        cv.put(TRANSFER_BYTES_DONE, bytesDone);
+        cv.put(TRANSFER_LAST_ERROR, lastError);
+        cv.put(TRANSFER_NEXT_ATTEMPT, nextAttempt);
+        int result = mDB.update(TABLE_TRANSFER_QUEUE, cv, TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT + "=? AND "
+                + TRANSFER_REMOTE_PATH + "=?", new String[] { String.valueOf(transferType), account, remotePath });
+        Log_OC.d(TABLE_TRANSFER_QUEUE, "updateTransferFailed returns with: " + result + " for file: " + remotePath);
+    }
+
+    /**
+     * Removes a transfer from the persistent queue, when finished or cancelled.
+     */
+    public void removeQueuedTransfer(int transferType, String account, String remotePath) {
+        long result = mDB.delete(TABLE_TRANSFER_QUEUE, TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT + "=? AND "
+                + TRANSFER_REMOTE_PATH + "=?", new String[] { String.valueOf(transferType), account, remotePath });
+        Log_OC.d(TABLE_TRANSFER_QUEUE, "delete returns with: " + result + " for file: " + remotePath);
+    }
+
     private class OpenerHelper extends SQLiteOpenHelper {
         public OpenerHelper(Context context) {
             super(context, mDatabaseName, null, mDatabaseVersion);
@@ -104,6 +488,9 @@ public class DbHandler {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_INSTANT_UPLOAD + " (" + " _id INTEGER PRIMARY KEY, " + " path TEXT,"
                     + " account TEXT,attempt INTEGER,message TEXT);");
+            createChunkedUploadTables(db);
+            createPartialDownloadTable(db);
+            createTransferQueueTable(db);
         }
 
         @Override
@@ -111,8 +498,52 @@ public class DbHandler {
             if (oldVersion < 2) {
                 db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN attempt INTEGER;");
             }
-            db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            }
+            if (oldVersion < 4) {
+                createChunkedUploadTables(db);
+            }
+            if (oldVersion < 5) {
+                createPartialDownloadTable(db);
+            }
+            if (oldVersion < 6) {
+                createTransferQueueTable(db);
+            } else if (oldVersion < 7) {
+                db.execSQL("ALTER TABLE " + TABLE_TRANSFER_QUEUE + " ADD COLUMN " + TRANSFER_NEXT_ATTEMPT + " INTEGER;");
+            }
+            if (oldVersion >= 5 && oldVersion < 8) {
+                db.execSQL("ALTER TABLE " + TABLE_PARTIAL_DOWNLOAD + " ADD COLUMN " + PARTIAL_DOWNLOAD_UPDATED + " INTEGER;");
+                db.execSQL("UPDATE " + TABLE_PARTIAL_DOWNLOAD + " SET " + PARTIAL_DOWNLOAD_UPDATED + "=" 
+                        + System.currentTimeMillis() + ";");
+            }
+
+        }
+
+        private void createChunkedUploadTables(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CHUNKED_UPLOAD + " (" + CHUNKED_UPLOAD_ID + " INTEGER PRIMARY KEY, "
+                    + CHUNKED_UPLOAD_ACCOUNT + " TEXT, " + CHUNKED_UPLOAD_REMOTE_PATH + " TEXT, "
+                    + CHUNKED_UPLOAD_LOCAL_PATH + " TEXT, " + CHUNKED_UPLOAD_TRANSFER_ID + " INTEGER, "
+                    + CHUNKED_UPLOAD_CHUNK_SIZE + " INTEGER, " + CHUNKED_UPLOAD_FILE_SIZE + " INTEGER, "
+                    + CHUNKED_UPLOAD_FILE_MODIFIED + " INTEGER);");
+            db.execSQL("CREATE TABLE " + TABLE_UPLOADED_CHUNK + " (upload_id INTEGER, chunk_index INTEGER, "
+                    + "PRIMARY KEY (upload_id, chunk_index));");
+        }
+
+        private void createPartialDownloadTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_PARTIAL_DOWNLOAD + " (_id INTEGER PRIMARY KEY, account TEXT, "
+                    + "remote_path TEXT, " + PARTIAL_DOWNLOAD_ETAG + " TEXT, " + PARTIAL_DOWNLOAD_FILE_SIZE
+                    + " INTEGER, " + PARTIAL_DOWNLOAD_UPDATED + " INTEGER);");
+        }
 
+        private void createTransferQueueTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_TRANSFER_QUEUE + " (" + TRANSFER_ID + " INTEGER PRIMARY KEY, "
+                    + TRANSFER_TYPE + " INTEGER, " + TRANSFER_ACCOUNT + " TEXT, " + TRANSFER_REMOTE_PATH + " TEXT, "
+                    + TRANSFER_LOCAL_PATH + " TEXT, " + TRANSFER_MIME_TYPE + " TEXT, " + TRANSFER_FORCE_OVERWRITE
+                    + " INTEGER, " + TRANSFER_INSTANT_UPLOAD + " INTEGER, " + TRANSFER_LOCAL_BEHAVIOUR + " INTEGER, "
+                    + TRANSFER_STATE + " INTEGER, " + TRANSFER_PRIORITY + " INTEGER, " + TRANSFER_ATTEMPTS
+                    + " INTEGER, " + TRANSFER_BYTES_DONE + " INTEGER, " + TRANSFER_LAST_ERROR + " TEXT, "
+                    + TRANSFER_NEXT_ATTEMPT + " INTEGER);");
         }
     }
 }
@@ -31,7 +31,7 @@ public class ProviderMeta {
     public static final String AUTHORITY_FILES = "org.owncloud";
     public static final String DB_FILE = "owncloud.db";
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 4;
+    public static final int DB_VERSION = 8;
 
     private ProviderMeta() {
     }
@@ -44,6 +44,8 @@ public class ProviderMeta {
                 + AUTHORITY_FILES + "/file");
         public static final Uri CONTENT_URI_DIR = Uri.parse("content://"
                 + AUTHORITY_FILES + "/dir");
+        public static final Uri CONTENT_URI_SIZES = Uri.parse("content://"
+                + AUTHORITY_FILES + "/sizes");
 
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.owncloud.file";
         public static final String CONTENT_TYPE_ITEM = "vnd.android.cursor.item/vnd.owncloud.file";
@@ -61,9 +63,38 @@ public class ProviderMeta {
         public static final String FILE_LAST_SYNC_DATE = "last_sync_date";  // _for_properties, but let's keep it as it is
         public static final String FILE_LAST_SYNC_DATE_FOR_DATA = "last_sync_date_for_data";
         public static final String FILE_KEEP_IN_SYNC = "keep_in_sync";
+        public static final String FILE_ETAG = "etag";
+        public static final String FILE_CHECKSUM = "content_checksum";
 
         public static final String DEFAULT_SORT_ORDER = FILE_NAME
                 + " collate nocase asc";
 
+        /*
+         * Query parameters accepted by the provider in queries to CONTENT_URI, CONTENT_URI_FILE and CONTENT_URI_DIR,
+         * to filter and sort the files in the database instead of in the callers. 
+         */
+        
+        /** Only files with a MIME type starting with the value of the parameter; e.g.: "image/" */
+        public static final String QUERY_MIMETYPE_PREFIX = "mimetype_prefix";
+        
+        /** With QUERY_MIMETYPE_PREFIX, "1" also selects files with no specific MIME type, to check by name in the caller */
+        public static final String QUERY_INCLUDE_UNKNOWN_MIMETYPE = "include_unknown_mimetype";
+        
+        /** "1" selects only files kept in sync, "0" only files not kept in sync */
+        public static final String QUERY_KEEP_IN_SYNC = "keep_in_sync";
+        
+        /** "1" selects only files with a local copy, "0" only files without it */
+        public static final String QUERY_DOWNLOADED = "downloaded";
+        
+        /** Sorts folders first, then the files by the value of the parameter: SORT_BY_NAME, SORT_BY_SIZE or SORT_BY_MODIFIED */
+        public static final String QUERY_SORT = "sort";
+        
+        /** With QUERY_SORT, "1" sorts in descending order */
+        public static final String QUERY_SORT_DESCENDING = "descending";
+        
+        public static final String SORT_BY_NAME = "name";
+        public static final String SORT_BY_SIZE = "size";
+        public static final String SORT_BY_MODIFIED = "modified";
+
     }
 }
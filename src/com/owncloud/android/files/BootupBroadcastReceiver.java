@@ -19,7 +19,9 @@
 package com.owncloud.android.files;
 
 import com.owncloud.android.Log_OC;
+import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileObserverService;
+import com.owncloud.android.files.services.FileUploader;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -40,6 +42,14 @@ public class BootupBroadcastReceiver extends BroadcastReceiver {
         i.putExtra(FileObserverService.KEY_FILE_CMD,
                    FileObserverService.CMD_INIT_OBSERVED_LIST);
         context.startService(i);
+        
+        Log_OC.d(TAG, "Resuming queued transfers...");
+        Intent uploads = new Intent(context, FileUploader.class);
+        uploads.setAction(FileUploader.ACTION_RESUME_UPLOADS);
+        context.startService(uploads);
+        Intent downloads = new Intent(context, FileDownloader.class);
+        downloads.setAction(FileDownloader.ACTION_RESUME_DOWNLOADS);
+        context.startService(downloads);
         Log_OC.d(TAG, "DONE");
     }
 
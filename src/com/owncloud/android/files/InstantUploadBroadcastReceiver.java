@@ -19,6 +19,8 @@
 package com.owncloud.android.files;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.owncloud.android.authentication.AccountAuthenticator;
 import com.owncloud.android.authentication.AccountUtils;
@@ -29,7 +31,6 @@ import android.accounts.Account;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo.State;
@@ -53,25 +54,11 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
             handleConnectivityAction(context, intent);
         } else if (intent.getAction().equals(NEW_PHOTO_ACTION)) {
             handleNewPhotoAction(context, intent);
-        } else if (intent.getAction().equals(FileUploader.UPLOAD_FINISH_MESSAGE)) {
-            handleUploadFinished(context, intent);
         } else {
             Log_OC.e(TAG, "Incorrect intent sent: " + intent.getAction());
         }
     }
 
-    private void handleUploadFinished(Context context, Intent intent) {
-        // remove successfull uploading, ignore rest for reupload on reconnect
-        if (intent.getBooleanExtra(FileUploader.EXTRA_UPLOAD_RESULT, false)) {
-            DbHandler db = new DbHandler(context);
-            String localPath = intent.getStringExtra(FileUploader.EXTRA_OLD_FILE_PATH);
-            if (!db.removeIUPendingFile(localPath)) {
-                Log_OC.w(TAG, "Tried to remove non existing instant upload file " + localPath);
-            }
-            db.close();
-        }
-    }
-
     private void handleNewPhotoAction(Context context, Intent intent) {
         if (!instantUploadEnabled(context)) {
             Log_OC.d(TAG, "Instant upload disabled, abording uploading");
@@ -98,26 +85,15 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
         c.close();
         Log_OC.e(TAG, file_path + "");
 
-        // same always temporally the picture to upload
-        DbHandler db = new DbHandler(context);
-        db.putFileForLater(file_path, account.name, null);
-        db.close();
-
         if (!isOnline(context) || (instantUploadViaWiFiOnly(context) && !isConnectedViaWiFi(context))) {
+            // saved until the connection is available; then it's handed to the FileUploader
+            DbHandler db = new DbHandler(context);
+            db.putFileForLater(file_path, account.name, null);
+            db.close();
             return;
         }
 
-        // register for upload finishe message
-        // there is a litte problem with android API, we can register for
-        // particular
-        // intent in registerReceiver but we cannot unregister from precise
-        // intent
-        // we can unregister from entire listenings but thats suck a bit.
-        // On the other hand this might be only for dynamicly registered
-        // broadcast receivers, needs investigation.
-        IntentFilter filter = new IntentFilter(FileUploader.UPLOAD_FINISH_MESSAGE);
-        context.getApplicationContext().registerReceiver(this, filter);
-
+        // once started, failures are retried by FileUploader from the persistent queue of transfers
         Intent i = new Intent(context, FileUploader.class);
         i.putExtra(FileUploader.KEY_ACCOUNT, account);
         i.putExtra(FileUploader.KEY_LOCAL_FILE, file_path);
@@ -138,11 +114,11 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
         if (!intent.hasExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY)
                 && isOnline(context)
                 && (!instantUploadViaWiFiOnly(context) || (instantUploadViaWiFiOnly(context) == isConnectedViaWiFi(context) == true))) {
+            /// pictures taken while there was no valid connection are handed now to the FileUploader 
             DbHandler db = new DbHandler(context);
+            List<String> handedPaths = new ArrayList<String>();
             Cursor c = db.getAwaitingFiles();
             if (c.moveToFirst()) {
-                IntentFilter filter = new IntentFilter(FileUploader.UPLOAD_FINISH_MESSAGE);
-                context.getApplicationContext().registerReceiver(this, filter);
                 do {
                     String account_name = c.getString(c.getColumnIndex("account"));
                     String file_path = c.getString(c.getColumnIndex("path"));
@@ -172,10 +148,19 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
                     } else {
                         Log_OC.w(TAG, "Instant upload file " + f.getAbsolutePath() + " dont exist anymore");
                     }
+                    handedPaths.add(file_path);
                 } while (c.moveToNext());
             }
             c.close();
+            for (String path : handedPaths) {
+                db.removeIUPendingFile(path);
+            }
             db.close();
+            
+            /// failed uploads waiting for their next retry don't need to wait more
+            Intent retryIntent = new Intent(context, FileUploader.class);
+            retryIntent.setAction(FileUploader.ACTION_RETRY_UPLOADS);
+            context.startService(retryIntent);
         }
 
     }
@@ -20,75 +20,148 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.files.services.TransferProgressAggregator.OnProgressSampleListener;
+import com.owncloud.android.files.services.TransferProgressAggregator.TransferProgress;
 import eu.alefzero.webdav.OnDatatransferProgressListener;
 
 import com.owncloud.android.network.OwnCloudClientUtils;
 import com.owncloud.android.operations.DownloadFileOperation;
 import com.owncloud.android.operations.RemoteOperationResult;
+import com.owncloud.android.operations.RetryPolicy;
 import com.owncloud.android.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.preview.PreviewImageActivity;
 import com.owncloud.android.ui.preview.PreviewImageFragment;
+import com.owncloud.android.utils.FileStorageUtils;
 
 import android.accounts.Account;
 import android.accounts.AccountsException;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
+import android.preference.PreferenceManager;
 import android.widget.RemoteViews;
 
 import com.owncloud.android.Log_OC;
 import com.owncloud.android.R;
 import eu.alefzero.webdav.WebdavClient;
 
-public class FileDownloader extends Service implements OnDatatransferProgressListener {
+public class FileDownloader extends Service {
     
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
+    public static final String EXTRA_SYNC_DOWNLOAD = "SYNC_DOWNLOAD";
+    
+    /** Action of the intents starting the service only to resume the downloads queued in the persistent queue of transfers */
+    public static final String ACTION_RESUME_DOWNLOADS = "RESUME_DOWNLOADS";
     
     public static final String DOWNLOAD_ADDED_MESSAGE = "DOWNLOAD_ADDED";
     public static final String DOWNLOAD_FINISH_MESSAGE = "DOWNLOAD_FINISH";
+    public static final String DOWNLOAD_PROGRESS_MESSAGE = "DOWNLOAD_PROGRESS";
+    public static final String EXTRA_DOWNLOADS_IN_PROGRESS = "DOWNLOADS_IN_PROGRESS";
+    public static final String EXTRA_BYTES_TRANSFERRED = "BYTES_TRANSFERRED";
+    public static final String EXTRA_BYTES_TO_TRANSFER = "BYTES_TO_TRANSFER";
     public static final String EXTRA_DOWNLOAD_RESULT = "RESULT";    
     public static final String EXTRA_FILE_PATH = "FILE_PATH";
     public static final String EXTRA_REMOTE_PATH = "REMOTE_PATH";
     public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
     
+    /** 
+     * Key of the preference with the maximum number of downloads in progress at the same time, for all the accounts.
+     */
+    public static final String PREF_PARALLEL_DOWNLOADS = "download_parallel_transfers";
+    
+    /** 
+     * Key of the preference with the maximum number of downloads in progress at the same time for a single account.
+     */
+    public static final String PREF_PARALLEL_DOWNLOADS_PER_ACCOUNT = "download_parallel_transfers_per_account";
+    
+    private static final int DEFAULT_PARALLEL_DOWNLOADS = 3;
+    private static final int DEFAULT_PARALLEL_DOWNLOADS_PER_ACCOUNT = 2;
+    
+    /** Time since the last update after which a partial download out of the queue is deleted: one week. */
+    private static final long PARTIAL_DOWNLOAD_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+    
     private static final String TAG = "FileDownloader";
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
     private IBinder mBinder;
-    private WebdavClient mDownloadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private Map<String, WebdavClient> mDownloadClients = new HashMap<String, WebdavClient>();
     
     private ConcurrentMap<String, DownloadFileOperation> mPendingDownloads = new ConcurrentHashMap<String, DownloadFileOperation>();
-    private DownloadFileOperation mCurrentDownload = null;
+    
+    /** Workers performing the downloads */
+    private ExecutorService mDownloadExecutor;
+    
+    /** Worker restoring the downloads from the persistent queue of transfers, out of the main thread */
+    private ExecutorService mRestoreExecutor;
+    
+    /** Number of restorations from the persistent queue requested and not finished yet */
+    private int mPendingRestores = 0;
+    
+    /** Keys of the downloads requested by the user, waiting for a free worker */
+    private LinkedList<String> mUserQueue = new LinkedList<String>();
+    
+    /** Keys of the downloads requested by synchronizations, waiting for a free worker */
+    private LinkedList<String> mSyncQueue = new LinkedList<String>();
+    
+    /** Downloads in progress, by key */
+    private Map<String, DownloadFileOperation> mRunningDownloads = new HashMap<String, DownloadFileOperation>();
+    
+    /** Number of downloads in progress, by account name */
+    private Map<String, Integer> mRunningDownloadsPerAccount = new HashMap<String, Integer>();
+    
+    /** Guards the queues and the downloads in progress */
+    private final Object mSchedulerLock = new Object();
+    
+    /** 'true' when the last download started was taken from the queue of downloads requested by the user */
+    private boolean mLastStartedFromUserQueue = false;
+    
+    private int mMaxParallelDownloads;
+    private int mMaxParallelDownloadsPerAccount;
+    private int mLastStartId;
+    
+    /** Database with the registry of partial downloads, shared by all the workers */
+    private DbHandler mDb = null;
+    
+    /** Source of the random part of the delays before retrying failed downloads */
+    private final Random mRandom = new Random();
     
     private NotificationManager mNotificationManager;
-    private Notification mNotification;
-    private int mLastPercent;
+    
+    /** Collects the progress of all the downloads to show it in a single status notification */
+    private TransferProgressAggregator mProgressAggregator;
+    
+    /** Status notification showing the progress of all the downloads; only accessed from the main thread */
+    private Notification mProgressNotification = null;
+    
+    /** Intent to show the details of the last file whose download was started, when the status notification is touched */
+    private volatile PendingIntent mProgressIntent = null;
     
     
     /**
@@ -104,17 +177,49 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     
     /**
      * Service initialization
+     * 
+     * The number of downloads performed in parallel is read from the preferences {@link #PREF_PARALLEL_DOWNLOADS}
+     * and {@link #PREF_PARALLEL_DOWNLOADS_PER_ACCOUNT}, limited by {@link OwnCloudClientUtils#MAX_CONNECTIONS}.
+     * 
+     * The downloads queued or in progress when the process finished are restored from the persistent queue of transfers,
+     * out of the main thread.
      */
     @Override
     public void onCreate() {
         super.onCreate();
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        
+        mMaxParallelDownloads = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).
+                getInt(PREF_PARALLEL_DOWNLOADS, DEFAULT_PARALLEL_DOWNLOADS);
+        mMaxParallelDownloads = Math.max(1, Math.min(mMaxParallelDownloads, OwnCloudClientUtils.MAX_CONNECTIONS));
+        mMaxParallelDownloadsPerAccount = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).
+                getInt(PREF_PARALLEL_DOWNLOADS_PER_ACCOUNT, DEFAULT_PARALLEL_DOWNLOADS_PER_ACCOUNT);
+        mMaxParallelDownloadsPerAccount = Math.max(1, Math.min(mMaxParallelDownloadsPerAccount, mMaxParallelDownloads));
+        
+        mDownloadExecutor = Executors.newFixedThreadPool(mMaxParallelDownloads);
+        mRestoreExecutor = Executors.newSingleThreadExecutor();
         mBinder = new FileDownloaderBinder();
+        mProgressAggregator = new TransferProgressAggregator(new Handler(), new DownloadProgressSampleListener());
+        startRestoringQueuedDownloads();
+    }
+    
+    
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        mRestoreExecutor.shutdown();
+        mDownloadExecutor.shutdown();
+        mProgressAggregator.stop();
+        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+        synchronized (this) {
+            if (mDb != null) {
+                mDb.close();
+                mDb = null;
+            }
+        }
+        super.onDestroy();
     }
 
     /**
@@ -122,9 +227,24 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      * 
      * New downloads are added calling to startService(), resulting in a call to this method. This ensures the service will keep on working 
      * although the caller activity goes away.
+     * 
+     * The service is restarted by the system if the process is killed while there are pending downloads; then, 
+     * or when started with {@link #ACTION_RESUME_DOWNLOADS}, only the downloads restored from the persistent queue 
+     * of transfers are started. Failed downloads waiting to be retried are started with {@link #ACTION_RESUME_DOWNLOADS}
+     * when their time comes.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || ACTION_RESUME_DOWNLOADS.equals(intent.getAction())) {
+            if (intent != null) {
+                startRestoringQueuedDownloads();    // the service could be already running; new retries could be due
+            }
+            synchronized (mSchedulerLock) {
+                mLastStartId = startId;
+            }
+            scheduleDownloads();
+            return START_STICKY;
+        }
         if (    !intent.hasExtra(EXTRA_ACCOUNT) ||
                 !intent.hasExtra(EXTRA_FILE)
                 /*!intent.hasExtra(EXTRA_FILE_PATH) ||
@@ -135,30 +255,161 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         }
         Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
         OCFile file = intent.getParcelableExtra(EXTRA_FILE);
+        boolean syncDownload = intent.getBooleanExtra(EXTRA_SYNC_DOWNLOAD, false);
         
-        AbstractList<String> requestedDownloads = new Vector<String>(); // dvelasco: now this always contains just one element, but that can change in a near future (download of multiple selection)
-        String downloadKey = buildRemoteName(account, file);
         try {
-            DownloadFileOperation newDownload = new DownloadFileOperation(account, file); 
-            mPendingDownloads.putIfAbsent(downloadKey, newDownload);
-            newDownload.addDatatransferProgressListener(this);
-            newDownload.addDatatransferProgressListener((FileDownloaderBinder)mBinder);
-            requestedDownloads.add(downloadKey);
-            sendBroadcastNewDownload(newDownload);
+            enqueueDownload(account, file, syncDownload, true);
             
         } catch (IllegalArgumentException e) {
             Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
             return START_NOT_STICKY;
         }
         
-        if (requestedDownloads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedDownloads;
-            mServiceHandler.sendMessage(msg);
+        synchronized (mSchedulerLock) {
+            mLastStartId = startId;
         }
+        scheduleDownloads();
 
-        return START_NOT_STICKY;
+        return START_STICKY;
+    }
+    
+    
+    /**
+     * Adds a download to the queue of downloads, unless the same file is already queued or in progress.
+     * 
+     * @param account       ownCloud account where the file is stored.
+     * @param file          File to download.
+     * @param syncDownload  'true' if the download was requested by a synchronization.
+     * @param persist       'true' if the download must be saved in the persistent queue of transfers;
+     *                      'false' when it's restored from there.
+     */
+    private void enqueueDownload(Account account, OCFile file, boolean syncDownload, boolean persist) {
+        String downloadKey = buildRemoteName(account, file);
+        DownloadFileOperation newDownload = new DownloadFileOperation(account, file); 
+        if (mPendingDownloads.putIfAbsent(downloadKey, newDownload) == null) {
+            if (persist) {
+                getDbHandler().putQueuedDownload(account.name, file.getRemotePath(), 
+                        (syncDownload ? DbHandler.TRANSFER_PRIORITY_BACKGROUND : DbHandler.TRANSFER_PRIORITY_USER));
+            }
+            synchronized (mSchedulerLock) {
+                if (syncDownload) {
+                    mSyncQueue.add(downloadKey);
+                } else {
+                    mUserQueue.add(downloadKey);
+                }
+            }
+            sendBroadcastNewDownload(newDownload);
+        }
+    }
+    
+    
+    /**
+     * Restores the queued downloads with {@link #restoreQueuedDownloads()} in the restoring worker, so that the 
+     * accesses to the database don't block the main thread, and starts them when done.
+     * 
+     * The service is not stopped while restorations are pending.
+     */
+    private void startRestoringQueuedDownloads() {
+        synchronized (mSchedulerLock) {
+            mPendingRestores++;
+        }
+        mRestoreExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    restoreQueuedDownloads();
+                } finally {
+                    synchronized (mSchedulerLock) {
+                        mPendingRestores--;
+                    }
+                    scheduleDownloads();
+                }
+            }
+        });
+    }
+    
+    
+    /**
+     * Adds to the queues the downloads that were queued or in progress when the process finished, and the failed 
+     * downloads whose time to be retried arrived, in order to resume them as soon as the service is started.
+     * 
+     * Downloads of files or accounts not existing anymore are removed from the persistent queue of transfers.
+     */
+    private void restoreQueuedDownloads() {
+        DbHandler db = getDbHandler();
+        db.requeueTransfersToRetry(DbHandler.TRANSFER_TYPE_DOWNLOAD, System.currentTimeMillis());
+        Cursor c = db.getQueuedTransfers(DbHandler.TRANSFER_TYPE_DOWNLOAD);
+        try {
+            while (c.moveToNext()) {
+                String accountName = c.getString(c.getColumnIndex(DbHandler.TRANSFER_ACCOUNT));
+                String remotePath = c.getString(c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH));
+                Account account = AccountUtils.getOwnCloudAccountByName(this, accountName);
+                OCFile file = null;
+                if (account != null) {
+                    file = new FileDataStorageManager(account, getContentResolver()).getFileByPath(remotePath);
+                }
+                if (file == null) {
+                    db.removeQueuedTransfer(DbHandler.TRANSFER_TYPE_DOWNLOAD, accountName, remotePath);
+                } else {
+                    boolean syncDownload = 
+                            (c.getInt(c.getColumnIndex(DbHandler.TRANSFER_PRIORITY)) == DbHandler.TRANSFER_PRIORITY_BACKGROUND);
+                    enqueueDownload(account, file, syncDownload, false);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log_OC.i(TAG, "Downloads restored from the persistent queue: " + mPendingDownloads.size());
+        scheduleRetries();
+        removeStalePartialDownloads();
+    }
+    
+    
+    /**
+     * Deletes the temporal files of the partial downloads that won't be continued: not in the persistent queue 
+     * of transfers, and not updated for {@link #PARTIAL_DOWNLOAD_MAX_AGE} milliseconds.
+     */
+    private void removeStalePartialDownloads() {
+        DbHandler db = getDbHandler();
+        List<String[]> stale = new ArrayList<String[]>();
+        Cursor c = db.getStalePartialDownloads(System.currentTimeMillis() - PARTIAL_DOWNLOAD_MAX_AGE);
+        try {
+            while (c.moveToNext()) {
+                stale.add(new String[] { c.getString(c.getColumnIndex(DbHandler.PARTIAL_DOWNLOAD_ACCOUNT)), 
+                        c.getString(c.getColumnIndex(DbHandler.PARTIAL_DOWNLOAD_REMOTE_PATH)) });
+            }
+        } finally {
+            c.close();
+        }
+        for (String[] partial : stale) {
+            File tmpFile = new File(FileStorageUtils.getTemporalPath(partial[0]) + partial[1]);
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+            db.removePartialDownload(partial[0], partial[1]);
+        }
+        if (!stale.isEmpty()) {
+            Log_OC.i(TAG, "Stale partial downloads removed: " + stale.size());
+        }
+    }
+    
+    
+    /**
+     * Sets an alarm to start the service with {@link #ACTION_RESUME_DOWNLOADS} when the next failed download must be 
+     * retried, or cancels it if no download is waiting to be retried.
+     */
+    private void scheduleRetries() {
+        long nextRetry = getDbHandler().getNextRetryTime(DbHandler.TRANSFER_TYPE_DOWNLOAD);
+        Intent resumeIntent = new Intent(this, FileDownloader.class);
+        resumeIntent.setAction(ACTION_RESUME_DOWNLOADS);
+        PendingIntent pendingIntent = PendingIntent.getService(this, 0, resumeIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        if (nextRetry < 0) {
+            alarmManager.cancel(pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, nextRetry, pendingIntent);
+            Log_OC.d(TAG, "Next retry of failed downloads in " + (nextRetry - System.currentTimeMillis()) + " ms");
+        }
     }
     
     
@@ -188,17 +439,19 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      * 
      *  It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
         
         /** 
          * Map of listeners that will be reported about progress of downloads from a {@link FileDownloaderBinder} instance 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
         
         
         /**
          * Cancels a pending or current download of a remote file.
          * 
+         * Pending downloads are just removed from the queue; downloads in progress are aborted.
+         * 
          * @param account       Owncloud account where the remote file is stored.
          * @param file          A file in the queue of pending downloads
          */
@@ -209,6 +462,7 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             }
             if (download != null) {
                 download.cancel();
+                getDbHandler().removeQueuedTransfer(DbHandler.TRANSFER_TYPE_DOWNLOAD, account.name, file.getRemotePath());
             }
         }
         
@@ -275,17 +529,14 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate) {
-            // old way, should not be in use any more
-        }
-
-
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
+        /**
+         * Reports the progress of a download to the listener bound for it, if any.
+         * 
+         * @param downloadKey   Key of the download in progress, as built by {@link FileDownloader#buildRemoteName(Account, OCFile)}
+         */
+        private void onTransferProgress(String downloadKey, long progressRate, long totalTransferredSoFar, long totalToTransfer,
                 String fileName) {
-            String key = buildRemoteName(mCurrentDownload.getAccount(), mCurrentDownload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
+            OnDatatransferProgressListener boundListener = mBoundListeners.get(downloadKey);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
@@ -294,32 +545,151 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     }
     
     
-    /** 
-     * Download worker. Performs the pending downloads in the order they were requested. 
+    /**
+     * Starts as many pending downloads as allowed by the limits of parallel downloads.
      * 
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}. 
+     * Downloads requested by the user and downloads requested by synchronizations are started alternately
+     * when there are both kinds waiting, so that neither of them blocks the other. Downloads for accounts 
+     * that already reached their limit of parallel downloads wait without blocking the downloads of other 
+     * accounts.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a possible memory leak
-        FileDownloader mService;
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+    private void scheduleDownloads() {
+        synchronized (mSchedulerLock) {
+            while (mRunningDownloads.size() < mMaxParallelDownloads) {
+                String downloadKey = pollNextDownload();
+                if (downloadKey == null) {
+                    break;
+                }
+                DownloadFileOperation download = mPendingDownloads.get(downloadKey);
+                mRunningDownloads.put(downloadKey, download);
+                String accountName = download.getAccount().name;
+                Integer running = mRunningDownloadsPerAccount.get(accountName);
+                mRunningDownloadsPerAccount.put(accountName, (running == null) ? 1 : running + 1);
+                mDownloadExecutor.execute(new DownloadTask(downloadKey, download));
+            }
+            
+            if (mRunningDownloads.isEmpty() && mUserQueue.isEmpty() && mSyncQueue.isEmpty() && mPendingRestores == 0) {
+                stopSelf(mLastStartId);
+            }
         }
+    }
 
-        @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    mService.downloadFile(it.next());
+
+    /**
+     * Takes the next download to start from the waiting queues, alternating between them.
+     * 
+     * Must be called with mSchedulerLock held.
+     * 
+     * @return      Key of the next download to start, or NULL if no download can be started now.
+     */
+    private String pollNextDownload() {
+        LinkedList<String> firstQueue = mLastStartedFromUserQueue ? mSyncQueue : mUserQueue;
+        LinkedList<String> secondQueue = mLastStartedFromUserQueue ? mUserQueue : mSyncQueue;
+        String downloadKey = pollStartableDownload(firstQueue);
+        if (downloadKey != null) {
+            mLastStartedFromUserQueue = (firstQueue == mUserQueue);
+        } else {
+            downloadKey = pollStartableDownload(secondQueue);
+            if (downloadKey != null) {
+                mLastStartedFromUserQueue = (secondQueue == mUserQueue);
+            }
+        }
+        return downloadKey;
+    }
+    
+    
+    /**
+     * Takes from a queue the first download that can be started now, keeping the order of the rest.
+     * 
+     * Keys of cancelled downloads are discarded.
+     */
+    private String pollStartableDownload(LinkedList<String> queue) {
+        Iterator<String> it = queue.iterator();
+        while (it.hasNext()) {
+            String downloadKey = it.next();
+            DownloadFileOperation download = mPendingDownloads.get(downloadKey);
+            if (download == null || download == mRunningDownloads.get(downloadKey)) {
+                // cancelled, or a repeated request of a download already in progress
+                it.remove();
+                
+            } else if (!mRunningDownloads.containsKey(downloadKey)) {
+                // else, a cancelled download of the same file is still finishing
+                Integer running = mRunningDownloadsPerAccount.get(download.getAccount().name);
+                if (running == null || running < mMaxParallelDownloadsPerAccount) {
+                    it.remove();
+                    return downloadKey;
                 }
             }
-            mService.stopSelf(msg.arg1);
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Called from the workers when a download finishes, successfully or not.
+     */
+    private void onDownloadFinished(String downloadKey, DownloadFileOperation download) {
+        synchronized (mSchedulerLock) {
+            mRunningDownloads.remove(downloadKey);
+            String accountName = download.getAccount().name;
+            Integer running = mRunningDownloadsPerAccount.get(accountName);
+            if (running == null || running <= 1) {
+                mRunningDownloadsPerAccount.remove(accountName);
+            } else {
+                mRunningDownloadsPerAccount.put(accountName, running - 1);
+            }
+        }
+        scheduleDownloads();
+    }
+    
+    
+    /** 
+     * Download worker task. Performs a single download.
+     */
+    private class DownloadTask implements Runnable {
+        
+        private String mDownloadKey;
+        private DownloadFileOperation mDownload;
+        
+        public DownloadTask(String downloadKey, DownloadFileOperation download) {
+            mDownloadKey = downloadKey;
+            mDownload = download;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                downloadFile(mDownloadKey, mDownload);
+            } finally {
+                onDownloadFinished(mDownloadKey, mDownload);
+            }
+        }
+    }
+    
+    
+    /**
+     * Provides the access to the database of the service, opened the first time it's needed.
+     */
+    private synchronized DbHandler getDbHandler() {
+        if (mDb == null) {
+            mDb = new DbHandler(getBaseContext());
+        }
+        return mDb;
+    }
+    
+    
+    /**
+     * Provides the client to access the server of an account, shared by all the downloads in the account.
+     */
+    private WebdavClient getDownloadClient(Account account) throws AccountsException, IOException {
+        synchronized (mDownloadClients) {
+            WebdavClient client = mDownloadClients.get(account.name);
+            if (client == null) {
+                client = OwnCloudClientUtils.createOwnCloudClient(account, getApplicationContext());
+                mDownloadClients.put(account.name, client);
+            }
+            return client;
         }
     }
     
@@ -328,87 +698,98 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      * Core download method: requests a file to download and stores it.
      * 
      * @param downloadKey   Key to access the download to perform, contained in mPendingDownloads 
+     * @param download      Download to perform
      */
-    private void downloadFile(String downloadKey) {
+    private void downloadFile(String downloadKey, DownloadFileOperation download) {
         
-        synchronized(mPendingDownloads) {
-            mCurrentDownload = mPendingDownloads.get(downloadKey);
-        }
+        getDbHandler().updateTransferStarted(DbHandler.TRANSFER_TYPE_DOWNLOAD, download.getAccount().name, download.getRemotePath());
+        notifyDownloadStart(download);
+        OnDatatransferProgressListener progressListener = mProgressAggregator.startTransfer(downloadKey, 
+                new File(download.getSavePath()).getName(), download.getSize());
+        download.addDatatransferProgressListener(progressListener);
+
+        RemoteOperationResult downloadResult = null;
+        try {
+            /// prepare client object to send the request to the ownCloud server
+            WebdavClient client = getDownloadClient(download.getAccount());
+
+            /// perform the download; interrupted downloads are continued from the registry of partial downloads
+            download.setRegistry(getDbHandler());
+            downloadResult = download.execute(client);
+            if (downloadResult.isSuccess()) {
+                saveDownloadedFile(download);
+            }
         
-        if (mCurrentDownload != null) {
+        } catch (AccountsException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + download.getAccount().name, e);
+            downloadResult = new RemoteOperationResult(e);
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + download.getAccount().name, e);
+            downloadResult = new RemoteOperationResult(e);
             
-            notifyDownloadStart(mCurrentDownload);
-
-            RemoteOperationResult downloadResult = null;
-            try {
-                /// prepare client object to send the request to the ownCloud server
-                if (mDownloadClient == null || !mLastAccount.equals(mCurrentDownload.getAccount())) {
-                    mLastAccount = mCurrentDownload.getAccount();
-                    mStorageManager = new FileDataStorageManager(mLastAccount, getContentResolver());
-                    mDownloadClient = OwnCloudClientUtils.createOwnCloudClient(mLastAccount, getApplicationContext());
-                }
-
-                /// perform the download
-                downloadResult = mCurrentDownload.execute(mDownloadClient);
-                if (downloadResult.isSuccess()) {
-                    saveDownloadedFile();
-                }
+        } finally {
+            download.removeDatatransferProgressListener(progressListener);
+            long bytesDone = mProgressAggregator.finishTransfer(downloadKey);
             
-            } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                downloadResult = new RemoteOperationResult(e);
-            } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                downloadResult = new RemoteOperationResult(e);
-                
-            } finally {
-                synchronized(mPendingDownloads) {
-                    mPendingDownloads.remove(downloadKey);
+            /// update the persistent queue before the pending downloads, so that a restore can't take the download again
+            if (downloadResult != null && !downloadResult.isSuccess() && !downloadResult.isCancelled()) {
+                DbHandler db = getDbHandler();
+                long retryDelay = RetryPolicy.getRetryDelay(downloadResult, db.getTransferAttempts(
+                        DbHandler.TRANSFER_TYPE_DOWNLOAD, download.getAccount().name, download.getRemotePath()), mRandom);
+                db.updateTransferFailed(DbHandler.TRANSFER_TYPE_DOWNLOAD, download.getAccount().name, 
+                        download.getRemotePath(), bytesDone, downloadResult.getCode().name(), 
+                        (retryDelay < 0) ? -1 : System.currentTimeMillis() + retryDelay);
+                if (retryDelay >= 0) {
+                    scheduleRetries();
+                } else {
+                    download.discardPartialDownload();  // given up; won't be continued
+                }
+            } else {
+                getDbHandler().removeQueuedTransfer(DbHandler.TRANSFER_TYPE_DOWNLOAD, download.getAccount().name, 
+                        download.getRemotePath());
+                if (downloadResult != null && downloadResult.isCancelled()) {
+                    download.discardPartialDownload();
                 }
             }
-
-            
-            /// notify result
-            notifyDownloadResult(mCurrentDownload, downloadResult);
-            
-            sendBroadcastDownloadFinished(mCurrentDownload, downloadResult);
+            mPendingDownloads.remove(downloadKey, download);
         }
+
+        
+        /// notify result
+        notifyDownloadResult(download, downloadResult);
+        
+        sendBroadcastDownloadFinished(download, downloadResult);
     }
 
 
     /**
      * Updates the OC File after a successful download.
      */
-    private void saveDownloadedFile() {
-        OCFile file = mCurrentDownload.getFile();
+    private void saveDownloadedFile(DownloadFileOperation download) {
+        OCFile file = download.getFile();
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        // file.setEtag(mCurrentDownload.getEtag());    // TODO Etag, where available
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        mStorageManager.saveFile(file);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        file.setEtag(download.getEtag());
+        file.setChecksum(download.getChecksum());
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        new FileDataStorageManager(download.getAccount(), getContentResolver()).saveFile(file);
     }
 
 
     /**
-     * Creates a status notification to show the download progress
+     * Prepares the status notification showing the progress of the downloads for a new download.
      * 
-     * @param download  Download operation starting.
+     * All the downloads in progress are shown in the same notification; touching it shows the details view of the
+     * last file whose download was started.
+     * 
+     * @param download      Download operation starting.
      */
     private void notifyDownloadStart(DownloadFileOperation download) {
-        /// create status notification with a progress bar
-        mLastPercent = 0;
-        mNotification = new Notification(R.drawable.icon, getString(R.string.downloader_download_in_progress_ticker), System.currentTimeMillis());
-        mNotification.flags |= Notification.FLAG_ONGOING_EVENT;
-        mNotification.contentView = new RemoteViews(getApplicationContext().getPackageName(), R.layout.progressbar_layout);
-        mNotification.contentView.setProgressBar(R.id.status_progress, 100, 0, download.getSize() < 0);
-        mNotification.contentView.setTextViewText(R.id.status_text, String.format(getString(R.string.downloader_download_in_progress_content), 0, new File(download.getSavePath()).getName()));
-        mNotification.contentView.setImageViewResource(R.id.status_icon, R.drawable.icon);
-        
         /// includes a pending intent in the notification showing the details view of the file
         Intent showDetailsIntent = null;
         if (PreviewImageFragment.canBePreviewed(download.getFile())) {
@@ -419,45 +800,86 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, download.getFile());
         showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, download.getAccount());
         showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        mNotification.contentIntent = PendingIntent.getActivity(getApplicationContext(), (int)System.currentTimeMillis(), showDetailsIntent, 0);
-        
-        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotification);
+        mProgressIntent = PendingIntent.getActivity(getApplicationContext(), (int)System.currentTimeMillis(), showDetailsIntent, 0);
     }
 
     
     /**
-     * Callback method to update the progress bar in the status notification.
+     * Receives the progress of all the downloads in progress at a fixed rate, in the main thread; updates the status 
+     * notification, reports the progress to the listeners bound through {@link FileDownloaderBinder} and sends a
+     * broadcast with the total progress.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
-        int percent = (int)(100.0*((double)totalTransferredSoFar)/((double)totalToTransfer));
-        if (percent != mLastPercent) {
-          mNotification.contentView.setProgressBar(R.id.status_progress, 100, percent, totalToTransfer < 0);
-          String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
-          mNotification.contentView.setTextViewText(R.id.status_text, text);
-          mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotification);
-        }
-        mLastPercent = percent;
+    private class DownloadProgressSampleListener implements OnProgressSampleListener {
+        
+        @Override
+        public void onProgressSample(List<TransferProgress> transfers) {
+            long transferred = 0;
+            long total = 0;
+            boolean unknownSize = false;
+            Iterator<TransferProgress> it = transfers.iterator();
+            while (it.hasNext()) {
+                TransferProgress transfer = it.next();
+                if (transfer.getProgressRate() > 0) {
+                    ((FileDownloaderBinder)mBinder).onTransferProgress(transfer.getKey(), transfer.getProgressRate(), 
+                            transfer.getTransferred(), transfer.getTotal(), transfer.getFileName());
+                }
+                transferred += transfer.getTransferred();
+                if (transfer.getTotal() < 0) {
+                    unknownSize = true;
+                } else {
+                    total += transfer.getTotal();
+                }
+            }
+            notifyDownloadProgress(transfers, transferred, (unknownSize ? -1 : total));
+            sendBroadcastDownloadsProgress(transfers.size(), transferred, (unknownSize ? -1 : total));
+        }
     }
     
     
     /**
-     * Callback method to update the progress bar in the status notification (old version)
+     * Updates the status notification with the total progress of the downloads, or removes it if none is in progress.
+     * 
+     * @param transfers     Progress of every download in progress.
+     * @param transferred   Bytes received in all the downloads.
+     * @param total         Bytes to receive in all the downloads; negative if unknown.
      */
-    @Override
-    public void onTransferProgress(long progressRate) {
-        // NOTHING TO DO HERE ANYMORE
+    private void notifyDownloadProgress(List<TransferProgress> transfers, long transferred, long total) {
+        if (transfers.isEmpty()) {
+            mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+            mProgressNotification = null;
+            return;
+        }
+        if (mProgressNotification == null) {
+            /// create status notification with a progress bar
+            mProgressNotification = new Notification(R.drawable.icon, getString(R.string.downloader_download_in_progress_ticker), System.currentTimeMillis());
+            mProgressNotification.flags |= Notification.FLAG_ONGOING_EVENT;
+            mProgressNotification.contentView = new RemoteViews(getApplicationContext().getPackageName(), R.layout.progressbar_layout);
+            mProgressNotification.contentView.setImageViewResource(R.id.status_icon, R.drawable.icon);
+        }
+        int percent = (total > 0) ? (int)Math.min(100, 100.0*((double)transferred)/((double)total)) : 0;
+        String text = null;
+        if (transfers.size() == 1) {
+            text = String.format(getString(R.string.downloader_download_in_progress_content), percent, transfers.get(0).getFileName());
+        } else {
+            text = String.format(getString(R.string.downloader_downloads_in_progress_content), percent, transfers.size());
+        }
+        mProgressNotification.contentView.setProgressBar(R.id.status_progress, 100, percent, total < 0);
+        mProgressNotification.contentView.setTextViewText(R.id.status_text, text);
+        mProgressNotification.contentIntent = mProgressIntent;
+        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mProgressNotification);
     }
     
 
     /**
      * Updates the status notification with the result of a download operation.
      * 
-     * @param downloadResult    Result of the download operation.
+     * The progress of the download is removed from the status notification of the downloads in progress by 
+     * {@link TransferProgressAggregator}.
+     * 
      * @param download          Finished download operation
+     * @param downloadResult    Result of the download operation.
      */
     private void notifyDownloadResult(DownloadFileOperation download, RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
         if (!downloadResult.isCancelled()) {
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker : R.string.downloader_download_failed_ticker;
             int contentId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_content : R.string.downloader_download_failed_content;
@@ -478,7 +900,9 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
                                                         getString(tickerId), 
                                                         String.format(getString(contentId), new File(download.getSavePath()).getName()),
                                                         finalNotification.contentIntent);
-                mDownloadClient = null;   // grant that future retries on the same account will get the fresh credentials
+                synchronized (mDownloadClients) {
+                    mDownloadClients.remove(download.getAccount().name);   // grant that future retries on the same account will get the fresh credentials
+                }
                 
             } else {
                 Intent showDetailsIntent = null;
@@ -533,4 +957,22 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         sendStickyBroadcast(added);
     }
 
+    
+    /**
+     * Sends a broadcast with the total progress of the downloads in progress.
+     * 
+     * Sent at a fixed rate while there are downloads in progress, and once more when the last one finishes.
+     * 
+     * @param downloads     Number of downloads in progress.
+     * @param transferred   Bytes received in all the downloads.
+     * @param total         Bytes to receive in all the downloads; negative if unknown.
+     */
+    private void sendBroadcastDownloadsProgress(int downloads, long transferred, long total) {
+        Intent progress = new Intent(DOWNLOAD_PROGRESS_MESSAGE);
+        progress.putExtra(EXTRA_DOWNLOADS_IN_PROGRESS, downloads);
+        progress.putExtra(EXTRA_BYTES_TRANSFERRED, transferred);
+        progress.putExtra(EXTRA_BYTES_TO_TRANSFER, total);
+        sendBroadcast(progress);
+    }
+
 }
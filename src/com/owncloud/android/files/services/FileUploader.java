@@ -20,51 +20,66 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.http.HttpStatus;
+import org.apache.jackrabbit.webdav.DavConstants;
 import org.apache.jackrabbit.webdav.MultiStatus;
 import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
 
 import com.owncloud.android.authentication.AccountAuthenticator;
+import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.files.services.TransferProgressAggregator.OnProgressSampleListener;
+import com.owncloud.android.files.services.TransferProgressAggregator.TransferProgress;
 import com.owncloud.android.operations.ChunkedUploadFileOperation;
 import com.owncloud.android.operations.CreateFolderOperation;
 import com.owncloud.android.operations.RemoteOperation;
+import com.owncloud.android.operations.RemoteNameResolver;
 import com.owncloud.android.operations.RemoteOperationResult;
+import com.owncloud.android.operations.RetryPolicy;
 import com.owncloud.android.operations.UploadFileOperation;
 import com.owncloud.android.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.utils.OwnCloudVersion;
 
 import eu.alefzero.webdav.OnDatatransferProgressListener;
+import eu.alefzero.webdav.StreamingPropFindMethod;
 import eu.alefzero.webdav.WebdavEntry;
+import eu.alefzero.webdav.WebdavMultiStatusParser;
 import eu.alefzero.webdav.WebdavUtils;
 
+import com.owncloud.android.network.ChunkSizeEstimator;
 import com.owncloud.android.network.OwnCloudClientUtils;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountsException;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
+import android.preference.PreferenceManager;
 import android.webkit.MimeTypeMap;
 import android.widget.RemoteViews;
 
@@ -81,15 +96,26 @@ import com.owncloud.android.utils.FileStorageUtils;
 
 import eu.alefzero.webdav.WebdavClient;
 
-public class FileUploader extends Service implements OnDatatransferProgressListener {
+public class FileUploader extends Service {
 
     public static final String UPLOAD_FINISH_MESSAGE = "UPLOAD_FINISH";
+    public static final String UPLOAD_PROGRESS_MESSAGE = "UPLOAD_PROGRESS";
+    public static final String EXTRA_UPLOADS_IN_PROGRESS = "UPLOADS_IN_PROGRESS";
+    public static final String EXTRA_BYTES_TRANSFERRED = "BYTES_TRANSFERRED";
+    public static final String EXTRA_BYTES_TO_TRANSFER = "BYTES_TO_TRANSFER";
     public static final String EXTRA_UPLOAD_RESULT = "RESULT";
     public static final String EXTRA_REMOTE_PATH = "REMOTE_PATH";
     public static final String EXTRA_OLD_REMOTE_PATH = "OLD_REMOTE_PATH";
     public static final String EXTRA_OLD_FILE_PATH = "OLD_FILE_PATH";
     public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
 
+    /** Action of the intents starting the service only to resume the uploads queued in the persistent queue of transfers */
+    public static final String ACTION_RESUME_UPLOADS = "RESUME_UPLOADS";
+
+    /** Action of the intents starting the service to retry right now the failed uploads waiting to be retried, 
+     *  for instance when the network connection comes back */
+    public static final String ACTION_RETRY_UPLOADS = "RETRY_UPLOADS";
+
     public static final String KEY_FILE = "FILE";
     public static final String KEY_LOCAL_FILE = "LOCAL_FILE";
     public static final String KEY_REMOTE_FILE = "REMOTE_FILE";
@@ -109,22 +135,95 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     public static final int UPLOAD_SINGLE_FILE = 0;
     public static final int UPLOAD_MULTIPLE_FILES = 1;
 
+    /** 
+     * Key of the preference with the maximum number of uploads in progress at the same time, for all the accounts.
+     */
+    public static final String PREF_PARALLEL_UPLOADS = "upload_parallel_transfers";
+    
+    /** 
+     * Key of the preference with the maximum number of uploads in progress at the same time for a single account.
+     */
+    public static final String PREF_PARALLEL_UPLOADS_PER_ACCOUNT = "upload_parallel_transfers_per_account";
+    
+    /** 
+     * Key of the preference with the maximum number of chunks of a single file sent at the same time in chunked uploads.
+     */
+    public static final String PREF_PARALLEL_CHUNKS = "upload_parallel_chunks";
+    
+    /** 
+     * Key of the preference enabling the adaptation of the chunk size to the throughput measured in chunked uploads.
+     */
+    public static final String PREF_ADAPTIVE_CHUNK_SIZE = "upload_adaptive_chunk_size";
+    
+    private static final int DEFAULT_PARALLEL_UPLOADS = 3;
+    private static final int DEFAULT_PARALLEL_UPLOADS_PER_ACCOUNT = 2;
+    private static final int DEFAULT_PARALLEL_CHUNKS = 2;
+
     private static final String TAG = FileUploader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
     private IBinder mBinder;
-    private WebdavClient mUploadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private Map<String, WebdavClient> mUploadClients = new HashMap<String, WebdavClient>();
+    
+    /** Estimators of the chunk size for chunked uploads, by account name */
+    private Map<String, ChunkSizeEstimator> mChunkSizeEstimators = new HashMap<String, ChunkSizeEstimator>();
+
+    /** Resolvers of names not overwriting files in the server, by account name */
+    private Map<String, RemoteNameResolver> mNameResolvers = new HashMap<String, RemoteNameResolver>();
 
     private ConcurrentMap<String, UploadFileOperation> mPendingUploads = new ConcurrentHashMap<String, UploadFileOperation>();
-    private UploadFileOperation mCurrentUpload = null;
+
+    /** Batches of the uploads requested together, by upload; uploads not requested in batch are not here */
+    private Map<UploadFileOperation, UploadBatch> mUploadBatches = new ConcurrentHashMap<UploadFileOperation, UploadBatch>();
+
+    /** Workers performing the uploads */
+    private ExecutorService mUploadExecutor;
+    
+    /** Workers sending the chunks of the chunked uploads in parallel, shared by all of them */
+    private ExecutorService mChunkExecutor;
+    
+    /** Worker restoring the uploads from the persistent queue of transfers, out of the main thread */
+    private ExecutorService mRestoreExecutor;
+    
+    /** Number of restorations from the persistent queue requested and not finished yet */
+    private int mPendingRestores = 0;
+    
+    /** Keys of the uploads waiting for a free worker, in the order they were requested */
+    private LinkedList<String> mUploadQueue = new LinkedList<String>();
+    
+    /** Uploads in progress, by key */
+    private Map<String, UploadFileOperation> mRunningUploads = new HashMap<String, UploadFileOperation>();
+    
+    /** Number of uploads in progress, by account name */
+    private Map<String, Integer> mRunningUploadsPerAccount = new HashMap<String, Integer>();
+    
+    /** Names of the accounts where the remote folder for instant uploads is being created */
+    private Set<String> mAccountsCreatingFolder = new HashSet<String>();
+    
+    /** Guards the queue and the uploads in progress */
+    private final Object mSchedulerLock = new Object();
+    
+    private int mMaxParallelUploads;
+    private int mMaxParallelUploadsPerAccount;
+    private int mMaxParallelChunks;
+    private boolean mAdaptiveChunkSize;
+    private int mLastStartId;
+
+    /** Database with the instant uploads and the journal of chunked uploads, shared by all the workers */
+    private DbHandler mDb = null;
+
+    /** Source of the random part of the delays before retrying failed uploads */
+    private final Random mRandom = new Random();
 
     private NotificationManager mNotificationManager;
-    private Notification mNotification;
-    private int mLastPercent;
-    private RemoteViews mDefaultNotificationContentView;
+
+    /** Collects the progress of all the uploads to show it in a single status notification */
+    private TransferProgressAggregator mProgressAggregator;
+    
+    /** Status notification showing the progress of all the uploads; only accessed from the main thread */
+    private Notification mProgressNotification = null;
+    
+    /** Intent to show the details of the last file whose upload was started, when the status notification is touched */
+    private volatile PendingIntent mProgressIntent = null;
 
     /**
      * Builds a key for mPendingUploads from the account and file to upload
@@ -152,19 +251,65 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         return (version != null && version.compareTo(OwnCloudVersion.owncloud_v4_5) >= 0);
     }
 
+    private boolean chunkedUploadIsSupported(Account account) {
+        OwnCloudVersion ocv = new OwnCloudVersion(AccountManager.get(this).getUserData(account,
+                AccountAuthenticator.KEY_OC_VERSION));
+        return FileUploader.chunkedUploadIsSupported(ocv);
+    }
+
     /**
      * Service initialization
+     * 
+     * The number of uploads performed in parallel is read from the preferences {@link #PREF_PARALLEL_UPLOADS}
+     * and {@link #PREF_PARALLEL_UPLOADS_PER_ACCOUNT}, and the number of chunks sent in parallel for every
+     * chunked upload from {@link #PREF_PARALLEL_CHUNKS}; all of them limited by {@link OwnCloudClientUtils#MAX_CONNECTIONS}.
+     * 
+     * The uploads queued or in progress when the process finished are restored from the persistent queue of transfers,
+     * out of the main thread.
      */
     @Override
     public void onCreate() {
         super.onCreate();
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileUploaderThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        
+        mMaxParallelUploads = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).
+                getInt(PREF_PARALLEL_UPLOADS, DEFAULT_PARALLEL_UPLOADS);
+        mMaxParallelUploads = Math.max(1, Math.min(mMaxParallelUploads, OwnCloudClientUtils.MAX_CONNECTIONS));
+        mMaxParallelUploadsPerAccount = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).
+                getInt(PREF_PARALLEL_UPLOADS_PER_ACCOUNT, DEFAULT_PARALLEL_UPLOADS_PER_ACCOUNT);
+        mMaxParallelUploadsPerAccount = Math.max(1, Math.min(mMaxParallelUploadsPerAccount, mMaxParallelUploads));
+        mMaxParallelChunks = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).
+                getInt(PREF_PARALLEL_CHUNKS, DEFAULT_PARALLEL_CHUNKS);
+        mMaxParallelChunks = Math.max(1, Math.min(mMaxParallelChunks, OwnCloudClientUtils.MAX_CONNECTIONS));
+        mAdaptiveChunkSize = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).
+                getBoolean(PREF_ADAPTIVE_CHUNK_SIZE, true);
+        
+        mUploadExecutor = Executors.newFixedThreadPool(mMaxParallelUploads);
+        mChunkExecutor = Executors.newFixedThreadPool(mMaxParallelChunks);
+        mRestoreExecutor = Executors.newSingleThreadExecutor();
         mBinder = new FileUploaderBinder();
+        mProgressAggregator = new TransferProgressAggregator(new Handler(), new UploadProgressSampleListener());
+        startRestoringQueuedUploads(false);
+    }
+
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        mRestoreExecutor.shutdown();
+        mUploadExecutor.shutdown();
+        mChunkExecutor.shutdown();
+        mProgressAggregator.stop();
+        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        synchronized (this) {
+            if (mDb != null) {
+                mDb.close();
+                mDb = null;
+            }
+        }
+        super.onDestroy();
     }
 
     /**
@@ -173,9 +318,26 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * New uploads are added calling to startService(), resulting in a call to
      * this method. This ensures the service will keep on working although the
      * caller activity goes away.
+     * 
+     * The service is restarted by the system if the process is killed while there are pending uploads; then, 
+     * or when started with {@link #ACTION_RESUME_UPLOADS}, only the uploads restored from the persistent queue 
+     * of transfers are started. Failed uploads waiting to be retried are started with {@link #ACTION_RESUME_UPLOADS}
+     * when their time comes, or with {@link #ACTION_RETRY_UPLOADS} without waiting for it.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || ACTION_RESUME_UPLOADS.equals(intent.getAction()) 
+                || ACTION_RETRY_UPLOADS.equals(intent.getAction())) {
+            if (intent != null) {
+                // the service could be already running; new retries could be due
+                startRestoringQueuedUploads(ACTION_RETRY_UPLOADS.equals(intent.getAction()));
+            }
+            synchronized (mSchedulerLock) {
+                mLastStartId = startId;
+            }
+            scheduleUploads();
+            return Service.START_STICKY;
+        }
         if (!intent.hasExtra(KEY_ACCOUNT) || !intent.hasExtra(KEY_UPLOAD_TYPE)
                 || !(intent.hasExtra(KEY_LOCAL_FILE) || intent.hasExtra(KEY_FILE))) {
             Log_OC.e(TAG, "Not enough information provided in intent");
@@ -262,28 +424,12 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             }
         }
 
-        OwnCloudVersion ocv = new OwnCloudVersion(AccountManager.get(this).getUserData(account,
-                AccountAuthenticator.KEY_OC_VERSION));
-        boolean chunked = FileUploader.chunkedUploadIsSupported(ocv);
-        AbstractList<String> requestedUploads = new Vector<String>();
-        String uploadKey = null;
-        UploadFileOperation newUpload = null;
+        boolean chunked = chunkedUploadIsSupported(account);
+        UploadBatch batch = (uploadType == UPLOAD_MULTIPLE_FILES && files.length > 1) ? new UploadBatch(account) : null;
         try {
             for (int i = 0; i < files.length; i++) {
-                uploadKey = buildRemoteName(account, files[i].getRemotePath());
-                if (chunked) {
-                    newUpload = new ChunkedUploadFileOperation(account, files[i], isInstant, forceOverwrite,
-                            localAction);
-                } else {
-                    newUpload = new UploadFileOperation(account, files[i], isInstant, forceOverwrite, localAction);
-                }
-                if (fixed && i == 0) {
-                    newUpload.setRemoteFolderToBeCreated();
-                }
-                mPendingUploads.putIfAbsent(uploadKey, newUpload);
-                newUpload.addDatatransferProgressListener(this);
-                newUpload.addDatatransferProgressListener((FileUploaderBinder)mBinder);
-                requestedUploads.add(uploadKey);
+                enqueueUpload(account, files[i], isInstant, forceOverwrite, localAction, (fixed && i == 0), chunked, true, 
+                        batch);
             }
 
         } catch (IllegalArgumentException e) {
@@ -300,14 +446,157 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
         }
 
-        if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
+        synchronized (mSchedulerLock) {
+            mLastStartId = startId;
         }
+        scheduleUploads();
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
-        return Service.START_NOT_STICKY;
+        return Service.START_STICKY;
+    }
+
+    /**
+     * Adds an upload to the queue of uploads, unless the same file is already queued or in progress.
+     * 
+     * @param account                   ownCloud account where the file will be uploaded.
+     * @param file                      File to upload.
+     * @param isInstant                 'true' if the upload is an instant upload.
+     * @param forceOverwrite            'true' if the file in the server must be overwritten.
+     * @param localAction               What to do with the local file after the upload.
+     * @param remoteFolderToBeCreated   'true' if the remote folder for instant uploads must be created first.
+     * @param chunked                   'true' if the file must be uploaded in chunks.
+     * @param persist                   'true' if the upload must be saved in the persistent queue of transfers;
+     *                                  'false' when it's restored from there.
+     * @param batch                     Batch of uploads requested together where the upload is added; NULL if the
+     *                                  upload was requested alone.
+     */
+    private void enqueueUpload(Account account, OCFile file, boolean isInstant, boolean forceOverwrite, 
+            int localAction, boolean remoteFolderToBeCreated, boolean chunked, boolean persist, UploadBatch batch) {
+        String uploadKey = buildRemoteName(account, file.getRemotePath());
+        UploadFileOperation newUpload = null;
+        if (chunked) {
+            newUpload = new ChunkedUploadFileOperation(account, file, isInstant, forceOverwrite, localAction);
+            ((ChunkedUploadFileOperation) newUpload).setParallelChunks(mMaxParallelChunks);
+            ((ChunkedUploadFileOperation) newUpload).setChunkExecutor(mChunkExecutor);
+        } else {
+            newUpload = new UploadFileOperation(account, file, isInstant, forceOverwrite, localAction);
+        }
+        if (remoteFolderToBeCreated) {
+            newUpload.setRemoteFolderToBeCreated();
+        }
+        if (mPendingUploads.putIfAbsent(uploadKey, newUpload) == null) {
+            if (persist) {
+                getDbHandler().putQueuedUpload(account.name, file.getRemotePath(), file.getStoragePath(), 
+                        file.getMimetype(), forceOverwrite, isInstant, localAction, 
+                        (isInstant ? DbHandler.TRANSFER_PRIORITY_BACKGROUND : DbHandler.TRANSFER_PRIORITY_USER));
+            }
+            if (batch != null) {
+                batch.addUpload();
+                mUploadBatches.put(newUpload, batch);   // before the upload can be started
+            }
+            synchronized (mSchedulerLock) {
+                mUploadQueue.add(uploadKey);
+            }
+        }
+    }
+
+    /**
+     * Restores the queued uploads with {@link #restoreQueuedUploads(boolean)} in the restoring worker, so that the 
+     * accesses to the database don't block the main thread, and starts them when done.
+     * 
+     * The service is not stopped while restorations are pending.
+     */
+    private void startRestoringQueuedUploads(final boolean retryNow) {
+        synchronized (mSchedulerLock) {
+            mPendingRestores++;
+        }
+        mRestoreExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    restoreQueuedUploads(retryNow);
+                } finally {
+                    synchronized (mSchedulerLock) {
+                        mPendingRestores--;
+                    }
+                    scheduleUploads();
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds to the queue the uploads that were queued or in progress when the process finished, and the failed 
+     * uploads whose time to be retried arrived, in order to resume them as soon as the service is started.
+     * 
+     * Uploads to accounts not existing anymore, or that can't be created again, are removed from the persistent
+     * queue of transfers.
+     * 
+     * @param retryNow      When 'true', all the failed uploads waiting to be retried are resumed, even if their
+     *                      time to be retried didn't arrive yet.
+     */
+    private void restoreQueuedUploads(boolean retryNow) {
+        DbHandler db = getDbHandler();
+        db.requeueTransfersToRetry(DbHandler.TRANSFER_TYPE_UPLOAD, (retryNow ? Long.MAX_VALUE : System.currentTimeMillis()));
+        Set<String> instantUploadAccounts = new HashSet<String>();
+        Cursor c = db.getQueuedTransfers(DbHandler.TRANSFER_TYPE_UPLOAD);
+        try {
+            while (c.moveToNext()) {
+                String accountName = c.getString(c.getColumnIndex(DbHandler.TRANSFER_ACCOUNT));
+                String remotePath = c.getString(c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH));
+                Account account = AccountUtils.getOwnCloudAccountByName(this, accountName);
+                if (account == null) {
+                    db.removeQueuedTransfer(DbHandler.TRANSFER_TYPE_UPLOAD, accountName, remotePath);
+                    continue;
+                }
+                try {
+                    String localPath = c.getString(c.getColumnIndex(DbHandler.TRANSFER_LOCAL_PATH));
+                    boolean isInstant = (c.getInt(c.getColumnIndex(DbHandler.TRANSFER_INSTANT_UPLOAD)) == 1);
+                    FileDataStorageManager storageManager = new FileDataStorageManager(account, getContentResolver());
+                    boolean fixed = false;
+                    if (isInstant && instantUploadAccounts.add(accountName)) {
+                        fixed = checkAndFixInstantUploadDirectory(storageManager);
+                    }
+                    OCFile file = storageManager.getFileByPath(remotePath);
+                    if (file == null) {
+                        file = obtainNewOCFileToUpload(remotePath, localPath,
+                                c.getString(c.getColumnIndex(DbHandler.TRANSFER_MIME_TYPE)), storageManager);
+                    } else {
+                        file.setStoragePath(localPath);
+                    }
+                    enqueueUpload(account, file, isInstant, 
+                            (c.getInt(c.getColumnIndex(DbHandler.TRANSFER_FORCE_OVERWRITE)) == 1),
+                            c.getInt(c.getColumnIndex(DbHandler.TRANSFER_LOCAL_BEHAVIOUR)), 
+                            fixed, chunkedUploadIsSupported(account), false, null);
+                    
+                } catch (Exception e) {
+                    Log_OC.e(TAG, "Queued upload of " + remotePath + " could not be restored", e);
+                    db.removeQueuedTransfer(DbHandler.TRANSFER_TYPE_UPLOAD, accountName, remotePath);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log_OC.i(TAG, "Uploads restored from the persistent queue: " + mPendingUploads.size());
+        scheduleRetries();
+    }
+
+
+    /**
+     * Sets an alarm to start the service with {@link #ACTION_RESUME_UPLOADS} when the next failed upload must be 
+     * retried, or cancels it if no upload is waiting to be retried.
+     */
+    private void scheduleRetries() {
+        long nextRetry = getDbHandler().getNextRetryTime(DbHandler.TRANSFER_TYPE_UPLOAD);
+        Intent resumeIntent = new Intent(this, FileUploader.class);
+        resumeIntent.setAction(ACTION_RESUME_UPLOADS);
+        PendingIntent pendingIntent = PendingIntent.getService(this, 0, resumeIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        if (nextRetry < 0) {
+            alarmManager.cancel(pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, nextRetry, pendingIntent);
+            Log_OC.d(TAG, "Next retry of failed uploads in " + (nextRetry - System.currentTimeMillis()) + " ms");
+        }
     }
 
     /**
@@ -338,12 +627,12 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * 
      * It provides by itself the available operations.
      */
-    public class FileUploaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileUploaderBinder extends Binder {
         
         /** 
          * Map of listeners that will be reported about progress of uploads from a {@link FileUploaderBinder} instance 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
         
         /**
          * Cancels a pending or current upload of a remote file.
@@ -358,6 +647,16 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             }
             if (upload != null) {
                 upload.cancel();
+                getDbHandler().removeQueuedTransfer(DbHandler.TRANSFER_TYPE_UPLOAD, account.name, file.getRemotePath());
+                boolean started = false;
+                synchronized (mSchedulerLock) {
+                    started = (mRunningUploads.get(buildRemoteName(account, file)) == upload);
+                }
+                UploadBatch batch = mUploadBatches.get(upload);
+                if (!started && batch != null) {
+                    // won't be started anymore; the rest of the batch must not wait for it
+                    finishBatchedUpload(batch, upload, null);
+                }
             }
         }
         
@@ -430,17 +729,29 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate) {
-            // old way, should not be in use any more
+        /**
+         * Provides the metrics of the chunked uploads to an account: chunk sizes chosen, throughput and 
+         * response time.
+         * 
+         * @param account       ownCloud account of interest.
+         * @return              Metrics of the chunked uploads to the account, or NULL if none was done.
+         */
+        public ChunkSizeEstimator getChunkedUploadMetrics(Account account) {
+            if (account == null) return null;
+            synchronized (mChunkSizeEstimators) {
+                return mChunkSizeEstimators.get(account.name);
+            }
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
+        /**
+         * Reports the progress of an upload to the listener bound for it, if any.
+         * 
+         * @param uploadKey     Key of the upload in progress, as built by {@link FileUploader#buildRemoteName(Account, OCFile)}
+         */
+        private void onTransferProgress(String uploadKey, long progressRate, long totalTransferredSoFar, long totalToTransfer,
                 String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount(), mCurrentUpload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
+            OnDatatransferProgressListener boundListener = mBoundListeners.get(uploadKey);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
@@ -449,101 +760,396 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     }
 
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
-     * 
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Starts as many pending uploads as allowed by the limits of parallel uploads.
+     *
+     * Uploads are started in the order they were requested, but uploads for accounts that already reached
+     * their limit of parallel uploads wait without blocking the uploads of other accounts.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
+    private void scheduleUploads() {
+        synchronized (mSchedulerLock) {
+            while (mRunningUploads.size() < mMaxParallelUploads) {
+                String uploadKey = pollStartableUpload();
+                if (uploadKey == null) {
+                    break;
+                }
+                UploadFileOperation upload = mPendingUploads.get(uploadKey);
+                mRunningUploads.put(uploadKey, upload);
+                String accountName = upload.getAccount().name;
+                Integer running = mRunningUploadsPerAccount.get(accountName);
+                mRunningUploadsPerAccount.put(accountName, (running == null) ? 1 : running + 1);
+                if (upload.isRemoteFolderToBeCreated()) {
+                    mAccountsCreatingFolder.add(accountName);
+                }
+                mUploadExecutor.execute(new UploadTask(uploadKey, upload));
+            }
 
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+            if (mRunningUploads.isEmpty() && mUploadQueue.isEmpty() && mPendingRestores == 0) {
+                stopSelf(mLastStartId);
+            }
         }
+    }
 
-        @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
+
+    /**
+     * Takes from the queue the first upload that can be started now, keeping the order of the rest.
+     *
+     * Keys of cancelled uploads are discarded. Uploads for an account wait while the remote folder for
+     * instant uploads is being created in it.
+     *
+     * Must be called with mSchedulerLock held.
+     *
+     * @return      Key of the next upload to start, or NULL if no upload can be started now.
+     */
+    private String pollStartableUpload() {
+        Iterator<String> it = mUploadQueue.iterator();
+        while (it.hasNext()) {
+            String uploadKey = it.next();
+            UploadFileOperation upload = mPendingUploads.get(uploadKey);
+            if (upload == null || upload == mRunningUploads.get(uploadKey)) {
+                // cancelled, or a repeated request of an upload already in progress
+                it.remove();
+
+            } else if (!mRunningUploads.containsKey(uploadKey)) {
+                // else, a cancelled upload of the same file is still finishing
+                String accountName = upload.getAccount().name;
+                Integer running = mRunningUploadsPerAccount.get(accountName);
+                if ((running == null || running < mMaxParallelUploadsPerAccount) &&
+                        !mAccountsCreatingFolder.contains(accountName)) {
+                    it.remove();
+                    return uploadKey;
                 }
             }
-            mService.stopSelf(msg.arg1);
         }
+        return null;
     }
 
+
     /**
-     * Core upload method: sends the file(s) to upload
-     * 
-     * @param uploadKey Key to access the upload to perform, contained in
-     *            mPendingUploads
+     * Called from the workers when an upload finishes, successfully or not.
      */
-    public void uploadFile(String uploadKey) {
-
-        synchronized (mPendingUploads) {
-            mCurrentUpload = mPendingUploads.get(uploadKey);
+    private void onUploadFinished(String uploadKey, UploadFileOperation upload) {
+        synchronized (mSchedulerLock) {
+            mRunningUploads.remove(uploadKey);
+            String accountName = upload.getAccount().name;
+            Integer running = mRunningUploadsPerAccount.get(accountName);
+            if (running == null || running <= 1) {
+                mRunningUploadsPerAccount.remove(accountName);
+            } else {
+                mRunningUploadsPerAccount.put(accountName, running - 1);
+            }
+            if (upload.isRemoteFolderToBeCreated()) {
+                mAccountsCreatingFolder.remove(accountName);    // in case it failed before creating the folder
+            }
         }
+        scheduleUploads();
+    }
 
-        if (mCurrentUpload != null) {
 
-            notifyUploadStart(mCurrentUpload);
+    /**
+     * Upload worker task. Performs a single upload.
+     */
+    private class UploadTask implements Runnable {
 
-            RemoteOperationResult uploadResult = null;
-            
+        private String mUploadKey;
+        private UploadFileOperation mUpload;
+
+        public UploadTask(String uploadKey, UploadFileOperation upload) {
+            mUploadKey = uploadKey;
+            mUpload = upload;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             try {
-                /// prepare client object to send requests to the ownCloud server
-                if (mUploadClient == null || !mLastAccount.equals(mCurrentUpload.getAccount())) {
-                    mLastAccount = mCurrentUpload.getAccount();
-                    mStorageManager = new FileDataStorageManager(mLastAccount, getContentResolver());
-                    mUploadClient = OwnCloudClientUtils.createOwnCloudClient(mLastAccount, getApplicationContext());
-                }
-            
-                /// create remote folder for instant uploads
-                if (mCurrentUpload.isRemoteFolderToBeCreated()) {
-                    RemoteOperation operation = new CreateFolderOperation(  FileStorageUtils.getInstantUploadFilePath(this, ""), 
-                                                                            mStorageManager.getFileByPath(OCFile.PATH_SEPARATOR).getFileId(), // TODO generalize this : INSTANT_UPLOAD_DIR could not be a child of root
-                                                                            mStorageManager);
-                    operation.execute(mUploadClient);      // ignoring result; fail could just mean that it already exists, but local database is not synchronized; the upload will be tried anyway
+                uploadFile(mUploadKey, mUpload);
+            } finally {
+                onUploadFinished(mUploadKey, mUpload);
+            }
+        }
+    }
+
+
+    /**
+     * Provides the access to the database of the service, opened the first time it's needed.
+     */
+    private synchronized DbHandler getDbHandler() {
+        if (mDb == null) {
+            mDb = new DbHandler(getBaseContext());
+        }
+        return mDb;
+    }
+
+
+    /**
+     * Provides the resolver of available names shared by all the uploads to the server of an account, so that 
+     * the names for a batch of uploads to the same folder are found with a single request, and uploads in
+     * parallel don't take the same name.
+     */
+    private RemoteNameResolver getNameResolver(Account account) {
+        synchronized (mNameResolvers) {
+            RemoteNameResolver resolver = mNameResolvers.get(account.name);
+            if (resolver == null) {
+                resolver = new RemoteNameResolver();
+                mNameResolvers.put(account.name, resolver);
+            }
+            return resolver;
+        }
+    }
+
+
+    /**
+     * Provides the estimator of the chunk size for the chunked uploads to the server of an account.
+     */
+    private ChunkSizeEstimator getChunkSizeEstimator(Account account) {
+        synchronized (mChunkSizeEstimators) {
+            ChunkSizeEstimator estimator = mChunkSizeEstimators.get(account.name);
+            if (estimator == null) {
+                estimator = new ChunkSizeEstimator();
+                mChunkSizeEstimators.put(account.name, estimator);
+            }
+            return estimator;
+        }
+    }
+
+
+    /**
+     * Provides the client to access the server of an account, shared by all the uploads in the account.
+     */
+    private WebdavClient getUploadClient(Account account) throws AccountsException, IOException {
+        synchronized (mUploadClients) {
+            WebdavClient client = mUploadClients.get(account.name);
+            if (client == null) {
+                client = OwnCloudClientUtils.createOwnCloudClient(account, getApplicationContext());
+                mUploadClients.put(account.name, client);
+            }
+            return client;
+        }
+    }
+
+
+    /**
+     * Core upload method: sends the file(s) to upload
+     *
+     * @param uploadKey     Key to access the upload to perform, contained in mPendingUploads
+     * @param upload        Upload to perform
+     */
+    private void uploadFile(String uploadKey, UploadFileOperation upload) {
+
+        String queuedRemotePath = upload.getRemotePath();   // may change if the file is renamed to not overwrite other
+        getDbHandler().updateTransferStarted(DbHandler.TRANSFER_TYPE_UPLOAD, upload.getAccount().name, queuedRemotePath);
+        notifyUploadStart(upload);
+        OnDatatransferProgressListener progressListener = mProgressAggregator.startTransfer(uploadKey, upload.getFileName(), 
+                new File(upload.getStoragePath()).length());
+        upload.addDatatransferProgressListener(progressListener);
+
+        RemoteOperationResult uploadResult = null;
+        try {
+            /// prepare client object to send requests to the ownCloud server
+            WebdavClient client = getUploadClient(upload.getAccount());
+            FileDataStorageManager storageManager = new FileDataStorageManager(upload.getAccount(), getContentResolver());
+
+            /// create remote folder for instant uploads
+            if (upload.isRemoteFolderToBeCreated()) {
+                try {
+                    RemoteOperation operation = new CreateFolderOperation(  FileStorageUtils.getInstantUploadFilePath(this, ""),
+                                                                            storageManager.getFileByPath(OCFile.PATH_SEPARATOR).getFileId(), // TODO generalize this : INSTANT_UPLOAD_DIR could not be a child of root
+                                                                            storageManager);
+                    operation.execute(client);      // ignoring result; fail could just mean that it already exists, but local database is not synchronized; the upload will be tried anyway
+
+                } finally {
+                    synchronized (mSchedulerLock) {
+                        mAccountsCreatingFolder.remove(upload.getAccount().name);
+                    }
+                    scheduleUploads();  // let other uploads in the account start
                 }
+            }
 
-            
-                /// perform the upload
-                uploadResult = mCurrentUpload.execute(mUploadClient);
-                if (uploadResult.isSuccess()) {
-                    saveUploadedFile();
+            /// perform the upload; interrupted chunked uploads are resumed from the journal
+            upload.setNameResolver(getNameResolver(upload.getAccount()), mUploadBatches.get(upload));
+            if (upload instanceof ChunkedUploadFileOperation) {
+                ((ChunkedUploadFileOperation) upload).setJournal(getDbHandler());
+                if (mAdaptiveChunkSize) {
+                    ((ChunkedUploadFileOperation) upload).setChunkSizeEstimator(getChunkSizeEstimator(upload.getAccount()));
                 }
-                
-            } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                uploadResult = new RemoteOperationResult(e);
-                
-            } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                uploadResult = new RemoteOperationResult(e);
-                
-            } finally {
-                synchronized (mPendingUploads) {
-                    mPendingUploads.remove(uploadKey);
-                    Log_OC.i(TAG, "Remove CurrentUploadItem from pending upload Item Map.");
+            }
+            uploadResult = upload.execute(client);
+            if (uploadResult.isSuccess()) {
+                if (!mUploadBatches.containsKey(upload)) {
+                    saveUploadedFile(upload, client, storageManager);
+                } else {
+                    saveBatchedUploadedFile(upload, storageManager);    // properties refreshed with the batch
                 }
             }
+
+        } catch (AccountsException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + upload.getAccount().name, e);
+            uploadResult = new RemoteOperationResult(e);
+
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + upload.getAccount().name, e);
+            uploadResult = new RemoteOperationResult(e);
+
+        } finally {
+            upload.removeDatatransferProgressListener(progressListener);
+            long bytesDone = mProgressAggregator.finishTransfer(uploadKey);
             
-            /// notify result
-            
-            notifyUploadResult(uploadResult, mCurrentUpload);
-            sendFinalBroadcast(mCurrentUpload, uploadResult);
+            /// update the persistent queue before the pending uploads, so that a restore can't take the upload again
+            if (uploadResult != null && !uploadResult.isSuccess() && !uploadResult.isCancelled()) {
+                DbHandler db = getDbHandler();
+                long retryDelay = RetryPolicy.getRetryDelay(uploadResult, db.getTransferAttempts(
+                        DbHandler.TRANSFER_TYPE_UPLOAD, upload.getAccount().name, queuedRemotePath), mRandom);
+                db.updateTransferFailed(DbHandler.TRANSFER_TYPE_UPLOAD, upload.getAccount().name, queuedRemotePath, 
+                        bytesDone, uploadResult.getCode().name(), 
+                        (retryDelay < 0) ? -1 : System.currentTimeMillis() + retryDelay);
+                if (retryDelay >= 0) {
+                    scheduleRetries();
+                }
+            } else {
+                getDbHandler().removeQueuedTransfer(DbHandler.TRANSFER_TYPE_UPLOAD, upload.getAccount().name, 
+                        queuedRemotePath);
+            }
+            mPendingUploads.remove(uploadKey, upload);
+            Log_OC.i(TAG, "Remove CurrentUploadItem from pending upload Item Map.");
+        }
+
+        /// notify result
+
+        notifyUploadResult(uploadKey, uploadResult, upload);
+        UploadBatch batch = mUploadBatches.get(upload);
+        if (batch == null) {
+            sendFinalBroadcast(upload, uploadResult);
+        } else {
+            finishBatchedUpload(batch, upload, uploadResult);
+        }
+    }
+
+
+    /**
+     * Registers the end of an upload in its batch, and saves the uploads finished in the batch if it's time to.
+     * 
+     * @param batch     Batch of the upload.
+     * @param upload    Upload finished.
+     * @param result    Result of the upload; NULL if it was cancelled before starting.
+     */
+    private void finishBatchedUpload(UploadBatch batch, UploadFileOperation upload, RemoteOperationResult result) {
+        if (mUploadBatches.remove(upload) == null) {
+            return;     // already finished
+        }
+        List<UploadBatch.FinishedUpload> finishedUploads = batch.onUploadFinished(upload, result);
+        if (batch.isFinished()) {
+            getNameResolver(batch.getAccount()).finishBatch(batch);
+        }
+        if (finishedUploads != null) {
+            saveBatchedUploads(batch.getAccount(), finishedUploads);
+            for (UploadBatch.FinishedUpload finished : finishedUploads) {
+                sendFinalBroadcast(finished.mUpload, finished.mResult);
+            }
+        }
+    }
+
+
+    /**
+     * Saves the file of an upload in a batch as soon as it finishes, with the values known in the device, so that 
+     * the upload is not lost if the process finishes before the properties of the batch are refreshed from the 
+     * server by {@link #saveBatchedUploads(Account, List)}.
+     * 
+     * @param upload            Finished upload operation
+     * @param storageManager    Access to the database of files of the account of the upload
+     */
+    private void saveBatchedUploadedFile(UploadFileOperation upload, FileDataStorageManager storageManager) {
+        OCFile file = upload.getFile();
+        file.setLastSyncDateForData(System.currentTimeMillis());
+        if (upload.wasRenamed()) {
+            OCFile oldFile = upload.getOldFile();
+            if (oldFile.fileExists()) {
+                oldFile.setStoragePath(null);
+                storageManager.saveFile(oldFile);
+            }
+        }
+        storageManager.saveFile(file);
+    }
+
+
+    /**
+     * Refreshes the properties of the files of uploads finished in a batch, already saved by 
+     * {@link #saveBatchedUploadedFile(UploadFileOperation, FileDataStorageManager)}, reading all of them
+     * with a single PROPFIND request per folder and writing them to the database in a single operation.
+     */
+    private void saveBatchedUploads(Account account, List<UploadBatch.FinishedUpload> finishedUploads) {
+        long syncDate = System.currentTimeMillis();
+        Map<String, List<OCFile>> filesByFolder = new HashMap<String, List<OCFile>>();
+        List<OCFile> filesToSave = new ArrayList<OCFile>();
+        for (UploadBatch.FinishedUpload finished : finishedUploads) {
+            if (!finished.mResult.isSuccess()) {
+                continue;
+            }
+            UploadFileOperation upload = finished.mUpload;
+            OCFile file = upload.getFile();
+            String folderPath = file.getRemotePath().substring(0, file.getRemotePath().lastIndexOf(OCFile.PATH_SEPARATOR) + 1);
+            List<OCFile> files = filesByFolder.get(folderPath);
+            if (files == null) {
+                files = new ArrayList<OCFile>();
+                filesByFolder.put(folderPath, files);
+            }
+            files.add(file);
+            filesToSave.add(file);
+        }
+        if (filesToSave.isEmpty()) {
+            return;
+        }
 
+        /// read the properties of the uploaded files, one request per folder
+        try {
+            WebdavClient client = getUploadClient(account);
+            for (Map.Entry<String, List<OCFile>> folder : filesByFolder.entrySet()) {
+                readUploadedProperties(client, folder.getKey(), folder.getValue(), syncDate);
+            }
+
+        } catch (Exception e) {
+            Log_OC.e(TAG, "Update: synchronizing properties for uploaded batch in " + account.name, e);
         }
 
+        /// save all the files together
+        new FileDataStorageManager(account, getContentResolver()).saveFiles(filesToSave);
+    }
+
+
+    /**
+     * Updates the properties of files uploaded to a folder with the values in the server, read with a single
+     * PROPFIND request to the folder.
+     */
+    private void readUploadedProperties(WebdavClient client, String folderPath, List<OCFile> files, long syncDate) 
+            throws Exception {
+        StreamingPropFindMethod propfind = null;
+        try {
+            propfind = new StreamingPropFindMethod(client.getBaseUri() + WebdavUtils.encodePath(folderPath),
+                    WebdavUtils.getEntryPropertyNames(), DavConstants.DEPTH_1);
+            int status = client.executeMethod(propfind);
+            if (status == HttpStatus.SC_MULTI_STATUS) {
+                Map<String, OCFile> filesByPath = new HashMap<String, OCFile>();
+                for (OCFile file : files) {
+                    filesByPath.put(file.getRemotePath(), file);
+                }
+                WebdavMultiStatusParser resp = propfind.getResponseBodyAsEntries(client.getBaseUri().getPath());
+                for (WebdavEntry we = resp.nextEntry(); we != null && !filesByPath.isEmpty(); we = resp.nextEntry()) {
+                    OCFile file = filesByPath.remove(we.decodedPath());
+                    if (file != null) {
+                        updateOCFile(file, we);
+                        file.setLastSyncDateForProperties(syncDate);
+                    }
+                }
+
+            } else {
+                client.exhaustResponse(propfind.getResponseBodyAsStream());
+            }
+            Log_OC.i(TAG, "Update: synchronizing properties for " + files.size() + " files uploaded to " 
+                    + folderPath + ": " + new RemoteOperationResult(status == HttpStatus.SC_MULTI_STATUS, status).getLogMessage());
+
+        } finally {
+            if (propfind != null)
+                propfind.releaseConnection();
+        }
     }
 
     /**
@@ -554,9 +1160,13 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * (where available)
      * 
      * TODO refactor this ugly thing
+     * 
+     * @param upload            Finished upload operation
+     * @param client            Client used to perform the upload
+     * @param storageManager    Access to the database of files of the account of the upload
      */
-    private void saveUploadedFile() {
-        OCFile file = mCurrentUpload.getFile();
+    private void saveUploadedFile(UploadFileOperation upload, WebdavClient client, FileDataStorageManager storageManager) {
+        OCFile file = upload.getFile();
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForData(syncDate);
 
@@ -565,27 +1175,29 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         PropFindMethod propfind = null;
         RemoteOperationResult result = null;
         try {
-            propfind = new PropFindMethod(mUploadClient.getBaseUri()
-                    + WebdavUtils.encodePath(mCurrentUpload.getRemotePath()));
-            int status = mUploadClient.executeMethod(propfind);
+            propfind = new PropFindMethod(client.getBaseUri()
+                    + WebdavUtils.encodePath(upload.getRemotePath()),
+                    WebdavUtils.getEntryPropertyNames(),
+                    DavConstants.DEPTH_0);
+            int status = client.executeMethod(propfind);
             boolean isMultiStatus = (status == HttpStatus.SC_MULTI_STATUS);
             if (isMultiStatus) {
                 MultiStatus resp = propfind.getResponseBodyAsMultiStatus();
-                WebdavEntry we = new WebdavEntry(resp.getResponses()[0], mUploadClient.getBaseUri().getPath());
+                WebdavEntry we = new WebdavEntry(resp.getResponses()[0], client.getBaseUri().getPath());
                 updateOCFile(file, we);
                 file.setLastSyncDateForProperties(syncDate);
 
             } else {
-                mUploadClient.exhaustResponse(propfind.getResponseBodyAsStream());
+                client.exhaustResponse(propfind.getResponseBodyAsStream());
             }
 
             result = new RemoteOperationResult(isMultiStatus, status);
-            Log_OC.i(TAG, "Update: synchronizing properties for uploaded " + mCurrentUpload.getRemotePath() + ": "
+            Log_OC.i(TAG, "Update: synchronizing properties for uploaded " + upload.getRemotePath() + ": "
                     + result.getLogMessage());
 
         } catch (Exception e) {
             result = new RemoteOperationResult(e);
-            Log_OC.e(TAG, "Update: synchronizing properties for uploaded " + mCurrentUpload.getRemotePath() + ": "
+            Log_OC.e(TAG, "Update: synchronizing properties for uploaded " + upload.getRemotePath() + ": "
                     + result.getLogMessage(), e);
 
         } finally {
@@ -595,18 +1207,18 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
         // / maybe this would be better as part of UploadFileOperation... or
         // maybe all this method
-        if (mCurrentUpload.wasRenamed()) {
-            OCFile oldFile = mCurrentUpload.getOldFile();
+        if (upload.wasRenamed()) {
+            OCFile oldFile = upload.getOldFile();
             if (oldFile.fileExists()) {
                 oldFile.setStoragePath(null);
-                mStorageManager.saveFile(oldFile);
+                storageManager.saveFile(oldFile);
 
             } // else: it was just an automatic renaming due to a name
               // coincidence; nothing else is needed, the storagePath is right
-              // in the instance returned by mCurrentUpload.getFile()
+              // in the instance returned by upload.getFile()
         }
 
-        mStorageManager.saveFile(file);
+        storageManager.saveFile(file);
     }
 
     private void updateOCFile(OCFile file, WebdavEntry we) {
@@ -615,7 +1227,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         file.setMimetype(we.contentType());
         file.setModificationTimestamp(we.modifiedTimestamp());
         file.setModificationTimestampAtLastSyncForData(we.modifiedTimestamp());
-        // file.setEtag(mCurrentUpload.getEtag());    // TODO Etag, where available
+        file.setEtag(we.etag());
     }
 
     private boolean checkAndFixInstantUploadDirectory(FileDataStorageManager storageManager) {
@@ -679,25 +1291,14 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     }
 
     /**
-     * Creates a status notification to show the upload progress
+     * Prepares the status notification showing the progress of the uploads for a new upload.
+     * 
+     * All the uploads in progress are shown in the same notification; touching it shows the details view of the
+     * last file whose upload was started.
      * 
-     * @param upload Upload operation starting.
+     * @param upload        Upload operation starting.
      */
-    @SuppressWarnings("deprecation")
     private void notifyUploadStart(UploadFileOperation upload) {
-        // / create status notification with a progress bar
-        mLastPercent = 0;
-        mNotification = new Notification(R.drawable.icon, getString(R.string.uploader_upload_in_progress_ticker),
-                System.currentTimeMillis());
-        mNotification.flags |= Notification.FLAG_ONGOING_EVENT;
-        mDefaultNotificationContentView = mNotification.contentView;
-        mNotification.contentView = new RemoteViews(getApplicationContext().getPackageName(),
-                R.layout.progressbar_layout);
-        mNotification.contentView.setProgressBar(R.id.status_progress, 100, 0, false);
-        mNotification.contentView.setTextViewText(R.id.status_text,
-                String.format(getString(R.string.uploader_upload_in_progress_content), 0, upload.getFileName()));
-        mNotification.contentView.setImageViewResource(R.id.status_icon, R.drawable.icon);
-        
         /// includes a pending intent in the notification showing the details view of the file
         Intent showDetailsIntent = null;
         if (PreviewImageFragment.canBePreviewed(upload.getFile())) {
@@ -708,57 +1309,94 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
         showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
         showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        mNotification.contentIntent = PendingIntent.getActivity(getApplicationContext(),
+        mProgressIntent = PendingIntent.getActivity(getApplicationContext(),
                 (int) System.currentTimeMillis(), showDetailsIntent, 0);
-
-        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotification);
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
+     * Receives the progress of all the uploads in progress at a fixed rate, in the main thread; updates the status 
+     * notification, reports the progress to the listeners bound through {@link FileUploaderBinder} and sends a
+     * broadcast with the total progress.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotification.contentView.setProgressBar(R.id.status_progress, 100, percent, false);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
-            mNotification.contentView.setTextViewText(R.id.status_text, text);
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotification);
+    private class UploadProgressSampleListener implements OnProgressSampleListener {
+        
+        @Override
+        public void onProgressSample(List<TransferProgress> transfers) {
+            long transferred = 0;
+            long total = 0;
+            Iterator<TransferProgress> it = transfers.iterator();
+            while (it.hasNext()) {
+                TransferProgress transfer = it.next();
+                if (transfer.getProgressRate() > 0) {
+                    ((FileUploaderBinder)mBinder).onTransferProgress(transfer.getKey(), transfer.getProgressRate(), 
+                            transfer.getTransferred(), transfer.getTotal(), transfer.getFileName());
+                }
+                transferred += transfer.getTransferred();
+                total += Math.max(0, transfer.getTotal());
+            }
+            notifyUploadProgress(transfers, transferred, total);
+            sendBroadcastUploadsProgress(transfers.size(), transferred, total);
         }
-        mLastPercent = percent;
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
-     * (old version)
+     * Updates the status notification with the total progress of the uploads, or removes it if none is in progress.
+     * 
+     * @param transfers     Progress of every upload in progress.
+     * @param transferred   Bytes sent in all the uploads.
+     * @param total         Bytes to send in all the uploads.
      */
-    @Override
-    public void onTransferProgress(long progressRate) {
-        // NOTHING TO DO HERE ANYMORE
+    @SuppressWarnings("deprecation")
+    private void notifyUploadProgress(List<TransferProgress> transfers, long transferred, long total) {
+        if (transfers.isEmpty()) {
+            mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+            mProgressNotification = null;
+            return;
+        }
+        if (mProgressNotification == null) {
+            /// create status notification with a progress bar
+            mProgressNotification = new Notification(R.drawable.icon, getString(R.string.uploader_upload_in_progress_ticker),
+                    System.currentTimeMillis());
+            mProgressNotification.flags |= Notification.FLAG_ONGOING_EVENT;
+            mProgressNotification.contentView = new RemoteViews(getApplicationContext().getPackageName(),
+                    R.layout.progressbar_layout);
+            mProgressNotification.contentView.setImageViewResource(R.id.status_icon, R.drawable.icon);
+        }
+        int percent = (total > 0) ? (int) Math.min(100, 100.0 * ((double) transferred) / ((double) total)) : 0;
+        String text = null;
+        if (transfers.size() == 1) {
+            text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, transfers.get(0).getFileName());
+        } else {
+            text = String.format(getString(R.string.uploader_uploads_in_progress_content), percent, transfers.size());
+        }
+        mProgressNotification.contentView.setProgressBar(R.id.status_progress, 100, percent, false);
+        mProgressNotification.contentView.setTextViewText(R.id.status_text, text);
+        mProgressNotification.contentIntent = mProgressIntent;
+        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mProgressNotification);
     }
 
     /**
      * Updates the status notification with the result of an upload operation.
      * 
-     * @param uploadResult Result of the upload operation.
-     * @param upload Finished upload operation
+     * The progress of the upload is removed from the status notification of the uploads in progress by 
+     * {@link TransferProgressAggregator}.
+     * 
+     * @param uploadKey     Key of the finished upload.
+     * @param uploadResult  Result of the upload operation.
+     * @param upload        Finished upload operation
      */
-    private void notifyUploadResult(RemoteOperationResult uploadResult, UploadFileOperation upload) {
+    @SuppressWarnings("deprecation")
+    private void notifyUploadResult(String uploadKey, RemoteOperationResult uploadResult, UploadFileOperation upload) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
         if (uploadResult.isCancelled()) {
-            // / cancelled operation -> silent removal of progress notification
-            mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+            // / cancelled operation -> silent removal of the previous notification for the same file, if any
+            mNotificationManager.cancel(uploadKey, R.string.uploader_upload_in_progress_ticker);
 
         } else if (uploadResult.isSuccess()) {
-            // / success -> silent update of progress notification to success
-            // message
-            mNotification.flags ^= Notification.FLAG_ONGOING_EVENT; // remove
-                                                                    // the
-                                                                    // ongoing
-                                                                    // flag
-            mNotification.flags |= Notification.FLAG_AUTO_CANCEL;
-            mNotification.contentView = mDefaultNotificationContentView;
+            // / success -> silent success notification
+            Notification notification = new Notification(R.drawable.icon,
+                    getString(R.string.uploader_upload_succeeded_ticker), System.currentTimeMillis());
+            notification.flags |= Notification.FLAG_AUTO_CANCEL;
             
             /// includes a pending intent in the notification showing the details view of the file
             Intent showDetailsIntent = null;
@@ -770,24 +1408,21 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
             showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
             showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            mNotification.contentIntent = PendingIntent.getActivity(getApplicationContext(),
+            notification.contentIntent = PendingIntent.getActivity(getApplicationContext(),
                     (int) System.currentTimeMillis(), showDetailsIntent, 0);
 
-            mNotification.setLatestEventInfo(getApplicationContext(),
+            notification.setLatestEventInfo(getApplicationContext(),
                     getString(R.string.uploader_upload_succeeded_ticker),
                     String.format(getString(R.string.uploader_upload_succeeded_content_single), upload.getFileName()),
-                    mNotification.contentIntent);
+                    notification.contentIntent);
 
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotification); // NOT
-                                                                                                     // AN
-            DbHandler db = new DbHandler(this.getBaseContext());
-            db.removeIUPendingFile(mCurrentUpload.getFile().getStoragePath());
-            db.close();
+            mNotificationManager.notify(uploadKey, R.string.uploader_upload_in_progress_ticker, notification); // NOT
+                                                                                                               // AN
 
         } else {
 
             // / fail -> explicit failure notification
-            mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+            mNotificationManager.cancel(uploadKey, R.string.uploader_upload_in_progress_ticker);
             Notification finalNotification = new Notification(R.drawable.icon,
                     getString(R.string.uploader_upload_failed_ticker), System.currentTimeMillis());
             finalNotification.flags |= Notification.FLAG_AUTO_CANCEL;
@@ -801,7 +1436,9 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
                 finalNotification.contentIntent = PendingIntent.getActivity(this, (int)System.currentTimeMillis(), updateAccountCredentials, PendingIntent.FLAG_ONE_SHOT);
-                mUploadClient = null;   // grant that future retries on the same account will get the fresh credentials
+                synchronized (mUploadClients) {
+                    mUploadClients.remove(upload.getAccount().name);   // grant that future retries on the same account will get the fresh credentials
+                }
             } else {
                 // TODO put something smart in the contentIntent below
                 finalNotification.contentIntent = PendingIntent.getActivity(getApplicationContext(), (int)System.currentTimeMillis(), new Intent(), 0);
@@ -836,23 +1473,9 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                             | PendingIntent.FLAG_ONE_SHOT);
 
             if (upload.isInstant()) {
-                DbHandler db = null;
-                try {
-                    db = new DbHandler(this.getBaseContext());
-                    String message = uploadResult.getLogMessage() + " errorCode: " + uploadResult.getCode();
-                    Log_OC.e(TAG, message + " Http-Code: " + uploadResult.getHttpCode());
-                    if (uploadResult.getCode() == ResultCode.QUOTA_EXCEEDED) {
-                        message = getString(R.string.failed_upload_quota_exceeded_text);
-                    }
-                    if (db.updateFileState(upload.getOriginalStoragePath(), DbHandler.UPLOAD_STATUS_UPLOAD_FAILED,
-                            message) == 0) {
-                        db.putFileForLater(upload.getOriginalStoragePath(), upload.getAccount().name, message);
-                    }
-                } finally {
-                    if (db != null) {
-                        db.close();
-                    }
-                }
+                // retried, when possible, from the persistent queue of transfers  
+                Log_OC.e(TAG, uploadResult.getLogMessage() + " errorCode: " + uploadResult.getCode() 
+                        + " Http-Code: " + uploadResult.getHttpCode());
             }
             finalNotification.setLatestEventInfo(getApplicationContext(),
                     getString(R.string.uploader_upload_failed_ticker), content, finalNotification.contentIntent);
@@ -885,4 +1508,21 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         sendStickyBroadcast(end);
     }
 
+    /**
+     * Sends a broadcast with the total progress of the uploads in progress. 
+     * 
+     * Sent at a fixed rate while there are uploads in progress, and once more when the last one finishes.
+     * 
+     * @param uploads       Number of uploads in progress.
+     * @param transferred   Bytes sent in all the uploads.
+     * @param total         Bytes to send in all the uploads.
+     */
+    private void sendBroadcastUploadsProgress(int uploads, long transferred, long total) {
+        Intent progress = new Intent(UPLOAD_PROGRESS_MESSAGE);
+        progress.putExtra(EXTRA_UPLOADS_IN_PROGRESS, uploads);
+        progress.putExtra(EXTRA_BYTES_TRANSFERRED, transferred);
+        progress.putExtra(EXTRA_BYTES_TO_TRANSFER, total);
+        sendBroadcast(progress);
+    }
+
 }
@@ -0,0 +1,244 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+
+import eu.alefzero.webdav.OnDatatransferProgressListener;
+
+/**
+ * Collects the progress of the transfers in progress in a service and reports it at a fixed rate, in the
+ * thread of a {@link Handler}.
+ *
+ * The threads performing the transfers just record the bytes transferred; updating the status notification,
+ * sending broadcasts and calling the bound listeners is done by the {@link OnProgressSampleListener} once per
+ * sample, for all the transfers together, out of the transfer threads.
+ */
+public class TransferProgressAggregator {
+
+    /** Milliseconds between samples of the progress */
+    public static final long SAMPLE_INTERVAL = 500;
+
+    /**
+     * Receives the samples of the progress of the transfers.
+     */
+    public interface OnProgressSampleListener {
+
+        /**
+         * Called in the thread of the handler when the progress changed since the last sample.
+         *
+         * @param transfers     Progress of all the transfers in progress, in the order they were started;
+         *                      empty when the last transfer finished.
+         */
+        public void onProgressSample(List<TransferProgress> transfers);
+    }
+
+
+    /**
+     * Progress of a single transfer.
+     */
+    public static class TransferProgress {
+
+        private final String mKey;
+        private final String mFileName;
+        private long mTransferred;
+        private long mTotal;
+        private long mProgressRate;
+
+        private TransferProgress(String key, String fileName, long total) {
+            mKey = key;
+            mFileName = fileName;
+            mTotal = total;
+        }
+
+        private TransferProgress(TransferProgress source) {
+            mKey = source.mKey;
+            mFileName = source.mFileName;
+            mTransferred = source.mTransferred;
+            mTotal = source.mTotal;
+            mProgressRate = source.mProgressRate;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public String getFileName() {
+            return mFileName;
+        }
+
+        public long getTransferred() {
+            return mTransferred;
+        }
+
+        /**
+         * @return      Size of the file transferred; negative if unknown.
+         */
+        public long getTotal() {
+            return mTotal;
+        }
+
+        /**
+         * @return      Bytes transferred since the previous sample.
+         */
+        public long getProgressRate() {
+            return mProgressRate;
+        }
+    }
+
+
+    private final Handler mHandler;
+    private final OnProgressSampleListener mSampleListener;
+
+    /** Transfers in progress, by key; guarded by 'this' */
+    private final Map<String, TransferProgress> mTransfers = new LinkedHashMap<String, TransferProgress>();
+
+    /** 'true' when something changed since the last sample */
+    private boolean mChanged = false;
+    private boolean mSampling = false;
+
+    private final Runnable mSampler = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+
+
+    /**
+     * @param handler           Handler in whose thread the samples are reported.
+     * @param sampleListener    Listener receiving the samples.
+     */
+    public TransferProgressAggregator(Handler handler, OnProgressSampleListener sampleListener) {
+        mHandler = handler;
+        mSampleListener = sampleListener;
+    }
+
+
+    /**
+     * Registers a new transfer in progress.
+     *
+     * @param key           Key of the transfer.
+     * @param fileName      Name of the file transferred.
+     * @param total         Size of the file transferred; negative if unknown.
+     * @return              Listener to follow the progress of the transfer; cheap enough to be called from the
+     *                      transfer threads as often as needed.
+     */
+    public OnDatatransferProgressListener startTransfer(String key, String fileName, long total) {
+        synchronized (this) {
+            mTransfers.put(key, new TransferProgress(key, fileName, total));
+            mChanged = true;
+            if (!mSampling) {
+                mSampling = true;
+                mHandler.post(mSampler);
+            }
+        }
+        return new TransferListener(key);
+    }
+
+
+    /**
+     * Unregisters a transfer finished, successfully or not.
+     *
+     * @param key           Key of the transfer.
+     * @return              Bytes transferred before finishing.
+     */
+    public synchronized long finishTransfer(String key) {
+        TransferProgress transfer = mTransfers.remove(key);
+        if (transfer != null) {
+            mChanged = true;
+            return transfer.mTransferred;
+        }
+        return 0;
+    }
+
+
+    /**
+     * Stops the sampling; pending samples are not reported.
+     */
+    public synchronized void stop() {
+        mHandler.removeCallbacks(mSampler);
+        mSampling = false;
+    }
+
+
+    private synchronized void onTransferProgress(String key, long transferred, long total) {
+        TransferProgress transfer = mTransfers.get(key);
+        if (transfer != null) {
+            transfer.mProgressRate += Math.max(0, transferred - transfer.mTransferred);   // transfers may restart
+            transfer.mTransferred = transferred;
+            transfer.mTotal = total;
+            mChanged = true;
+        }
+    }
+
+
+    private void sample() {
+        List<TransferProgress> transfers = null;
+        synchronized (this) {
+            if (mChanged) {
+                transfers = new ArrayList<TransferProgress>(mTransfers.size());
+                Iterator<TransferProgress> it = mTransfers.values().iterator();
+                while (it.hasNext()) {
+                    TransferProgress transfer = it.next();
+                    transfers.add(new TransferProgress(transfer));
+                    transfer.mProgressRate = 0;
+                }
+                mChanged = false;
+            }
+            if (mTransfers.isEmpty()) {
+                mSampling = false;
+            } else {
+                mHandler.postDelayed(mSampler, SAMPLE_INTERVAL);
+            }
+        }
+        if (transfers != null) {
+            mSampleListener.onProgressSample(transfers);
+        }
+    }
+
+
+    /**
+     * Records the progress of a transfer reported by the operation performing it.
+     */
+    private class TransferListener implements OnDatatransferProgressListener {
+
+        private final String mKey;
+
+        public TransferListener(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            TransferProgressAggregator.this.onTransferProgress(mKey, totalTransferredSoFar, totalToTransfer);
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate) {
+            // NOTHING TO DO HERE ANYMORE
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.accounts.Account;
+
+import com.owncloud.android.operations.RemoteOperationResult;
+import com.owncloud.android.operations.UploadFileOperation;
+
+/**
+ * Group of uploads requested together, whose metadata are refreshed and saved together when they finish.
+ *
+ * The uploads in a batch are sent back to back; every uploaded file is saved in the database as soon as its
+ * upload finishes, with the values known in the device, but its properties in the server are read and saved
+ * once for all of them, instead of once per file. In order not to delay the
+ * update of the UI too much in big batches, the uploads finished are also handed over every
+ * {@link #MAX_DEFERRED_UPLOADS} uploads.
+ */
+class UploadBatch {
+
+    /** Maximum number of finished uploads waiting for the rest of the batch */
+    public static final int MAX_DEFERRED_UPLOADS = 20;
+
+    /**
+     * Upload of a batch already finished.
+     */
+    static class FinishedUpload {
+        final UploadFileOperation mUpload;
+        final RemoteOperationResult mResult;
+
+        FinishedUpload(UploadFileOperation upload, RemoteOperationResult result) {
+            mUpload = upload;
+            mResult = result;
+        }
+    }
+
+
+    private final Account mAccount;
+    private int mUploadsLeft = 0;
+    private List<FinishedUpload> mFinishedUploads = new ArrayList<FinishedUpload>();
+
+
+    public UploadBatch(Account account) {
+        mAccount = account;
+    }
+
+    public Account getAccount() {
+        return mAccount;
+    }
+
+    /**
+     * Adds an upload to the batch, before it's started.
+     */
+    public synchronized void addUpload() {
+        mUploadsLeft++;
+    }
+
+    /**
+     * Registers the end of an upload in the batch.
+     *
+     * @param upload    Upload finished.
+     * @param result    Result of the upload; NULL if it was cancelled before starting.
+     * @return          Uploads finished whose metadata must be refreshed now, or NULL if they can wait for
+     *                  other uploads in the batch.
+     */
+    public synchronized List<FinishedUpload> onUploadFinished(UploadFileOperation upload, RemoteOperationResult result) {
+        mUploadsLeft--;
+        if (result != null) {
+            mFinishedUploads.add(new FinishedUpload(upload, result));
+        }
+        if ((mUploadsLeft <= 0 || mFinishedUploads.size() >= MAX_DEFERRED_UPLOADS) && !mFinishedUploads.isEmpty()) {
+            List<FinishedUpload> finishedUploads = mFinishedUploads;
+            mFinishedUploads = new ArrayList<FinishedUpload>();
+            return finishedUploads;
+        }
+        return null;
+    }
+
+    /**
+     * @return          'true' if all the uploads in the batch finished.
+     */
+    public synchronized boolean isFinished() {
+        return mUploadsLeft <= 0;
+    }
+
+}
@@ -0,0 +1,157 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.network;
+
+/**
+ * Chooses the size of the chunks in chunked uploads from the throughput and response time measured
+ * in the chunks previously sent to a server.
+ *
+ * The chunk size aims to send every chunk in a few seconds: on fast networks the chunks grow, so that
+ * the time waiting for the response of every request is a small part of the total; on slow networks
+ * the chunks shrink, so that a lost chunk doesn't cost much time to send again.
+ *
+ * The sizes chosen and the throughput achieved are kept as metrics.
+ */
+public class ChunkSizeEstimator {
+
+    public static final long MIN_CHUNK_SIZE = 256 * 1024;
+    public static final long MAX_CHUNK_SIZE = 20 * 1024 * 1024;
+    public static final long DEFAULT_CHUNK_SIZE = 1024000;
+
+    /** Time to send the body of a chunk targeted, in milliseconds */
+    private static final long TARGET_SEND_TIME = 5000;
+
+    /** The time to send the body of a chunk should be at least this number of times the response time */
+    private static final int RESPONSE_TIME_FACTOR = 10;
+
+    /** Weight of a new measure in the averages */
+    private static final double SMOOTHING = 0.3;
+
+    private long mChunkSize = DEFAULT_CHUNK_SIZE;
+    private long mMaxChunkSize = MAX_CHUNK_SIZE;
+
+    /** Average throughput while sending the body of the chunks, in bytes per millisecond; negative if unknown */
+    private double mThroughput = -1;
+
+    /** Average time since the body of a chunk is sent until the response is received, in milliseconds; negative if unknown */
+    private double mResponseTime = -1;
+
+    private long mChunksSent = 0;
+    private long mBytesSent = 0;
+    private long mSendTime = 0;
+    private long mMinChunkSizeChosen = DEFAULT_CHUNK_SIZE;
+    private long mMaxChunkSizeChosen = DEFAULT_CHUNK_SIZE;
+
+
+    /**
+     * @return      Size for the chunks of a new chunked upload.
+     */
+    public synchronized long getChunkSize() {
+        return mChunkSize;
+    }
+
+
+    /**
+     * Updates the chunk size with the measures of a chunk successfully sent.
+     *
+     * @param bytes             Size of the chunk.
+     * @param sendTime          Time spent sending the body of the chunk, in milliseconds.
+     * @param responseTime      Time since the body of the chunk was sent until the response was received, in milliseconds.
+     */
+    public synchronized void onChunkSent(long bytes, long sendTime, long responseTime) {
+        if (bytes <= 0) {
+            return;
+        }
+        sendTime = Math.max(1, sendTime);
+        responseTime = Math.max(0, responseTime);
+        mThroughput = average(mThroughput, (double) bytes / sendTime);
+        mResponseTime = average(mResponseTime, responseTime);
+
+        mChunksSent++;
+        mBytesSent += bytes;
+        mSendTime += sendTime;
+
+        long targetTime = Math.max(TARGET_SEND_TIME, (long) (RESPONSE_TIME_FACTOR * mResponseTime));
+        long chunkSize = (long) (mThroughput * targetTime);
+        chunkSize = Math.min(chunkSize, 2 * mChunkSize);    // grow progressively; small chunks underestimate the throughput
+        mChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(chunkSize, mMaxChunkSize));
+        mMinChunkSizeChosen = Math.min(mMinChunkSizeChosen, mChunkSize);
+        mMaxChunkSizeChosen = Math.max(mMaxChunkSizeChosen, mChunkSize);
+    }
+
+
+    /**
+     * Lowers the maximum chunk size after the server refused a chunk for being too large.
+     *
+     * @param chunkSize     Size of the chunk refused.
+     * @return              'true' if the chunk size was reduced, 'false' if it can't be smaller.
+     */
+    public synchronized boolean onChunkTooLarge(long chunkSize) {
+        if (chunkSize <= MIN_CHUNK_SIZE) {
+            return false;
+        }
+        mMaxChunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+        mChunkSize = Math.min(mChunkSize, mMaxChunkSize);
+        mMinChunkSizeChosen = Math.min(mMinChunkSizeChosen, mChunkSize);
+        return true;
+    }
+
+
+    /**
+     * @return      Average throughput sending the body of the chunks, in bytes per second; -1 if unknown.
+     */
+    public synchronized long getThroughput() {
+        return (mSendTime > 0) ? (mBytesSent * 1000 / mSendTime) : -1;
+    }
+
+
+    /**
+     * @return      Average time waiting for the response to a chunk, in milliseconds; -1 if unknown.
+     */
+    public synchronized long getResponseTime() {
+        return (mResponseTime >= 0) ? (long) mResponseTime : -1;
+    }
+
+
+    public synchronized long getChunksSent() {
+        return mChunksSent;
+    }
+
+
+    public synchronized long getMinChunkSizeChosen() {
+        return mMinChunkSizeChosen;
+    }
+
+
+    public synchronized long getMaxChunkSizeChosen() {
+        return mMaxChunkSizeChosen;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "chunk size " + mChunkSize + " (" + mMinChunkSizeChosen + " - " + mMaxChunkSizeChosen + "), " +
+                mChunksSent + " chunks sent, " + getThroughput() + " B/s, response time " + getResponseTime() + " ms";
+    }
+
+
+    private static double average(double current, double measure) {
+        return (current < 0) ? measure : (SMOOTHING * measure + (1 - SMOOTHING) * current);
+    }
+
+}
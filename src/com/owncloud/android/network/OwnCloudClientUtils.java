@@ -62,6 +62,21 @@ public class OwnCloudClientUtils {
     
     /** Default timeout for establishing a connection */
     public static final int DEFAULT_CONNECTION_TIMEOUT = 60000;
+    
+    /** Maximum number of workers sending requests in parallel in every pool of workers */
+    public static final int MAX_CONNECTIONS = 5;
+
+    /** Pools of workers sharing the connections: folder synchronizations, uploads, chunks of uploads and downloads */
+    private static final int CONNECTION_POOLS = 4;
+
+    /** Connections for the operations started out of the pools of workers, as the ones started from the UI */
+    private static final int EXTRA_CONNECTIONS = 2;
+
+    /** 
+     * Maximum number of simultaneous connections shared by all the WebdavClients; enough for all the pools of
+     * workers at their maximum size, so that none of them waits for a connection held by other one.
+     */
+    public static final int MAX_TOTAL_CONNECTIONS = CONNECTION_POOLS * MAX_CONNECTIONS + EXTRA_CONNECTIONS;
 
     /** Connection manager for all the WebdavClients */
     private static MultiThreadedHttpConnectionManager mConnManager = null;
@@ -260,8 +275,8 @@ public class OwnCloudClientUtils {
     static private MultiThreadedHttpConnectionManager getMultiThreadedConnManager() {
         if (mConnManager == null) {
             mConnManager = new MultiThreadedHttpConnectionManager();
-            mConnManager.getParams().setDefaultMaxConnectionsPerHost(5);
-            mConnManager.getParams().setMaxTotalConnections(5);
+            mConnManager.getParams().setDefaultMaxConnectionsPerHost(MAX_TOTAL_CONNECTIONS);
+            mConnManager.getParams().setMaxTotalConnections(MAX_TOTAL_CONNECTIONS);
         }
         return mConnManager;
     }
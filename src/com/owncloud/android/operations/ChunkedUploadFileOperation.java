@@ -20,20 +20,37 @@ package com.owncloud.android.operations;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.http.HttpStatus;
 
 import com.owncloud.android.Log_OC;
 import com.owncloud.android.datamodel.OCFile;
-import com.owncloud.android.network.ProgressiveDataTransferer;
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.network.ChunkSizeEstimator;
 
 import android.accounts.Account;
+import android.database.Cursor;
+import android.os.Process;
 
-import eu.alefzero.webdav.ChunkFromFileChannelRequestEntity;
+import eu.alefzero.webdav.FileRegionRequestEntity;
+import eu.alefzero.webdav.OnDatatransferProgressListener;
 import eu.alefzero.webdav.WebdavClient;
 import eu.alefzero.webdav.WebdavUtils;
 
@@ -42,6 +59,15 @@ public class ChunkedUploadFileOperation extends UploadFileOperation {
     private static final long CHUNK_SIZE = 1024000;
     private static final String OC_CHUNKED_HEADER = "OC-Chunked";
     private static final String TAG = ChunkedUploadFileOperation.class.getSimpleName();
+    
+    private int mParallelChunks = 1;
+    private ExecutorService mChunkExecutor = null;
+    private DbHandler mJournal = null;
+    private ChunkSizeEstimator mChunkSizeEstimator = null;
+    
+    /** PUT requests of the chunks in flight */
+    private final Set<PutMethod> mChunkPutMethods = new HashSet<PutMethod>();
+    private boolean mChunksCancelled = false;
 
     public ChunkedUploadFileOperation(  Account account,
                                         OCFile file,
@@ -52,42 +78,425 @@ public class ChunkedUploadFileOperation extends UploadFileOperation {
         super(account, file, isInstant, forceOverwrite, localBehaviour);
     }
 
+    /**
+     * Sets the maximum number of chunks of the file to send at the same time.
+     * 
+     * Only that number of chunks is read from the file at any moment, so the memory used by the upload 
+     * doesn't depend on the size of the file. 
+     * 
+     * @param parallelChunks    Maximum number of chunks in flight; 1 sends the chunks one after another.
+     */
+    public void setParallelChunks(int parallelChunks) {
+        mParallelChunks = Math.max(1, parallelChunks);
+    }
+
+    /**
+     * Sets the threads sending the chunks in parallel, owned by the caller.
+     * 
+     * @param chunkExecutor     Bounded pool of threads shared by the chunked uploads; NULL to send every chunk 
+     *                          from the thread performing the upload.
+     */
+    public void setChunkExecutor(ExecutorService chunkExecutor) {
+        mChunkExecutor = chunkExecutor;
+    }
+
+    /**
+     * Sets the journal where the chunks received by the server are registered.
+     * 
+     * With a journal, an interrupted upload of the same local file to the same remote path is resumed
+     * from the chunks not received yet, as long as the local file was not modified in the meantime.
+     * 
+     * @param journal       Access to the journal of chunked uploads; NULL to upload all the chunks always.
+     */
+    public void setJournal(DbHandler journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Sets the estimator choosing the size of the chunks.
+     * 
+     * The chunk size of a new transfer is taken from the estimator, and the estimator is updated with the
+     * measures of every chunk sent. Resumed transfers keep the chunk size they started with.
+     * 
+     * @param estimator     Estimator of the chunk size for the server; NULL to use a fixed chunk size.
+     */
+    public void setChunkSizeEstimator(ChunkSizeEstimator estimator) {
+        mChunkSizeEstimator = estimator;
+    }
+
     @Override
-    protected int uploadFile(WebdavClient client) throws HttpException, IOException {
+    protected int uploadFile(WebdavClient client) throws HttpException, IOException, OperationCancelledException {
         int status = -1;
+        File file = new File(getStoragePath());
+        File originalFile = new File(getOriginalStoragePath());
+        
+        long transferId = -1;
+        long chunkSize = CHUNK_SIZE;
+        long uploadId = -1;
+        Set<Long> uploadedChunks = new HashSet<Long>();
+        if (mJournal != null) {
+            Cursor c = mJournal.getChunkedUpload(getAccount().name, getRemotePath(), getOriginalStoragePath());
+            try {
+                if (c.moveToFirst()) {
+                    uploadId = c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_ID));
+                    if (c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_FILE_SIZE)) == originalFile.length() && 
+                            c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_FILE_MODIFIED)) == originalFile.lastModified()) {
+                        transferId = c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_TRANSFER_ID));
+                        chunkSize = c.getLong(c.getColumnIndex(DbHandler.CHUNKED_UPLOAD_CHUNK_SIZE));
+                        uploadedChunks = mJournal.getUploadedChunks(uploadId);
+                        Log_OC.d(TAG, "Resuming upload of " + getStoragePath() + " to " + getRemotePath() + ", " + uploadedChunks.size() + " chunks already uploaded");
+                        
+                    } else {
+                        // the local file changed since the interrupted upload; its chunks are useless
+                        mJournal.removeChunkedUpload(uploadId);
+                        uploadId = -1;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        
+        try {
+            if (transferId < 0) {
+                chunkSize = (mChunkSizeEstimator != null) ? mChunkSizeEstimator.getChunkSize() : CHUNK_SIZE;
+                transferId = newTransferId();
+                uploadId = registerTransfer(originalFile, transferId, chunkSize);
+            }
+            boolean resumed = !uploadedChunks.isEmpty();
+            while (true) {
+                status = uploadChunks(client, file, transferId, chunkSize, uploadedChunks, uploadId);
+                
+                boolean tooLarge = (status == HttpStatus.SC_REQUEST_TOO_LONG && mChunkSizeEstimator != null && 
+                        mChunkSizeEstimator.onChunkTooLarge(chunkSize));
+                if (tooLarge) {
+                    // the server doesn't accept chunks so large; start again with smaller ones
+                    Log_OC.w(TAG, "Chunks of " + chunkSize + " bytes refused by the server, uploading " + getStoragePath() + " again with smaller chunks");
+                    chunkSize = mChunkSizeEstimator.getChunkSize();
+                    
+                } else if (isSuccess(status) && resumed && !existsUploadedFile(client, file.length())) {
+                    // the chunks received in a previous attempt were discarded by the server before the rest arrived; start again 
+                    Log_OC.w(TAG, "Resumed upload of " + getStoragePath() + " to " + getRemotePath() + " not completed in the server, uploading all the chunks again");
+                    
+                } else {
+                    break;
+                }
+                if (mJournal != null && uploadId >= 0) {
+                    mJournal.removeChunkedUpload(uploadId);
+                }
+                transferId = newTransferId();
+                uploadId = registerTransfer(originalFile, transferId, chunkSize);
+                uploadedChunks = new HashSet<Long>();
+                resumed = false;
+            }
+            if (mChunkSizeEstimator != null) {
+                Log_OC.d(TAG, "Upload of " + getStoragePath() + " in chunks of " + chunkSize + " bytes; " + mChunkSizeEstimator);
+            }
+            
+        } finally {
+            if (mJournal != null && uploadId >= 0 && (isSuccess(status) || mChunksCancelled)) {
+                mJournal.removeChunkedUpload(uploadId);
+            }
+        }
+        return status;
+    }
+
+    
+    /**
+     * Registers a new transfer in the journal, if any.
+     * 
+     * @return      Identifier of the upload in the journal, or -1 if not registered.
+     */
+    private long registerTransfer(File originalFile, long transferId, long chunkSize) {
+        if (mJournal == null) {
+            return -1;
+        }
+        return mJournal.putChunkedUpload(getAccount().name, getRemotePath(), getOriginalStoragePath(), transferId, 
+                chunkSize, originalFile.length(), originalFile.lastModified());
+    }
+
+    
+    /**
+     * @return      New random identifier for a chunked transfer.
+     */
+    private long newTransferId() {
+        return Math.abs((new Random()).nextInt(9000)+1000);
+    }
 
+    
+    /**
+     * Sends the chunks of the file not received yet by the server.
+     * 
+     * All the chunks but the last one are sent in parallel, up to {@link #mParallelChunks} at a time. The last 
+     * chunk is sent alone once all the rest were received, since the server builds the file when it arrives.
+     * 
+     * @param client            Client to the server.
+     * @param file              File to send.
+     * @param transferId        Identifier of the transfer, included in the names of the chunks.
+     * @param chunkSize         Size of the chunks.
+     * @param uploadedChunks    Indexes of the chunks already received by the server, to be skipped.
+     * @param uploadId          Identifier of the upload in the journal, or -1 if not registered.
+     * @return                  HTTP status of the last chunk, or of the first chunk failed.
+     */
+    private int uploadChunks(WebdavClient client, File file, long transferId, long chunkSize, Set<Long> uploadedChunks, 
+            long uploadId) throws HttpException, IOException, OperationCancelledException {
+        int status = -1;
+        
         FileChannel channel = null;
         RandomAccessFile raf = null;
+        int inFlight = 0;
         try {
-            File file = new File(getStoragePath());
             raf = new RandomAccessFile(file, "r");
             channel = raf.getChannel();
-            mEntity = new ChunkFromFileChannelRequestEntity(channel, getMimeType(), CHUNK_SIZE, file);
-            ((ProgressiveDataTransferer)mEntity).addDatatransferProgressListeners(getDataTransferListeners());
-            long offset = 0;
-            String uriPrefix = client.getBaseUri() + WebdavUtils.encodePath(getRemotePath()) + "-chunking-" + Math.abs((new Random()).nextInt(9000)+1000) + "-" ;
-            long chunkCount = (long) Math.ceil((double)file.length() / CHUNK_SIZE);
-            for (int chunkIndex = 0; chunkIndex < chunkCount ; chunkIndex++, offset += CHUNK_SIZE) {
-                mPutMethod = new PutMethod(uriPrefix + chunkCount + "-" + chunkIndex);
-                mPutMethod.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
-                ((ChunkFromFileChannelRequestEntity)mEntity).setOffset(offset);
-                mPutMethod.setRequestEntity(mEntity);
-                status = client.executeMethod(mPutMethod);
-                client.exhaustResponse(mPutMethod.getResponseBodyAsStream());
-                Log_OC.d(TAG, "Upload of " + getStoragePath() + " to " + getRemotePath() + ", chunk index " + chunkIndex + ", count " + chunkCount + ", HTTP result status " + status);
-                if (!isSuccess(status))
+            long chunkCount = (long) Math.ceil((double)file.length() / chunkSize);
+            long lastChunk = chunkCount - 1;
+            long alreadyUploaded = 0;
+            for (long uploaded : uploadedChunks) {
+                alreadyUploaded += Math.min(chunkSize, file.length() - uploaded * chunkSize);
+            }
+            ChunkProgressListener progressListener = new ChunkProgressListener(file, alreadyUploaded);
+            String uriPrefix = client.getBaseUri() + WebdavUtils.encodePath(getRemotePath()) + "-chunking-" + transferId + "-" ;
+            
+            /// chunks before the last one, in parallel
+            CompletionService<Integer> completionService = (mChunkExecutor != null) ? 
+                    new ExecutorCompletionService<Integer>(mChunkExecutor) : null;
+            Throwable failure = null;
+            boolean failed = false;
+            long chunkIndex = 0;
+            while (inFlight > 0 || (!failed && chunkIndex < lastChunk)) {
+                /// keep up to mParallelChunks chunks in flight; no more are read from the file until one of them finishes
+                while (!failed && chunkIndex < lastChunk && inFlight < mParallelChunks) {
+                    if (!uploadedChunks.contains(chunkIndex)) {
+                        ChunkUpload chunk = new ChunkUpload(client, channel, file, uriPrefix, chunkIndex, chunkCount, 
+                                chunkSize, uploadId, progressListener);
+                        if (completionService != null) {
+                            completionService.submit(chunk);
+                            inFlight++;
+                        } else {
+                            status = chunk.call();
+                            failed = !isSuccess(status);
+                        }
+                    }
+                    chunkIndex++;
+                }
+                if (inFlight == 0) {
                     break;
+                }
+                
+                /// wait for any of the chunks in flight; every one of them must succeed
+                Future<Integer> finished = completionService.take();
+                inFlight--;
+                try {
+                    int chunkStatus = finished.get();
+                    if (!failed && !isSuccess(chunkStatus)) {
+                        status = chunkStatus;
+                        failed = true;
+                    }
+                } catch (ExecutionException e) {
+                    if (!failed) {
+                        failure = e.getCause();
+                        failed = true;
+                    }
+                }
+                if (failed) {
+                    abortChunks();  // the upload is lost, don't wait for the rest of chunks
+                }
             }
             
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof OperationCancelledException) {
+                throw (OperationCancelledException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+            
+            /// last chunk, alone
+            if (!failed) {
+                if (chunkCount > 0 && !uploadedChunks.contains(lastChunk)) {
+                    status = new ChunkUpload(client, channel, file, uriPrefix, lastChunk, chunkCount, 
+                            chunkSize, uploadId, progressListener).call();
+                } else if (chunkCount > 0) {
+                    status = HttpStatus.SC_CREATED;     // all the chunks were received before
+                }
+            }
+            
+        } catch (InterruptedException e) {
+            abortChunks();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the chunks of " + getStoragePath());
+            
         } finally {
+            if (inFlight > 0) {
+                abortChunks();
+            }
             if (channel != null)
                 channel.close();
             if (raf != null)
                 raf.close();
-            if (mPutMethod != null)
-                mPutMethod.releaseConnection();    // let the connection available for other methods
         }
         return status;
     }
 
+    
+    /**
+     * Checks that the file built by the server from the chunks exists and has the expected size.
+     */
+    private boolean existsUploadedFile(WebdavClient client, long expectedSize) throws HttpException, IOException {
+        HeadMethod head = new HeadMethod(client.getBaseUri() + WebdavUtils.encodePath(getRemotePath()));
+        try {
+            int status = client.executeMethod(head);
+            client.exhaustResponse(head.getResponseBodyAsStream());
+            Header length = head.getResponseHeader("Content-Length");
+            return (status == HttpStatus.SC_OK && (length == null || String.valueOf(expectedSize).equals(length.getValue())));
+            
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (mChunkPutMethods) {
+            mChunksCancelled = true;
+            abortChunks();
+        }
+    }
+
+    private void abortChunks() {
+        synchronized (mChunkPutMethods) {
+            for (PutMethod put : mChunkPutMethods) {
+                put.abort();
+            }
+        }
+    }
+
+    
+    /**
+     * Sends a single chunk of the file.
+     * 
+     * Every chunk is sent with its own request entity and PUT request, reading its piece of the file from the 
+     * channel shared by all the chunks.
+     * 
+     * The times writing the body of the request and waiting for the response are measured for the chunk size 
+     * estimator.
+     */
+    private class ChunkUpload implements Callable<Integer>, OnDatatransferProgressListener {
+        
+        private WebdavClient mClient;
+        private FileChannel mChannel;
+        private File mFile;
+        private String mUriPrefix;
+        private long mChunkIndex;
+        private long mChunkCount;
+        private long mChunkSize;
+        private long mUploadId;
+        private OnDatatransferProgressListener mProgressListener;
+        private long mFirstWriteTime = -1;
+        private long mFirstWriteBytes = 0;
+        private long mLastWriteTime = -1;
+        
+        public ChunkUpload(WebdavClient client, FileChannel channel, File file, String uriPrefix, long chunkIndex, 
+                long chunkCount, long chunkSize, long uploadId, OnDatatransferProgressListener progressListener) {
+            mClient = client;
+            mChannel = channel;
+            mFile = file;
+            mUriPrefix = uriPrefix;
+            mChunkIndex = chunkIndex;
+            mChunkCount = chunkCount;
+            mChunkSize = chunkSize;
+            mUploadId = uploadId;
+            mProgressListener = progressListener;
+        }
+
+        @Override
+        public Integer call() throws HttpException, IOException, OperationCancelledException {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            FileRegionRequestEntity entity = new FileRegionRequestEntity(mChannel, mFile, getMimeType(), mChunkIndex * mChunkSize, mChunkSize);
+            entity.addDatatransferProgressListener(this);
+            PutMethod put = new PutMethod(mUriPrefix + mChunkCount + "-" + mChunkIndex);
+            put.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
+            put.setRequestEntity(entity);
+            synchronized (mChunkPutMethods) {
+                if (mChunksCancelled) {
+                    throw new OperationCancelledException();
+                }
+                mChunkPutMethods.add(put);
+            }
+            try {
+                int status = mClient.executeMethod(put);
+                mClient.exhaustResponse(put.getResponseBodyAsStream());
+                Log_OC.d(TAG, "Upload of " + getStoragePath() + " to " + getRemotePath() + ", chunk index " + mChunkIndex + ", count " + mChunkCount + ", HTTP result status " + status);
+                if (isSuccess(status) && mJournal != null && mUploadId >= 0) {
+                    mJournal.putUploadedChunk(mUploadId, mChunkIndex);
+                }
+                if (isSuccess(status) && mChunkSizeEstimator != null && mFirstWriteTime >= 0) {
+                    mChunkSizeEstimator.onChunkSent(entity.getContentLength() - mFirstWriteBytes, 
+                            mLastWriteTime - mFirstWriteTime, System.currentTimeMillis() - mLastWriteTime);
+                }
+                return status;
+                
+            } finally {
+                synchronized (mChunkPutMethods) {
+                    mChunkPutMethods.remove(put);
+                }
+                put.releaseConnection();    // let the connection available for other methods
+            }
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            mLastWriteTime = System.currentTimeMillis();
+            if (mFirstWriteTime < 0) {
+                // measured from the first write, the time waiting for a free connection is not counted
+                mFirstWriteTime = mLastWriteTime;
+                mFirstWriteBytes = progressRate;
+            }
+            mProgressListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate) {
+            // NOTHING TO DO HERE ANYMORE
+        }
+    }
+    
+    
+    /**
+     * Adds up the progress of all the chunks of the file, and reports it to the listeners of the upload.
+     */
+    private class ChunkProgressListener implements OnDatatransferProgressListener {
+        
+        private long mTransferred;
+        private long mSize;
+        private String mFileName;
+        
+        public ChunkProgressListener(File file, long alreadyTransferred) {
+            mTransferred = alreadyTransferred;
+            mSize = file.length();
+            if (mSize == 0) mSize = -1;
+            mFileName = file.getName();
+        }
+        
+        @Override
+        public synchronized void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            mTransferred += progressRate;
+            Set<OnDatatransferProgressListener> listeners = getDataTransferListeners();
+            synchronized (listeners) {
+                Iterator<OnDatatransferProgressListener> it = listeners.iterator();
+                while (it.hasNext()) {
+                    it.next().onTransferProgress(progressRate, mTransferred, mSize, mFileName);
+                }
+            }
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate) {
+            // NOTHING TO DO HERE ANYMORE
+        }
+    }
+
 }
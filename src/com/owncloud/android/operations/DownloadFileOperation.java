@@ -17,10 +17,11 @@
 
 package com.owncloud.android.operations;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -34,14 +35,17 @@ import org.apache.http.HttpStatus;
 
 import com.owncloud.android.Log_OC;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.DbHandler;
 import com.owncloud.android.operations.RemoteOperation;
 import com.owncloud.android.operations.RemoteOperationResult;
+import com.owncloud.android.utils.FileChecksum;
 import com.owncloud.android.utils.FileStorageUtils;
 
 import eu.alefzero.webdav.OnDatatransferProgressListener;
 import eu.alefzero.webdav.WebdavClient;
 import eu.alefzero.webdav.WebdavUtils;
 import android.accounts.Account;
+import android.database.Cursor;
 import android.webkit.MimeTypeMap;
 
 /**
@@ -52,12 +56,31 @@ import android.webkit.MimeTypeMap;
 public class DownloadFileOperation extends RemoteOperation {
     
     private static final String TAG = DownloadFileOperation.class.getSimpleName();
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    /** Bytes received before notifying the listeners again */
+    private static final long PROGRESS_NOTIFICATION_BYTES = 256 * 1024;
+    
+    /** Milliseconds passed before notifying the listeners again */
+    private static final long PROGRESS_NOTIFICATION_INTERVAL = 250;
+    
+    /** Buffer to write the downloaded files, reused by all the downloads performed in the same thread */
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
 
     private Account mAccount;
     private OCFile mFile;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     private long mModificationTimestamp = 0;
+    private String mEtag = null;
+    private String mChecksum = null;
+    private DbHandler mRegistry = null;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -121,6 +144,48 @@ public class DownloadFileOperation extends RemoteOperation {
     }
     
     
+    public String getEtag() {
+        return mEtag;
+    }
+    
+    
+    /**
+     * @return      Checksum of the contents downloaded, computed while they were written, as "TYPE:value";
+     *              NULL if the download didn't succeed.
+     */
+    public String getChecksum() {
+        return mChecksum;
+    }
+    
+    
+    /**
+     * Sets the registry of partial downloads.
+     * 
+     * With a registry, the temporal file of an interrupted download is kept, and a new download of the 
+     * same file continues it with a range request if the file was not modified in the server.
+     * 
+     * @param registry      Access to the registry of partial downloads; NULL to always download the full file.
+     */
+    public void setRegistry(DbHandler registry) {
+        mRegistry = registry;
+    }
+    
+    
+    /**
+     * Deletes the temporal file kept to continue the download, and forgets it in the registry of partial 
+     * downloads; to call when the download won't be tried again.
+     */
+    public void discardPartialDownload() {
+        if (mRegistry != null) {
+            mRegistry.removePartialDownload(mAccount.name, mFile.getRemotePath());
+        }
+        File tmpFile = new File(getTmpPath());
+        if (tmpFile.exists()) {
+            tmpFile.delete();
+        }
+    }
+    
+    
     public void addDatatransferProgressListener (OnDatatransferProgressListener listener) {
         synchronized (mDataTransferListeners) {
             mDataTransferListeners.add(listener);
@@ -167,7 +232,7 @@ public class DownloadFileOperation extends RemoteOperation {
 
     
     public boolean isSuccess(int status) {
-        return (status == HttpStatus.SC_OK);
+        return (status == HttpStatus.SC_OK || status == HttpStatus.SC_PARTIAL_CONTENT);
     }
     
     
@@ -177,39 +242,103 @@ public class DownloadFileOperation extends RemoteOperation {
         GetMethod get = new GetMethod(client.getBaseUri() + WebdavUtils.encodePath(mFile.getRemotePath()));
         Iterator<OnDatatransferProgressListener> it = null;
         
+        /// continue a previous download of the same version of the file, if any
+        long offset = 0;
+        String partialEtag = getPartialDownloadEtag(targetFile);
+        if (partialEtag != null) {
+            offset = targetFile.length();
+            get.addRequestHeader("Range", "bytes=" + offset + "-");
+            get.addRequestHeader("If-Range", partialEtag);   // the full file is received if it changed in the server
+            Log_OC.d(TAG, "Resuming download of " + mFile.getRemotePath() + " from byte " + offset);
+        }
+        boolean keepPartialFile = (partialEtag != null);    // until the server says it's not valid
+        
         FileOutputStream fos = null;
         try {
             status = client.executeMethod(get);
+            boolean resumed = (status == HttpStatus.SC_PARTIAL_CONTENT);
+            long expectedLength = -1;
+            if (resumed) {
+                long[] range = parseContentRange(get.getResponseHeader("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    keepPartialFile = false;
+                    throw new IOException("Unexpected range received for " + mFile.getRemotePath());
+                }
+                expectedLength = range[1];
+            } else {
+                offset = 0;
+                if (isSuccess(status)) {
+                    expectedLength = get.getResponseContentLength();
+                    keepPartialFile = false;    // replaced by the full file received
+                } else if (status < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    keepPartialFile = false;    // the file is not available anymore, or the range is not valid
+                }
+            }
+            
             if (isSuccess(status)) {
+                Header eTag = get.getResponseHeader("ETag");
+                if (mRegistry != null && eTag != null && !eTag.getValue().trim().startsWith("W/")) {
+                    // register the version received to continue it if the download is interrupted
+                    keepPartialFile = keepPartialFile || 
+                            mRegistry.putPartialDownload(mAccount.name, mFile.getRemotePath(), eTag.getValue().trim(), expectedLength);
+                }
                 targetFile.createNewFile();
-                BufferedInputStream bis = new BufferedInputStream(get.getResponseBodyAsStream());
-                fos = new FileOutputStream(targetFile);
-                long transferred = 0;
+                MessageDigest digest = FileChecksum.newDigest();
+                if (resumed) {
+                    FileChecksum.update(digest, targetFile, offset);    // downloaded in a previous attempt
+                }
+                InputStream is = get.getResponseBodyAsStream();
+                fos = new FileOutputStream(targetFile, resumed);
+                long transferred = offset;
 
-                byte[] bytes = new byte[4096];
+                /// the buffer is filled before writing it to the file, so the file is written in large blocks
+                byte[] buffer = sBuffer.get();
+                int buffered = 0;
                 int readResult = 0;
-                while ((readResult = bis.read(bytes)) != -1) {
-                    synchronized(mCancellationRequested) {
-                        if (mCancellationRequested.get()) {
-                            get.abort();
-                            throw new OperationCancelledException();
-                        }
+                long notPublished = 0;
+                long lastNotification = 0;
+                while (readResult != -1) {
+                    readResult = is.read(buffer, buffered, buffer.length - buffered);
+                    if (mCancellationRequested.get()) {
+                        get.abort();
+                        throw new OperationCancelledException();
+                    }
+                    if (readResult > 0) {
+                        buffered += readResult;
+                        transferred += readResult;
+                        notPublished += readResult;
+                    }
+                    if (buffered == buffer.length || (readResult == -1 && buffered > 0)) {
+                        fos.write(buffer, 0, buffered);
+                        digest.update(buffer, 0, buffered);
+                        buffered = 0;
                     }
-                    fos.write(bytes, 0, readResult);
-                    transferred += readResult;
-                    synchronized (mDataTransferListeners) {
-                        it = mDataTransferListeners.iterator();
-                        while (it.hasNext()) {
-                            it.next().onTransferProgress(readResult, transferred, mFile.getFileLength(), targetFile.getName());
+                    long now = System.currentTimeMillis();
+                    if (notPublished > 0 && (readResult == -1 || notPublished >= PROGRESS_NOTIFICATION_BYTES || 
+                            now - lastNotification >= PROGRESS_NOTIFICATION_INTERVAL)) {
+                        synchronized (mDataTransferListeners) {
+                            it = mDataTransferListeners.iterator();
+                            while (it.hasNext()) {
+                                it.next().onTransferProgress(notPublished, transferred, mFile.getFileLength(), targetFile.getName());
+                            }
                         }
+                        notPublished = 0;
+                        lastNotification = now;
                     }
                 }
+                if (expectedLength >= 0 && transferred != expectedLength) {
+                    throw new IOException("Incomplete download of " + mFile.getRemotePath() + ": " + transferred + " bytes of " + expectedLength);
+                }
                 savedFile = true;
+                mChecksum = FileChecksum.toChecksum(digest);
                 Header modificationTime = get.getResponseHeader("Last-Modified");
                 if (modificationTime != null) {
                     Date d = WebdavUtils.parseResponseDate((String) modificationTime.getValue());
                     mModificationTimestamp = (d != null) ? d.getTime() : 0;
                 }
+                if (eTag != null) {
+                    mEtag = WebdavUtils.parseEtag(eTag.getValue());
+                }
                 
             } else {
                 client.exhaustResponse(get.getResponseBodyAsStream());
@@ -217,15 +346,93 @@ public class DownloadFileOperation extends RemoteOperation {
                 
         } finally {
             if (fos != null) fos.close();
-            if (!savedFile && targetFile.exists()) {
+            if (!savedFile && !keepPartialFile && targetFile.exists()) {
                 targetFile.delete();
             }
+            if (mRegistry != null && (savedFile || !keepPartialFile)) {
+                mRegistry.removePartialDownload(mAccount.name, mFile.getRemotePath());
+            }
             get.releaseConnection();    // let the connection available for other methods
         }
+        
+        if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && partialEtag != null) {
+            // the partial file was not valid any more, and it was removed; download the full file
+            return downloadFile(client, targetFile);
+        }
         return status;
     }
 
     
+    /**
+     * Returns the ETag of the version of the file partially downloaded in a previous attempt, if the partial
+     * download can be continued.
+     * 
+     * Partial downloads not valid anymore are forgotten.
+     * 
+     * @param targetFile    Temporal file where the file is downloaded.
+     * @return              ETag of the version partially downloaded, as received from the server, or NULL 
+     *                      if the download must start from the beginning.
+     */
+    private String getPartialDownloadEtag(File targetFile) {
+        if (mRegistry == null) {
+            return null;
+        }
+        String etag = null;
+        long fileSize = -1;
+        Cursor c = mRegistry.getPartialDownload(mAccount.name, mFile.getRemotePath());
+        try {
+            if (c.moveToFirst()) {
+                etag = c.getString(c.getColumnIndex(DbHandler.PARTIAL_DOWNLOAD_ETAG));
+                fileSize = c.getLong(c.getColumnIndex(DbHandler.PARTIAL_DOWNLOAD_FILE_SIZE));
+            }
+        } finally {
+            c.close();
+        }
+        if (etag == null) {
+            return null;
+        }
+        
+        String knownEtag = mFile.getEtag();
+        if (    !targetFile.exists() || targetFile.length() == 0 || 
+                (fileSize >= 0 && targetFile.length() > fileSize) ||
+                (knownEtag != null && knownEtag.length() > 0 && !knownEtag.equals(WebdavUtils.parseEtag(etag)))) {
+            // nothing to continue, or the file changed in the server since the partial download
+            mRegistry.removePartialDownload(mAccount.name, mFile.getRemotePath());
+            targetFile.delete();
+            return null;
+        }
+        return etag;
+    }
+    
+    
+    /**
+     * Parses the value of a Content-Range header, as "bytes 100-999/1000".
+     * 
+     * @return      First byte position and full length of the resource, -1 if unknown; NULL if the header can't be parsed.
+     */
+    private static long[] parseContentRange(Header contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        try {
+            String value = contentRange.getValue().trim();
+            int start = value.indexOf(' ') + 1;
+            int dash = value.indexOf('-', start);
+            int slash = value.indexOf('/', dash);
+            if (start <= 0 || dash < 0 || slash < 0) {
+                return null;
+            }
+            String total = value.substring(slash + 1).trim();
+            return new long[] { 
+                    Long.parseLong(value.substring(start, dash).trim()), 
+                    "*".equals(total) ? -1 : Long.parseLong(total) 
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    
     public void cancel() {
         mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
     }
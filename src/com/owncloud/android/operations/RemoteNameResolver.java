@@ -0,0 +1,247 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.owncloud.android.Log_OC;
+import com.owncloud.android.datamodel.OCFile;
+
+import eu.alefzero.webdav.StreamingPropFindMethod;
+import eu.alefzero.webdav.WebdavClient;
+import eu.alefzero.webdav.WebdavEntry;
+import eu.alefzero.webdav.WebdavMultiStatusParser;
+import eu.alefzero.webdav.WebdavUtils;
+
+/**
+ * Finds names for new files in a server that don't overwrite existing files, adding a suffix " (2)", " (3)", ...
+ * to the name when needed.
+ *
+ * For the uploads in a batch, the names in a folder are read with a single PROPFIND request of depth 1 and kept
+ * until the batch finishes, so the names for all the files of the batch uploaded to the same folder are found with
+ * a single request, instead of a HEAD request per name tried. Names read for a batch are not used for other
+ * uploads, so that files created by other clients after it are not overwritten. Uploads out of a batch check
+ * every name tried with a HEAD request.
+ *
+ * The names given are reserved until the upload finishes, so that uploads running in parallel, in the same
+ * batch or not, don't get the same name.
+ *
+ * An instance should be shared by all the uploads to the server of an account.
+ */
+public class RemoteNameResolver {
+
+    private static final String TAG = RemoteNameResolver.class.getSimpleName();
+
+    /** Names given to uploads still in progress, by remote path of the folder */
+    private final Map<String, Set<String>> mReserved = new HashMap<String, Set<String>>();
+
+    /** Names read from the server, and names created since then, by batch and by remote path of the folder */
+    private final Map<Object, Map<String, Set<String>>> mListings = new HashMap<Object, Map<String, Set<String>>>();
+
+
+    /**
+     * Finds a path for a new file that doesn't overwrite an existing file in the server, and reserves it.
+     *
+     * @param client        Client to the server.
+     * @param remotePath    Path wished for the new file.
+     * @param batch         Key of the batch of uploads the new file belongs to; NULL if none.
+     * @return              'remotePath' if there is no file in that path, or 'remotePath' with a suffix added
+     *                      to the name of the file.
+     * @throws IOException  If the names in the folder could not be read.
+     */
+    public synchronized String reserveAvailableRemotePath(WebdavClient client, String remotePath, Object batch) 
+            throws IOException {
+        String folderPath = getFolderPath(remotePath);
+        String fileName = remotePath.substring(folderPath.length());
+        Set<String> reserved = mReserved.get(folderPath);
+        if (reserved == null) {
+            reserved = new HashSet<String>();
+            mReserved.put(folderPath, reserved);
+        }
+
+        Set<String> names = null;
+        if (batch != null) {
+            Map<String, Set<String>> batchListings = mListings.get(batch);
+            if (batchListings == null) {
+                batchListings = new HashMap<String, Set<String>>();
+                mListings.put(batch, batchListings);
+            }
+            names = batchListings.get(folderPath);
+            if (names == null) {
+                names = readFolderNames(client, folderPath);
+                if (names != null) {
+                    batchListings.put(folderPath, names);
+                }
+            }
+        }
+
+        String availableName = null;
+        if (names != null) {
+            Set<String> takenNames = new HashSet<String>(names);
+            takenNames.addAll(reserved);
+            availableName = getAvailableName(fileName, takenNames);
+        } else {
+            availableName = getAvailableNameByProbing(client, folderPath, fileName, reserved);
+        }
+        reserved.add(availableName);
+        return folderPath + availableName;
+    }
+
+
+    /**
+     * Releases a path reserved with {@link #reserveAvailableRemotePath(WebdavClient, String, Object)} when the
+     * upload finishes.
+     *
+     * @param remotePath    Path reserved.
+     * @param created       'true' if the file was created in the server; 'false' if the upload failed, so that
+     *                      the path is available again.
+     */
+    public synchronized void release(String remotePath, boolean created) {
+        String folderPath = getFolderPath(remotePath);
+        String fileName = remotePath.substring(folderPath.length());
+        Set<String> reserved = mReserved.get(folderPath);
+        if (reserved != null && reserved.remove(fileName)) {
+            if (reserved.isEmpty()) {
+                mReserved.remove(folderPath);
+            }
+            if (created) {
+                for (Map<String, Set<String>> batchListings : mListings.values()) {
+                    Set<String> names = batchListings.get(folderPath);
+                    if (names != null) {
+                        names.add(fileName);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Forgets the names read from the server for a batch of uploads, once all its uploads finished.
+     *
+     * @param batch         Key of the batch of uploads.
+     */
+    public synchronized void finishBatch(Object batch) {
+        mListings.remove(batch);
+    }
+
+
+    /**
+     * @param fileName      Name wished for a new file.
+     * @param takenNames    Names of the files already existing in the folder.
+     * @return              'fileName' if not taken, or the first name not taken adding a suffix " (2)", " (3)", ...
+     *                      before the extension of 'fileName'.
+     */
+    public static String getAvailableName(String fileName, Set<String> takenNames) {
+        if (!takenNames.contains(fileName)) {
+            return fileName;
+        }
+        int pos = fileName.lastIndexOf(".");
+        String name = (pos >= 0) ? fileName.substring(0, pos) : fileName;
+        String extension = (pos >= 0) ? fileName.substring(pos) : "";
+        String availableName = null;
+        int count = 2;
+        do {
+            availableName = name + " (" + count + ")" + extension;
+            count++;
+        } while (takenNames.contains(availableName));
+        return availableName;
+    }
+
+
+    private static String getFolderPath(String remotePath) {
+        return remotePath.substring(0, remotePath.lastIndexOf(OCFile.PATH_SEPARATOR) + 1);
+    }
+
+
+    /**
+     * Reads the names of the files in a folder of the server.
+     *
+     * @return      Names in the folder; empty if the folder doesn't exist; NULL if the server doesn't
+     *              answer the request as expected.
+     */
+    protected Set<String> readFolderNames(WebdavClient client, String folderPath) throws IOException {
+        DavPropertyNameSet propNames = new DavPropertyNameSet();
+        propNames.add(DavPropertyName.RESOURCETYPE);    // names come in the hrefs; nothing else is needed
+        StreamingPropFindMethod query = new StreamingPropFindMethod(client.getBaseUri() +
+                WebdavUtils.encodePath(folderPath), propNames, DavConstants.DEPTH_1);
+        try {
+            int status = client.executeMethod(query);
+            Set<String> names = new HashSet<String>();
+            if (status == HttpStatus.SC_MULTI_STATUS) {
+                WebdavMultiStatusParser resp = query.getResponseBodyAsEntries(client.getBaseUri().getPath());
+                resp.nextEntry();   // the folder itself
+                for (WebdavEntry we = resp.nextEntry(); we != null; we = resp.nextEntry()) {
+                    names.add(new File(we.decodedPath()).getName());
+                }
+                Log_OC.d(TAG, "Read " + names.size() + " names in " + folderPath);
+                return names;
+
+            } else {
+                client.exhaustResponse(query.getResponseBodyAsStream());
+                if (status == HttpStatus.SC_NOT_FOUND) {
+                    return names;
+                }
+                Log_OC.w(TAG, "Unexpected HTTP status " + status + " reading names in " + folderPath);
+                return null;
+            }
+
+        } catch (XmlPullParserException e) {
+            Log_OC.e(TAG, "Unreadable response reading names in " + folderPath, e);
+            return null;
+
+        } finally {
+            query.releaseConnection();
+        }
+    }
+
+
+    /**
+     * Finds a name for a new file requesting the existence of every candidate to the server.
+     */
+    private String getAvailableNameByProbing(WebdavClient client, String folderPath, String fileName,
+            Set<String> reserved) throws IOException {
+        Set<String> takenNames = new HashSet<String>(reserved);
+        String availableName = getAvailableName(fileName, takenNames);
+        while (exists(client, folderPath + availableName)) {
+            takenNames.add(availableName);
+            availableName = getAvailableName(fileName, takenNames);
+        }
+        return availableName;
+    }
+
+
+    /**
+     * @return      'true' if there is a file in the given path of the server.
+     */
+    protected boolean exists(WebdavClient client, String remotePath) throws IOException {
+        return client.existsFile(remotePath);
+    }
+
+}
@@ -0,0 +1,108 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.httpclient.HttpStatus;
+
+/**
+ * Decides if a failed remote operation is worth retrying later, and when.
+ *
+ * Only failures that could disappear by themselves are retried: timeouts, network errors and server errors.
+ * The delay between attempts grows exponentially, and is randomized so that the devices that failed at the
+ * same time because of a server overload don't retry all at the same time.
+ */
+public class RetryPolicy {
+
+    /** Maximum delay before the first retry, in milliseconds */
+    public static final long INITIAL_DELAY = 30 * 1000;
+
+    /** Maximum delay between retries, in milliseconds */
+    public static final long MAX_DELAY = 60 * 60 * 1000;
+
+    /** Attempts after which a failed operation is not retried anymore */
+    public static final int MAX_ATTEMPTS = 8;
+
+    /** Status code for 'Too Many Requests', not defined in HttpStatus */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+
+    /**
+     * @param result    Result of a remote operation.
+     * @return          'true' if the operation failed for a reason that could be temporal.
+     */
+    public static boolean isRetryable(RemoteOperationResult result) {
+        if (result == null || result.isSuccess()) {
+            return false;
+        }
+        switch (result.getCode()) {
+        case TIMEOUT:
+        case WRONG_CONNECTION:
+        case HOST_NOT_AVAILABLE:
+        case NO_NETWORK_CONNECTION:
+            return true;
+
+        case INSTANCE_NOT_CONFIGURED:       // HTTP 500
+        case UNHANDLED_HTTP_CODE:
+            return (result.isServerFail() || result.getHttpCode() == HttpStatus.SC_REQUEST_TIMEOUT ||
+                    result.getHttpCode() == SC_TOO_MANY_REQUESTS);
+
+        case UNKNOWN_ERROR:
+            return (result.getException() instanceof IOException);
+
+        default:
+            // UNAUTHORIZED, INVALID_OVERWRITE, CONFLICT, QUOTA_EXCEEDED, SSL errors, local errors, ...
+            // won't be fixed by just waiting
+            return false;
+        }
+    }
+
+
+    /**
+     * Delay before a new attempt of a failed operation.
+     *
+     * The maximum delay doubles with every attempt, from {@link #INITIAL_DELAY} up to {@link #MAX_DELAY}; the delay
+     * returned is a random value between the half of the maximum and the maximum.
+     *
+     * @param attempts  Number of attempts already done, at least 1.
+     * @param random    Source of the random part of the delay.
+     * @return          Delay in milliseconds.
+     */
+    public static long getRetryDelay(int attempts, Random random) {
+        int exponent = Math.max(0, Math.min(attempts - 1, 30));
+        long maxDelay = Math.min(MAX_DELAY, INITIAL_DELAY << exponent);
+        return maxDelay / 2 + (long) (random.nextDouble() * (maxDelay / 2));
+    }
+
+
+    /**
+     * @param result    Result of the last attempt of a remote operation.
+     * @param attempts  Number of attempts already done, at least 1.
+     * @param random    Source of the random part of the delay.
+     * @return          Delay in milliseconds before a new attempt of the operation, or -1 if it must not be retried.
+     */
+    public static long getRetryDelay(RemoteOperationResult result, int attempts, Random random) {
+        if (attempts >= MAX_ATTEMPTS || !isRetryable(result)) {
+            return -1;
+        }
+        return getRetryDelay(attempts, random);
+    }
+
+}
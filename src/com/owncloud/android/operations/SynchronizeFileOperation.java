@@ -18,7 +18,11 @@
 
 package com.owncloud.android.operations;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.apache.http.HttpStatus;
+import org.apache.jackrabbit.webdav.DavConstants;
 import org.apache.jackrabbit.webdav.MultiStatus;
 import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
 
@@ -32,6 +36,7 @@ import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.utils.FileChecksum;
 
 import eu.alefzero.webdav.WebdavClient;
 import eu.alefzero.webdav.WebdavEntry;
@@ -53,6 +58,9 @@ public class SynchronizeFileOperation extends RemoteOperation {
     
     private boolean mTransferWasRequested = false;
     
+    /** 'true' when the operation is part of an automatic synchronization, not requested by the user */
+    private boolean mAutomaticSync = false;
+    
     public SynchronizeFileOperation(
             OCFile localFile,
             OCFile serverFile,          // make this null to let the operation checks the server; added to reuse info from SynchronizeFolderOperation 
@@ -89,7 +97,9 @@ public class SynchronizeFileOperation extends RemoteOperation {
                 
                 if (mServerFile == null) {
                     /// take the duty of check the server for the current state of the file there
-                    propfind = new PropFindMethod(client.getBaseUri() + WebdavUtils.encodePath(mLocalFile.getRemotePath()));
+                    propfind = new PropFindMethod(client.getBaseUri() + WebdavUtils.encodePath(mLocalFile.getRemotePath()),
+                                                  WebdavUtils.getEntryPropertyNames(),
+                                                  DavConstants.DEPTH_0);
                     int status = client.executeMethod(propfind, SYNC_READ_TIMEOUT, SYNC_CONNECTION_TIMEOUT);
                     boolean isMultiStatus = status == HttpStatus.SC_MULTI_STATUS;
                     if (isMultiStatus) {
@@ -109,14 +119,31 @@ public class SynchronizeFileOperation extends RemoteOperation {
               
                     /// check changes in server and local file
                     boolean serverChanged = false;
-                    if (mServerFile.getEtag() != null) {
-                        serverChanged = (!mServerFile.getEtag().equals(mLocalFile.getEtag()));   // TODO could this be dangerous when the user upgrades the server from non-tagged to tagged?
+                    if (mServerFile.getEtag() != null && mLocalFile.getEtag() != null) {
+                        serverChanged = (!mServerFile.getEtag().equals(mLocalFile.getEtag()));
                     } else {
-                        // server without etags
+                        // server without etags, or file not synchronized since etags are stored
                         serverChanged = (mServerFile.getModificationTimestamp() > mLocalFile.getModificationTimestampAtLastSyncForData());
                     }
                     boolean localChanged = (mLocalChangeAlreadyKnown || mLocalFile.getLocalModificationTimestamp() > mLocalFile.getLastSyncDateForData());
                         // TODO this will be always true after the app is upgraded to database version 2; will result in unnecessary uploads
+                    
+                    /// a new modification date doesn't mean new contents; compare them with the last synchronized, if known
+                    if (localChanged) {
+                        String checksum = computeLocalChecksum();
+                        if (checksum != null && checksum.equals(mLocalFile.getChecksum())) {
+                            // contents are the same than in the last synchronization; only the date changed
+                            localChanged = false;
+                            saveSynchronizedContents(mLocalFile.getEtag(), mLocalFile.getModificationTimestampAtLastSyncForData(), checksum);
+                            Log_OC.d(TAG, "Contents of " + mLocalFile.getStoragePath() + " not changed, upload not needed");
+                            
+                        } else if (checksum != null && checksum.equals(mServerFile.getChecksum())) {
+                            // contents are already in the server
+                            localChanged = serverChanged = false;
+                            saveSynchronizedContents(mServerFile.getEtag(), mServerFile.getModificationTimestamp(), checksum);
+                            Log_OC.d(TAG, "Contents of " + mLocalFile.getStoragePath() + " equal to the server, transfer not needed");
+                        }
+                    }
               
                     /// decide action to perform depending upon changes
                     if (localChanged && serverChanged) {
@@ -142,6 +169,8 @@ public class SynchronizeFileOperation extends RemoteOperation {
                             mServerFile.setKeepInSync(mLocalFile.keepInSync());
                             mServerFile.setLastSyncDateForData(mLocalFile.getLastSyncDateForData());
                             mServerFile.setStoragePath(mLocalFile.getStoragePath());
+                            mServerFile.setEtag(mLocalFile.getEtag());  // contents were not synchronized
+                            mServerFile.setChecksum(mLocalFile.getChecksum());
                             mServerFile.setParentId(mLocalFile.getParentId());
                             mStorageManager.saveFile(mServerFile);
                             
@@ -171,6 +200,42 @@ public class SynchronizeFileOperation extends RemoteOperation {
     }
 
     
+    /**
+     * Computes the checksum of the contents of the local file, if there is a checksum to compare it with.
+     * 
+     * @return      Checksum of the local file, or NULL if it doesn't need to be computed or could not be.
+     */
+    private String computeLocalChecksum() {
+        if (mLocalFile.getChecksum() == null && mServerFile.getChecksum() == null) {
+            return null;    // no reference; reading the full file would be useless
+        }
+        try {
+            return FileChecksum.compute(new File(mLocalFile.getStoragePath()));
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Checksum of " + mLocalFile.getStoragePath() + " could not be computed", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Records in the database that the local contents of the file are synchronized with the version in the
+     * server with the given ETag, without transferring them.
+     * 
+     * The file is read again from the database, since its properties could be updated after mLocalFile was read.
+     */
+    private void saveSynchronizedContents(String etag, long modificationTimestamp, String checksum) {
+        OCFile file = mStorageManager.getFileByPath(mLocalFile.getRemotePath());
+        if (file != null) {
+            file.setLastSyncDateForData(System.currentTimeMillis());
+            file.setModificationTimestampAtLastSyncForData(modificationTimestamp);
+            file.setEtag(etag);
+            file.setChecksum(checksum);
+            mStorageManager.saveFile(file);
+        }
+    }
+
+
     /**
      * Requests for an upload to the FileUploader service
      * 
@@ -198,6 +263,7 @@ public class SynchronizeFileOperation extends RemoteOperation {
         Intent i = new Intent(mContext, FileDownloader.class);
         i.putExtra(FileDownloader.EXTRA_ACCOUNT, mAccount);
         i.putExtra(FileDownloader.EXTRA_FILE, file);
+        i.putExtra(FileDownloader.EXTRA_SYNC_DOWNLOAD, mAutomaticSync);
         mContext.startService(i);
         mTransferWasRequested = true;
     }
@@ -215,10 +281,22 @@ public class SynchronizeFileOperation extends RemoteOperation {
         file.setFileLength(we.contentLength());
         file.setMimetype(we.contentType());
         file.setModificationTimestamp(we.modifiedTimestamp());
+        file.setEtag(we.etag());
+        file.setChecksum(we.checksum());
         return file;
     }
 
 
+    /**
+     * Marks the operation as part of an automatic synchronization, so that the transfers it requests
+     * don't delay the transfers requested by the user.
+     * 
+     * @param automaticSync     'true' if the operation was not requested by the user.
+     */
+    public void setAutomaticSync(boolean automaticSync) {
+        mAutomaticSync = automaticSync;
+    }
+    
     public boolean transferWasRequested() {
         return mTransferWasRequested;
     }
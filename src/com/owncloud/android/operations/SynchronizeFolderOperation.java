@@ -24,25 +24,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import org.apache.http.HttpStatus;
-import org.apache.jackrabbit.webdav.MultiStatus;
-import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.DavConstants;
 
 import android.accounts.Account;
 import android.content.Context;
 
 import com.owncloud.android.Log_OC;
 import com.owncloud.android.datamodel.DataStorageManager;
+import com.owncloud.android.datamodel.DirectoryListing;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.utils.FileStorageUtils;
 
+import eu.alefzero.webdav.StreamingPropFindMethod;
 import eu.alefzero.webdav.WebdavClient;
 import eu.alefzero.webdav.WebdavEntry;
+import eu.alefzero.webdav.WebdavMultiStatusParser;
 import eu.alefzero.webdav.WebdavUtils;
 
 
@@ -74,7 +78,13 @@ public class SynchronizeFolderOperation extends RemoteOperation {
     private Context mContext;
     
     /** Files and folders contained in the synchronized folder */
-    private List<OCFile> mChildren;
+    private DirectoryListing mChildren;
+
+    /** ETag of the synchronized folder in the server */
+    private String mRemoteFolderEtag;
+    
+    /** Remote paths of the children folders whose subtree did not change in the server since their last complete synchronization */
+    private Set<String> mUnchangedFolders;
 
     private int mConflictsFound;
 
@@ -96,6 +106,7 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         mAccount = account;
         mContext = context;
         mForgottenLocalFiles = new HashMap<String, String>();
+        mUnchangedFolders = new HashSet<String>();
     }
     
     
@@ -116,10 +127,53 @@ public class SynchronizeFolderOperation extends RemoteOperation {
      * 
      * @return      List of files and folders contained in the synchronized folder.
      */
-    public List<OCFile> getChildren() {
+    public DirectoryListing getChildren() {
         return mChildren;
     }
     
+    /**
+     * Returns the list of folders contained in the synchronized folder that need to be synchronized, if called after 
+     * synchronization is complete.
+     * 
+     * Folders whose ETag in the server matches the one stored at the end of their last complete synchronization 
+     * are left out, since nothing changed in their subtrees in the server. The files kept in sync in those subtrees 
+     * are still checked for local changes by this operation.
+     * 
+     * @return      List of folders contained in the synchronized folder with changes in the server.
+     */
+    public List<OCFile> getChangedFolders() {
+        List<OCFile> changedFolders = new Vector<OCFile>();
+        if (mChildren != null) {
+            for (int i=0; i < mChildren.size(); i++) {
+                if (mChildren.isDirectory(i) && !mUnchangedFolders.contains(mChildren.getRemotePath(i))) {
+                    changedFolders.add(mChildren.getFile(i));
+                }
+            }
+        }
+        return changedFolders;
+    }
+    
+    /**
+     * Returns the ETag of the synchronized folder in the server, if called after synchronization is complete.
+     * 
+     * The ETag is not stored by this operation; it should be saved only when the complete subtree of the 
+     * folder was successfully synchronized. 
+     * 
+     * @return      ETag of the synchronized folder, or NULL if the server didn't provide it.
+     */
+    public String getRemoteFolderEtag() {
+        return mRemoteFolderEtag;
+    }
+    
+    /**
+     * Returns the id of the synchronized folder in the local database.
+     * 
+     * @return      Id of the synchronized folder.
+     */
+    public long getFolderId() {
+        return mParentId;
+    }
+    
     
     @Override
     protected RemoteOperationResult run(WebdavClient client) {
@@ -127,34 +181,41 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         mFailsInFavouritesFound = 0;
         mConflictsFound = 0;
         mForgottenLocalFiles.clear();
+        mUnchangedFolders.clear();
+        mRemoteFolderEtag = null;
         
         // code before in FileSyncAdapter.fetchData
-        PropFindMethod query = null;
+        StreamingPropFindMethod query = null;
         try {
             Log_OC.d(TAG, "Synchronizing " + mAccount.name + ", fetching files in " + mRemotePath);
             
             // remote request 
-            query = new PropFindMethod(client.getBaseUri() + WebdavUtils.encodePath(mRemotePath));
+            query = new StreamingPropFindMethod(client.getBaseUri() + WebdavUtils.encodePath(mRemotePath),
+                                                WebdavUtils.getEntryPropertyNames(),
+                                                DavConstants.DEPTH_1);
             int status = client.executeMethod(query);
             
             // check and process response   - /// TODO take into account all the possible status per child-resource
             if (isMultiStatus(status)) { 
-                MultiStatus resp = query.getResponseBodyAsMultiStatus();
+                // the response is read entry by entry, without keeping the full document in memory
+                WebdavMultiStatusParser resp = query.getResponseBodyAsEntries(client.getBaseUri().getPath());
+            
+                WebdavEntry folderEntry = resp.nextEntry();
+                mRemoteFolderEtag = folderEntry.etag();
             
                 // synchronize properties of the parent folder, if necessary
                 if (mParentId == DataStorageManager.ROOT_PARENT_ID) {
-                    WebdavEntry we = new WebdavEntry(resp.getResponses()[0], client.getBaseUri().getPath());
-                    OCFile parent = fillOCFile(we);
+                    OCFile parent = fillOCFile(folderEntry);
+                    parent.setEtag(mStorageManager.getFileByPath(parent.getRemotePath()).getEtag());  // updated only after a complete synchronization
                     mStorageManager.saveFile(parent);
                     mParentId = parent.getFileId();
                 }
                 
                 // read contents in folder
-                List<OCFile> updatedFiles = new Vector<OCFile>(resp.getResponses().length - 1);
+                List<OCFile> updatedFiles = new Vector<OCFile>();
                 List<SynchronizeFileOperation> filesToSyncContents = new Vector<SynchronizeFileOperation>();
-                for (int i = 1; i < resp.getResponses().length; ++i) {
+                for (WebdavEntry we = resp.nextEntry(); we != null; we = resp.nextEntry()) {
                     /// new OCFile instance with the data from the server
-                    WebdavEntry we = new WebdavEntry(resp.getResponses()[i], client.getBaseUri().getPath());
                     OCFile file = fillOCFile(we);
                     
                     /// set data about local state, keeping unchanged former data if existing
@@ -164,8 +225,32 @@ public class SynchronizeFolderOperation extends RemoteOperation {
                         file.setKeepInSync(oldFile.keepInSync());
                         file.setLastSyncDateForData(oldFile.getLastSyncDateForData());
                         file.setModificationTimestampAtLastSyncForData(oldFile.getModificationTimestampAtLastSyncForData());    // must be kept unchanged when the file contents are not updated
+                        file.setEtag(oldFile.getEtag());    // must be kept unchanged when the file contents (or folder subtree) are not updated
+                        file.setChecksum(oldFile.getChecksum());    // same as the ETag
                         checkAndFixForeignStoragePath(oldFile);
                         file.setStoragePath(oldFile.getStoragePath());
+                    } else {
+                        file.setEtag(null);
+                        file.setChecksum(null);
+                    }
+                    
+                    /// folders with the same ETag than in their last complete synchronization don't need to be fetched
+                    if (file.isDirectory() && we.etag() != null && we.etag().equals(file.getEtag())) {
+                        mUnchangedFolders.add(file.getRemotePath());
+                        
+                        /// but the files kept in sync in their subtrees could have changed in the device
+                        for (OCFile keptFile : mStorageManager.getKeptInSyncFiles(oldFile)) {
+                            SynchronizeFileOperation operation = new SynchronizeFileOperation(  keptFile,
+                                                                                                keptFile,   // not changed in the server
+                                                                                                mStorageManager,
+                                                                                                mAccount,
+                                                                                                true,
+                                                                                                false,
+                                                                                                mContext
+                                                                                                );
+                            operation.setAutomaticSync(true);
+                            filesToSyncContents.add(operation);
+                        }
                     }
 
                     /// scan default location if local copy of file is not linked in OCFile instance
@@ -180,13 +265,14 @@ public class SynchronizeFolderOperation extends RemoteOperation {
                     /// prepare content synchronization for kept-in-sync files
                     if (file.keepInSync()) {
                         SynchronizeFileOperation operation = new SynchronizeFileOperation(  oldFile,        
-                                                                                            file, 
+                                                                                            fillOCFile(we),     // keeps the ETag in the server 
                                                                                             mStorageManager,
                                                                                             mAccount,       
                                                                                             true, 
                                                                                             false,          
                                                                                             mContext
                                                                                             );
+                        operation.setAutomaticSync(true);
                         filesToSyncContents.add(operation);
                     }
                 
@@ -218,19 +304,21 @@ public class SynchronizeFolderOperation extends RemoteOperation {
 
                     
                 // removal of obsolete files
-                mChildren = mStorageManager.getDirectoryContent(mStorageManager.getFileById(mParentId));
-                OCFile file;
+                OCFile folder = mStorageManager.getFileById(mParentId);
+                mChildren = mStorageManager.getDirectoryListing(folder);
                 String currentSavePath = FileStorageUtils.getSavePath(mAccount.name);
-                for (int i=0; i < mChildren.size(); ) {
-                    file = mChildren.get(i);
-                    if (file.getLastSyncDateForProperties() != mCurrentSyncTime) {
+                boolean removed = false;
+                for (int i=0; mChildren != null && i < mChildren.size(); i++) {
+                    if (mChildren.getLastSyncDateForProperties(i) != mCurrentSyncTime) {
+                        OCFile file = mChildren.getFile(i);
                         Log_OC.d(TAG, "removing file: " + file);
                         mStorageManager.removeFile(file, (file.isDown() && file.getStoragePath().startsWith(currentSavePath)));
-                        mChildren.remove(i);
-                    } else {
-                        i++;
+                        removed = true;
                     }
                 }
+                if (removed) {
+                    mChildren = mStorageManager.getDirectoryListing(folder);
+                }
                 
             } else {
                 client.exhaustResponse(query.getResponseBodyAsStream());
@@ -280,6 +368,8 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         file.setFileLength(we.contentLength());
         file.setMimetype(we.contentType());
         file.setModificationTimestamp(we.modifiedTimestamp());
+        file.setEtag(we.etag());
+        file.setChecksum(we.checksum());
         file.setParentId(mParentId);
         return file;
     }
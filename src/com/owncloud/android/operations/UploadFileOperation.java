@@ -41,9 +41,10 @@ import com.owncloud.android.network.ProgressiveDataTransferer;
 import com.owncloud.android.operations.RemoteOperation;
 import com.owncloud.android.operations.RemoteOperationResult;
 import com.owncloud.android.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.utils.FileChecksum;
 import com.owncloud.android.utils.FileStorageUtils;
 
-import eu.alefzero.webdav.FileRequestEntity;
+import eu.alefzero.webdav.FileRegionRequestEntity;
 import eu.alefzero.webdav.OnDatatransferProgressListener;
 import eu.alefzero.webdav.WebdavClient;
 import eu.alefzero.webdav.WebdavUtils;
@@ -71,6 +72,8 @@ public class UploadFileOperation extends RemoteOperation {
     PutMethod mPutMethod = null;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private RemoteNameResolver mNameResolver = null;
+    private Object mBatch = null;
 
     protected RequestEntity mEntity = null;
 
@@ -153,6 +156,18 @@ public class UploadFileOperation extends RemoteOperation {
         return mWasRenamed;
     }
 
+    /**
+     * Sets the resolver of names shared with other uploads to the same server, so that the names already 
+     * known in the target folder are not requested again.
+     * 
+     * @param nameResolver  Resolver of available names in the server.
+     * @param batch         Key of the batch of uploads the upload belongs to; NULL if none.
+     */
+    public void setNameResolver(RemoteNameResolver nameResolver, Object batch) {
+        mNameResolver = nameResolver;
+        mBatch = batch;
+    }
+
     public Set<OnDatatransferProgressListener> getDataTransferListeners() {
         return mDataTransferListeners;
     }
@@ -180,10 +195,13 @@ public class UploadFileOperation extends RemoteOperation {
         RemoteOperationResult result = null;
         boolean localCopyPassed = false, nameCheckPassed = false;
         File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
+        RemoteNameResolver nameResolver = (mNameResolver != null) ? mNameResolver : new RemoteNameResolver();
+        String reservedRemotePath = null;
         try {
             // / rename the file to upload, if necessary
             if (!mForceOverwrite) {
-                String remotePath = getAvailableRemotePath(client, mRemotePath);
+                String remotePath = nameResolver.reserveAvailableRemotePath(client, mRemotePath, mBatch);
+                reservedRemotePath = remotePath;
                 mWasRenamed = !remotePath.equals(mRemotePath);
                 if (mWasRenamed) {
                     createNewOCFile(remotePath);
@@ -272,6 +290,7 @@ public class UploadFileOperation extends RemoteOperation {
             // / move local temporal file or original file to its corresponding
             // location in the ownCloud local folder
             if (isSuccess(status)) {
+                mFile.setChecksum(getUploadedChecksum());
                 if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_FORGET) {
                     mFile.setStoragePath(null);
 
@@ -318,6 +337,9 @@ public class UploadFileOperation extends RemoteOperation {
             if (temporalFile != null && !originalFile.equals(temporalFile)) {
                 temporalFile.delete();
             }
+            if (reservedRemotePath != null) {
+                nameResolver.release(reservedRemotePath, result.isSuccess());
+            }
             if (result.isSuccess()) {
                 Log_OC.i(TAG, "Upload of " + mOriginalStoragePath + " to " + mRemotePath + ": " + result.getLogMessage());
             } else {
@@ -357,6 +379,22 @@ public class UploadFileOperation extends RemoteOperation {
         mFile = newFile;
     }
 
+    /**
+     * @return      Checksum of the contents uploaded, or NULL if it could not be known.
+     */
+    private String getUploadedChecksum() {
+        if (mEntity instanceof FileRegionRequestEntity && ((FileRegionRequestEntity) mEntity).getChecksum() != null) {
+            return ((FileRegionRequestEntity) mEntity).getChecksum();   // computed while sending the file
+        }
+        try {
+            // chunks are sent in parallel and in any order, so their contents can't be added to a single digest
+            return FileChecksum.compute(new File(mFile.getStoragePath()));
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Checksum of " + mFile.getStoragePath() + " could not be computed", e);
+            return null;
+        }
+    }
+
     public boolean isSuccess(int status) {
         return ((status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED || status == HttpStatus.SC_NO_CONTENT));
     }
@@ -365,7 +403,7 @@ public class UploadFileOperation extends RemoteOperation {
         int status = -1;
         try {
             File f = new File(mFile.getStoragePath());
-            mEntity  = new FileRequestEntity(f, getMimeType());
+            mEntity  = new FileRegionRequestEntity(f, getMimeType());
             synchronized (mDataTransferListeners) {
                 ((ProgressiveDataTransferer)mEntity).addDatatransferProgressListeners(mDataTransferListeners);
             }
@@ -380,43 +418,6 @@ public class UploadFileOperation extends RemoteOperation {
         return status;
     }
 
-    /**
-     * Checks if remotePath does not exist in the server and returns it, or adds
-     * a suffix to it in order to avoid the server file is overwritten.
-     * 
-     * @param string
-     * @return
-     */
-    private String getAvailableRemotePath(WebdavClient wc, String remotePath) throws Exception {
-        boolean check = wc.existsFile(remotePath);
-        if (!check) {
-            return remotePath;
-        }
-
-        int pos = remotePath.lastIndexOf(".");
-        String suffix = "";
-        String extension = "";
-        if (pos >= 0) {
-            extension = remotePath.substring(pos + 1);
-            remotePath = remotePath.substring(0, pos);
-        }
-        int count = 2;
-        do {
-            suffix = " (" + count + ")";
-            if (pos >= 0)
-                check = wc.existsFile(remotePath + suffix + "." + extension);
-            else
-                check = wc.existsFile(remotePath + suffix);
-            count++;
-        } while (check);
-
-        if (pos >= 0) {
-            return remotePath + suffix + "." + extension;
-        } else {
-            return remotePath + suffix;
-        }
-    }
-
     public void cancel() {
         synchronized (mCancellationRequested) {
             mCancellationRequested.set(true);
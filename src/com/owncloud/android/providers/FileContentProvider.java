@@ -18,7 +18,9 @@
 
 package com.owncloud.android.providers;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import com.owncloud.android.Log_OC;
 import com.owncloud.android.db.ProviderMeta;
@@ -26,11 +28,15 @@ import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
 
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -78,18 +84,28 @@ public class FileContentProvider extends ContentProvider {
                 ProviderTableMeta.FILE_KEEP_IN_SYNC);
         mProjectionMap.put(ProviderTableMeta.FILE_ACCOUNT_OWNER,
                 ProviderTableMeta.FILE_ACCOUNT_OWNER);
+        mProjectionMap.put(ProviderTableMeta.FILE_ETAG,
+                ProviderTableMeta.FILE_ETAG);
+        mProjectionMap.put(ProviderTableMeta.FILE_CHECKSUM,
+                ProviderTableMeta.FILE_CHECKSUM);
     }
 
     private static final int SINGLE_FILE = 1;
     private static final int DIRECTORY = 2;
     private static final int ROOT_DIRECTORY = 3;
+    private static final int SIZES = 4;
     private static final UriMatcher mUriMatcher;
+    
+    /** MIME type of the files whose type is not known by the server */
+    private static final String UNKNOWN_MIMETYPE = "application/octet-stream";
+
     static {
         mUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mUriMatcher.addURI(ProviderMeta.AUTHORITY_FILES, null, ROOT_DIRECTORY);
         mUriMatcher.addURI(ProviderMeta.AUTHORITY_FILES, "file/", SINGLE_FILE);
         mUriMatcher.addURI(ProviderMeta.AUTHORITY_FILES, "file/#", SINGLE_FILE);
         mUriMatcher.addURI(ProviderMeta.AUTHORITY_FILES, "dir/#", DIRECTORY);
+        mUriMatcher.addURI(ProviderMeta.AUTHORITY_FILES, "sizes", SIZES);
     }
 
     @Override
@@ -148,12 +164,82 @@ public class FileContentProvider extends ContentProvider {
         throw new SQLException("ERROR " + uri);
     }
 
+    /**
+     * Inserts or updates a set of entries in a single database transaction.
+     * 
+     * Entries including a value for {@link ProviderTableMeta#_ID} update the existing row with that id, keeping
+     * it; the rest are inserted as new rows, reusing a single compiled INSERT statement. Rows are never replaced,
+     * since the children of a folder refer to its id.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (mUriMatcher.match(uri) != SINGLE_FILE &&
+            mUriMatcher.match(uri) != ROOT_DIRECTORY) {
+            
+            throw new IllegalArgumentException("Unknown uri id: " + uri);
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        DatabaseUtils.InsertHelper inserter = new DatabaseUtils.InsertHelper(db, ProviderTableMeta.DB_NAME);
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                Long id = values[i].getAsLong(ProviderTableMeta._ID);
+                boolean saved;
+                if (id != null) {
+                    ContentValues update = new ContentValues(values[i]);
+                    update.remove(ProviderTableMeta._ID);
+                    saved = (db.update(ProviderTableMeta.DB_NAME, update, ProviderTableMeta._ID + "=?", 
+                            new String[] { String.valueOf(id) }) > 0);
+                } else {
+                    saved = (inserter.insert(values[i]) >= 0);
+                }
+                if (!saved) {
+                    throw new SQLException("ERROR " + uri + " : could not save " + values[i].getAsString(ProviderTableMeta.FILE_PATH));
+                }
+                count++;
+            }
+            db.setTransactionSuccessful();
+            
+        } finally {
+            db.endTransaction();
+            inserter.close();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        return count;
+    }
+
+    /**
+     * Applies all the operations in a batch in a single database transaction.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+            
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public boolean onCreate() {
         mDbHelper = new DataBaseHelper(getContext());
         return true;
     }
 
+    /**
+     * Queries the files table.
+     * 
+     * Besides the selection, the files can be filtered and sorted with the query parameters of 'uri' defined 
+     * in {@link ProviderTableMeta}: QUERY_MIMETYPE_PREFIX, QUERY_KEEP_IN_SYNC, QUERY_DOWNLOADED and QUERY_SORT. 
+     * QUERY_SORT takes precedence over 'sortOrder'.
+     */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -162,28 +248,35 @@ public class FileContentProvider extends ContentProvider {
         sqlQuery.setTables(ProviderTableMeta.DB_NAME);
         sqlQuery.setProjectionMap(mProjectionMap);
 
+        List<String> conditions = new ArrayList<String>();
         switch (mUriMatcher.match(uri)) {
         case ROOT_DIRECTORY:
             break;
         case DIRECTORY:
-            sqlQuery.appendWhere(ProviderTableMeta.FILE_PARENT + "="
+            conditions.add(ProviderTableMeta.FILE_PARENT + "="
                     + uri.getPathSegments().get(1));
             break;
         case SINGLE_FILE:
             if (uri.getPathSegments().size() > 1) {
-                sqlQuery.appendWhere(ProviderTableMeta._ID + "="
+                conditions.add(ProviderTableMeta._ID + "="
                         + uri.getPathSegments().get(1));
             }
             break;
         default:
             throw new IllegalArgumentException("Unknown uri id: " + uri);
         }
+        addFilters(uri, conditions);
+        if (!conditions.isEmpty()) {
+            sqlQuery.appendWhere(TextUtils.join(" AND ", conditions));
+        }
 
-        String order;
-        if (TextUtils.isEmpty(sortOrder)) {
-            order = ProviderTableMeta.DEFAULT_SORT_ORDER;
-        } else {
-            order = sortOrder;
+        String order = getSortOrder(uri);
+        if (order == null) {
+            if (TextUtils.isEmpty(sortOrder)) {
+                order = ProviderTableMeta.DEFAULT_SORT_ORDER;
+            } else {
+                order = sortOrder;
+            }
         }
 
         SQLiteDatabase db = mDbHelper.getReadableDatabase();
@@ -195,13 +288,119 @@ public class FileContentProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Adds to 'conditions' the filters requested in the query parameters of 'uri'.
+     */
+    private static void addFilters(Uri uri, List<String> conditions) {
+        String mimeTypePrefix = uri.getQueryParameter(ProviderTableMeta.QUERY_MIMETYPE_PREFIX);
+        if (!TextUtils.isEmpty(mimeTypePrefix)) {
+            // a range instead of LIKE, so that the index on the MIME type can be used 
+            char last = mimeTypePrefix.charAt(mimeTypePrefix.length() - 1);
+            String upperBound = mimeTypePrefix.substring(0, mimeTypePrefix.length() - 1) + (char) (last + 1);
+            String condition = "(" + ProviderTableMeta.FILE_CONTENT_TYPE + " >= " + DatabaseUtils.sqlEscapeString(mimeTypePrefix) + 
+                    " AND " + ProviderTableMeta.FILE_CONTENT_TYPE + " < " + DatabaseUtils.sqlEscapeString(upperBound) + ")";
+            if ("1".equals(uri.getQueryParameter(ProviderTableMeta.QUERY_INCLUDE_UNKNOWN_MIMETYPE))) {
+                condition = "(" + condition + 
+                        " OR " + ProviderTableMeta.FILE_CONTENT_TYPE + " IS NULL" + 
+                        " OR " + ProviderTableMeta.FILE_CONTENT_TYPE + " = '" + UNKNOWN_MIMETYPE + "')";
+            }
+            conditions.add(condition);
+        }
+        
+        String keepInSync = uri.getQueryParameter(ProviderTableMeta.QUERY_KEEP_IN_SYNC);
+        if (keepInSync != null) {
+            // the column has no default value; NULL means not kept in sync
+            conditions.add("IFNULL(" + ProviderTableMeta.FILE_KEEP_IN_SYNC + ", 0) = " + ("1".equals(keepInSync) ? "1" : "0"));
+        }
+        
+        String downloaded = uri.getQueryParameter(ProviderTableMeta.QUERY_DOWNLOADED);
+        if (downloaded != null) {
+            conditions.add(ProviderTableMeta.FILE_STORAGE_PATH + ("1".equals(downloaded) ? " IS NOT NULL" : " IS NULL"));
+        }
+    }
+    
+    /**
+     * @return      Sort order requested in the query parameters of 'uri', or NULL if none.
+     */
+    private static String getSortOrder(Uri uri) {
+        String sort = uri.getQueryParameter(ProviderTableMeta.QUERY_SORT);
+        if (sort == null) {
+            return null;
+        }
+        String direction = "1".equals(uri.getQueryParameter(ProviderTableMeta.QUERY_SORT_DESCENDING)) ? " DESC" : " ASC";
+        String byName = ProviderTableMeta.FILE_NAME + " COLLATE NOCASE";
+        String order = "(" + ProviderTableMeta.FILE_CONTENT_TYPE + " = 'DIR') DESC, ";     // folders first
+        if (ProviderTableMeta.SORT_BY_NAME.equals(sort)) {
+            order += byName + direction;
+        } else if (ProviderTableMeta.SORT_BY_SIZE.equals(sort)) {
+            order += ProviderTableMeta.FILE_CONTENT_LENGTH + direction + ", " + byName + " ASC";
+        } else if (ProviderTableMeta.SORT_BY_MODIFIED.equals(sort)) {
+            order += ProviderTableMeta.FILE_MODIFIED + direction + ", " + byName + " ASC";
+        } else {
+            throw new IllegalArgumentException("Unknown sort order: " + sort);
+        }
+        return order;
+    }
+
+    /**
+     * Updates the entries matching the selection. 
+     * 
+     * With {@link ProviderTableMeta#CONTENT_URI_SIZES}, the value received for {@link ProviderTableMeta#FILE_CONTENT_LENGTH}
+     * is added to the current size of every selected entry, in a single statement, instead of replacing it.
+     */
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
+        if (mUriMatcher.match(uri) == SIZES) {
+            return increaseSizes(values.getAsLong(ProviderTableMeta.FILE_CONTENT_LENGTH), selection, selectionArgs);
+        }
         return mDbHelper.getWritableDatabase().update(
                 ProviderTableMeta.DB_NAME, values, selection, selectionArgs);
     }
 
+    private int increaseSizes(Long delta, String selection, String[] selectionArgs) {
+        if (delta == null) {
+            throw new IllegalArgumentException("Missing size increment");
+        }
+        Object[] bindArgs = new Object[(selectionArgs == null) ? 1 : selectionArgs.length + 1];
+        bindArgs[0] = delta;
+        for (int i = 1; i < bindArgs.length; i++) {
+            bindArgs[i] = selectionArgs[i - 1];
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.execSQL("UPDATE " + ProviderTableMeta.DB_NAME + 
+                " SET " + ProviderTableMeta.FILE_CONTENT_LENGTH + " = " + ProviderTableMeta.FILE_CONTENT_LENGTH + " + ?" +
+                (!TextUtils.isEmpty(selection) ? " WHERE " + selection : ""), bindArgs);
+        
+        Cursor c = db.rawQuery("SELECT changes()", null);
+        int count = c.moveToFirst() ? c.getInt(0) : 0;
+        c.close();
+        return count;
+    }
+
+    /**
+     * Creates the indexes on the files table used by the lookups of FileDataStorageManager: by remote 
+     * path, by parent folder (and MIME type in it) and by 'keep in sync' state. 
+     * 
+     * The index on remote path also enforces that there is a single entry per remote path in every account.
+     * 
+     * @param db        Database where the files table was created.
+     */
+    public static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + ProviderTableMeta.DB_NAME + "_owner_path_idx ON " 
+                + ProviderTableMeta.DB_NAME + " (" 
+                + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " 
+                + ProviderTableMeta.FILE_PATH + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.DB_NAME + "_owner_parent_type_idx ON " 
+                + ProviderTableMeta.DB_NAME + " (" 
+                + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " 
+                + ProviderTableMeta.FILE_PARENT + ", " 
+                + ProviderTableMeta.FILE_CONTENT_TYPE + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.DB_NAME + "_keep_in_sync_idx ON " 
+                + ProviderTableMeta.DB_NAME + " (" 
+                + ProviderTableMeta.FILE_KEEP_IN_SYNC + ");");
+    }
+
     class DataBaseHelper extends SQLiteOpenHelper {
 
         public DataBaseHelper(Context context) {
@@ -227,8 +426,11 @@ public class FileContentProvider extends ContentProvider {
                     + ProviderTableMeta.FILE_LAST_SYNC_DATE + " INTEGER, "
                     + ProviderTableMeta.FILE_KEEP_IN_SYNC + " INTEGER, "
                     + ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA + " INTEGER, "
-                    + ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA + " INTEGER );"
+                    + ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA + " INTEGER, "
+                    + ProviderTableMeta.FILE_ETAG + " TEXT, "
+                    + ProviderTableMeta.FILE_CHECKSUM + " TEXT );"
                     );
+            createIndexes(db);
         }
 
         @Override
@@ -279,6 +481,78 @@ public class FileContentProvider extends ContentProvider {
                     db.endTransaction();
                 }
             }
+            if (oldVersion < 5 && newVersion >= 5) {
+                Log_OC.i("SQL", "Entering in the #4 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.DB_NAME +
+                           " ADD COLUMN " + ProviderTableMeta.FILE_ETAG + " TEXT " +
+                           " DEFAULT NULL");
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (oldVersion < 6 && newVersion >= 6) {
+                Log_OC.i("SQL", "Entering in the #5 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // remove duplicated entries, if any, before enforcing unique remote paths per account;
+                    // the children of the removed entries are moved to the entry kept for the same path
+                    db.execSQL("UPDATE " + ProviderTableMeta.DB_NAME + 
+                            " SET " + ProviderTableMeta.FILE_PARENT + " = (SELECT MIN(kept." + ProviderTableMeta._ID + ")" +
+                                " FROM " + ProviderTableMeta.DB_NAME + " kept, " + ProviderTableMeta.DB_NAME + " removed" +
+                                " WHERE removed." + ProviderTableMeta._ID + " = " + ProviderTableMeta.DB_NAME + "." + ProviderTableMeta.FILE_PARENT + 
+                                " AND kept." + ProviderTableMeta.FILE_ACCOUNT_OWNER + " = removed." + ProviderTableMeta.FILE_ACCOUNT_OWNER + 
+                                " AND kept." + ProviderTableMeta.FILE_PATH + " = removed." + ProviderTableMeta.FILE_PATH + ")" +
+                            " WHERE " + ProviderTableMeta.FILE_PARENT + " NOT IN (SELECT MIN(" + ProviderTableMeta._ID + ")" +
+                                " FROM " + ProviderTableMeta.DB_NAME + 
+                                " GROUP BY " + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_PATH + ")" + 
+                            " AND " + ProviderTableMeta.FILE_PARENT + " IN (SELECT " + ProviderTableMeta._ID + 
+                                " FROM " + ProviderTableMeta.DB_NAME + ")");
+                    db.execSQL("DELETE FROM " + ProviderTableMeta.DB_NAME + 
+                            " WHERE " + ProviderTableMeta._ID + " NOT IN (SELECT MIN(" + ProviderTableMeta._ID + ")" +
+                                " FROM " + ProviderTableMeta.DB_NAME + 
+                                " GROUP BY " + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_PATH + ")");
+                    
+                    createIndexes(db);
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (oldVersion < 7 && newVersion >= 7) {
+                Log_OC.i("SQL", "Entering in the #6 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.DB_NAME +
+                           " ADD COLUMN " + ProviderTableMeta.FILE_CHECKSUM + " TEXT " +
+                           " DEFAULT NULL");
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (oldVersion < 8 && newVersion >= 8) {
+                Log_OC.i("SQL", "Entering in the #7 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // the index by parent folder and MIME type also serves the lookups by parent folder 
+                    db.execSQL("DROP INDEX IF EXISTS " + ProviderTableMeta.DB_NAME + "_owner_parent_idx");
+                    createIndexes(db);
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
             if (!upgraded)
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
         }
@@ -21,8 +21,17 @@ package com.owncloud.android.syncadapter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.jackrabbit.webdav.DavException;
 
@@ -32,7 +41,9 @@ import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.DataStorageManager;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.network.OwnCloudClientUtils;
 import com.owncloud.android.operations.RemoteOperationResult;
+import com.owncloud.android.operations.RetryPolicy;
 import com.owncloud.android.operations.SynchronizeFolderOperation;
 import com.owncloud.android.operations.UpdateOCVersionOperation;
 import com.owncloud.android.operations.RemoteOperationResult.ResultCode;
@@ -50,6 +61,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SyncResult;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 
 /**
  * SyncAdapter implementation for syncing sample SyncAdapter contacts to the
@@ -67,8 +79,30 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
      */
     private static final int MAX_FAILED_RESULTS = 3; 
     
+    /**
+     * Key of the preference setting the maximum number of folders synchronized in parallel
+     */
+    public static final String PREF_PARALLEL_FOLDER_SYNCS = "sync_parallel_folders";
+    
+    /**
+     * Default number of folders synchronized in parallel; leaves free connections for transfers in progress 
+     */
+    private static final int DEFAULT_PARALLEL_FOLDER_SYNCS = 3;
+    
+    /**
+     * Maximum time waiting for the folder synchronizations in progress to stop when the synchronization is
+     * finished, in milliseconds; an interrupted request can't take longer than the socket timeout
+     */
+    private static final long FOLDER_SYNCS_TERMINATION_TIMEOUT = 
+            OwnCloudClientUtils.DEFAULT_CONNECTION_TIMEOUT + OwnCloudClientUtils.DEFAULT_DATA_TIMEOUT;
+    
+    /**
+     * Minimum time between two messages to the UI about synchronized folders, in milliseconds
+     */
+    public static final long SYNCED_FOLDERS_BROADCAST_INTERVAL = 1000;
+    
     private long mCurrentSyncTime;
-    private boolean mCancellation;
+    private volatile boolean mCancellation;
     private boolean mIsManualSync;
     private int mFailedResultsCounter;    
     private RemoteOperationResult mLastFailedResult;
@@ -76,6 +110,27 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     private int mConflictsFound;
     private int mFailsInFavouritesFound;
     private Map<String, String> mForgottenLocalFiles;
+    
+    /** Lock protecting the results of the synchronization, shared by all the folder synchronizations in progress */
+    private final Object mResultsLock = new Object();
+    
+    /** Pool of threads synchronizing folders in parallel */
+    private ExecutorService mFolderSyncExecutor;
+    
+    /** Released when the synchronization of the complete tree of folders is finished */
+    private CountDownLatch mFoldersSyncFinished;
+    
+    /** Folders synchronized since the last message sent to the UI; guards the fields below, too */
+    private final Set<String> mSyncedFolders = new HashSet<String>();
+    
+    /** Time of the last message sent to the UI */
+    private long mLastSyncedFoldersBroadcast;
+    
+    /** 'True' while a message with the folders in {@link #mSyncedFolders} is scheduled */
+    private boolean mSyncedFoldersBroadcastScheduled;
+    
+    /** Delays the messages to the UI about synchronized folders */
+    private ScheduledExecutorService mBroadcastScheduler;
 
     
     public FileSyncAdapter(Context context, boolean autoInitialize) {
@@ -100,6 +155,12 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         mSyncResult = syncResult;
         mSyncResult.fullSyncRequested = false;
         mSyncResult.delayUntil = 60*60*24; // sync after 24h
+        synchronized (mSyncedFolders) {
+            mSyncedFolders.clear();
+            mLastSyncedFoldersBroadcast = 0;
+            mSyncedFoldersBroadcastScheduled = false;
+            mBroadcastScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
 
         this.setAccount(account);
         this.setContentProvider(provider);
@@ -110,11 +171,13 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             /// the account is unknown for the Synchronization Manager, or unreachable for this context; don't try this again
             mSyncResult.tooManyRetries = true;
             notifyFailedSynchronization();
+            mBroadcastScheduler.shutdownNow();
             return;
         } catch (AccountsException e) {
             /// the account is unknown for the Synchronization Manager, or unreachable for this context; don't try this again
             mSyncResult.tooManyRetries = true;
             notifyFailedSynchronization();
+            mBroadcastScheduler.shutdownNow();
             return;
         }
         
@@ -125,7 +188,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             updateOCVersion();
             mCurrentSyncTime = System.currentTimeMillis();
             if (!mCancellation) {
-                fetchData(OCFile.PATH_SEPARATOR, DataStorageManager.ROOT_PARENT_ID);
+                fetchTree();
                 
             } else {
                 Log_OC.d(TAG, "Leaving synchronization before any remote request due to cancellation was requested");
@@ -151,7 +214,8 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
                 notifyForgottenLocalFiles();
                 
             }
-            sendStickyBroadcast(false, null, mLastFailedResult);        // message to signal the end to the UI
+            sendSyncedFolders(false, mLastFailedResult);        // message to signal the end to the UI
+            mBroadcastScheduler.shutdownNow();
         }
         
     }
@@ -183,20 +247,136 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     
     
     /**
-     * Synchronize the properties of files and folders contained in a remote folder given by remotePath.
+     * Synchronizes the complete tree of folders in the account, starting from the root folder.
+     * 
+     * Independent folders are synchronized in parallel by a bounded pool of threads, sharing the
+     * client of the account and its pool of connections. The number of threads is read from the 
+     * preference {@link #PREF_PARALLEL_FOLDER_SYNCS}, and limited by {@link OwnCloudClientUtils#MAX_CONNECTIONS}.
      * 
-     * @param remotePath        Remote path to the folder to synchronize.
-     * @param parentId          Database Id of the folder to synchronize.
+     * Returns when all the folders were synchronized, or the synchronization was stopped due
+     * to failures or cancellation; in any case, once all the threads of the pool are stopped, so
+     * that no folder is written after the synchronization ends.
      */
-    private void fetchData(String remotePath, long parentId) {
+    private void fetchTree() {
+        int parallelSyncs = PreferenceManager.getDefaultSharedPreferences(getContext()).
+                getInt(PREF_PARALLEL_FOLDER_SYNCS, DEFAULT_PARALLEL_FOLDER_SYNCS);
+        parallelSyncs = Math.max(1, Math.min(parallelSyncs, OwnCloudClientUtils.MAX_CONNECTIONS));
         
-        if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult))
-            return;
+        mFoldersSyncFinished = new CountDownLatch(1);
+        mFolderSyncExecutor = Executors.newFixedThreadPool(parallelSyncs);
+        try {
+            mFolderSyncExecutor.execute(new FolderSyncTask(OCFile.PATH_SEPARATOR, DataStorageManager.ROOT_PARENT_ID, null));
+            mFoldersSyncFinished.await();
+            
+        } catch (InterruptedException e) {
+            Log_OC.e(TAG, "Interrupted while waiting for the synchronization of folders; cancelling", e);
+            mCancellation = true;
+            
+        } finally {
+            mFolderSyncExecutor.shutdownNow();
+            try {
+                if (!mFolderSyncExecutor.awaitTermination(FOLDER_SYNCS_TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    Log_OC.e(TAG, "Synchronization of folders still running after " + FOLDER_SYNCS_TERMINATION_TIMEOUT + " ms");
+                }
+            } catch (InterruptedException e) {
+                Log_OC.e(TAG, "Interrupted while waiting for the end of the synchronization of folders", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    
+    /**
+     * Synchronization of a folder, run by a thread in {@link #mFolderSyncExecutor}.
+     * 
+     * Keeps track of the synchronizations pending in the subtree of the folder, so that actions depending 
+     * on the complete subtree, like storing the ETag of the folder, are done when the last one finishes.
+     */
+    private class FolderSyncTask implements Runnable {
+        
+        private final String mRemotePath;
+        private final long mParentId;
+        private final FolderSyncTask mParentTask;
+        
+        /** Synchronizations pending in the subtree: the folder itself, plus the children folders not finished yet */
+        private final AtomicInteger mPendingSyncs = new AtomicInteger(1);
+        
+        /** Set to 'false' when any folder in the subtree could not be completely synchronized */
+        private volatile boolean mCompleted = true;
+        
+        /** Operation synchronizing the folder, once finished successfully */
+        private SynchronizeFolderOperation mOperation = null;
+        
+        /**
+         * @param remotePath        Remote path to the folder to synchronize.
+         * @param parentId          Database Id of the folder to synchronize.
+         * @param parentTask        Synchronization of the parent folder; NULL for the root folder.
+         */
+        public FolderSyncTask(String remotePath, long parentId, FolderSyncTask parentTask) {
+            mRemotePath = remotePath;
+            mParentId = parentId;
+            mParentTask = parentTask;
+        }
+        
+        @Override
+        public void run() {
+            boolean success = false;
+            try {
+                if (!mCancellation) {
+                    success = fetchData(this);
+                }
+                
+            } catch (RuntimeException e) {
+                Log_OC.e(TAG, "Unexpected exception while synchronizing folder " + mRemotePath, e);
+                
+            } finally {
+                if (!success) {
+                    mCompleted = false;
+                }
+                finishSync();
+            }
+        }
+        
+        /**
+         * Called when the synchronization of the complete subtree of a child folder is finished.
+         * 
+         * @param child     Synchronization of the child folder.
+         */
+        private void onChildFinished(FolderSyncTask child) {
+            if (!child.mCompleted) {
+                mCompleted = false;
+            }
+            finishSync();
+        }
+        
+        private void finishSync() {
+            if (mPendingSyncs.decrementAndGet() == 0) {
+                onSubtreeFinished(this);
+            }
+        }
+    }
+    
+    
+    /**
+     * Synchronize the properties of files and folders contained in the remote folder of a {@link FolderSyncTask}.
+     * 
+     * Children folders are only fetched when their ETag in the server differs from the one stored at the end 
+     * of their last complete synchronization. Their synchronizations are queued in {@link #mFolderSyncExecutor}.
+     * 
+     * @param task      Synchronization of the folder.
+     * @return          'True' if the properties of the folder contents were successfully synchronized.
+     */
+    private boolean fetchData(FolderSyncTask task) {
+        
+        synchronized (mResultsLock) {
+            if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult))
+                return false;
+        }
         
         // perform folder synchronization
-        SynchronizeFolderOperation synchFolderOp = new SynchronizeFolderOperation(  remotePath, 
+        SynchronizeFolderOperation synchFolderOp = new SynchronizeFolderOperation(  task.mRemotePath, 
                                                                                     mCurrentSyncTime, 
-                                                                                    parentId, 
+                                                                                    task.mParentId, 
                                                                                     getStorageManager(), 
                                                                                     getAccount(), 
                                                                                     getContext()
@@ -205,35 +385,43 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         
         
         // synchronized folder -> notice to UI - ALWAYS, although !result.isSuccess
-        sendStickyBroadcast(true, remotePath, null);
+        notifySyncedFolder(task.mRemotePath);
         
         if (result.isSuccess() || result.getCode() == ResultCode.SYNC_CONFLICT) {
             
-            if (result.getCode() == ResultCode.SYNC_CONFLICT) {
-                mConflictsFound += synchFolderOp.getConflictsFound();
-                mFailsInFavouritesFound += synchFolderOp.getFailsInFavouritesFound();
+            synchronized (mResultsLock) {
+                if (result.getCode() == ResultCode.SYNC_CONFLICT) {
+                    mConflictsFound += synchFolderOp.getConflictsFound();
+                    mFailsInFavouritesFound += synchFolderOp.getFailsInFavouritesFound();
+                }
+                if (synchFolderOp.getForgottenLocalFiles().size() > 0) {
+                    mForgottenLocalFiles.putAll(synchFolderOp.getForgottenLocalFiles());
+                }
             }
-            if (synchFolderOp.getForgottenLocalFiles().size() > 0) {
-                mForgottenLocalFiles.putAll(synchFolderOp.getForgottenLocalFiles());
-            }
-            // synchronize children folders 
-            List<OCFile> children = synchFolderOp.getChildren();
-            fetchChildren(children);    // beware of the 'hidden' recursion here!
+            task.mOperation = synchFolderOp;
+            
+            // synchronize children folders with changes in the server 
+            List<OCFile> children = synchFolderOp.getChangedFolders();
+            fetchChildren(task, children);
             
-            sendStickyBroadcast(true, remotePath, null);
+            return result.isSuccess();
             
         } else {
-            if (result.getCode() == RemoteOperationResult.ResultCode.UNAUTHORIZED) {
-                mSyncResult.stats.numAuthExceptions++;
-                
-            } else if (result.getException() instanceof DavException) {
-                mSyncResult.stats.numParseExceptions++;
-                
-            } else if (result.getException() instanceof IOException) { 
-                mSyncResult.stats.numIoExceptions++;
+            synchronized (mResultsLock) {
+                if (result.getCode() == RemoteOperationResult.ResultCode.UNAUTHORIZED) {
+                    mSyncResult.stats.numAuthExceptions++;
+                    
+                } else if (result.getException() instanceof DavException) {
+                    mSyncResult.stats.numParseExceptions++;
+                    
+                } else if (result.getException() instanceof IOException || RetryPolicy.isRetryable(result)) { 
+                    // soft errors, like server failures, make the system retry the synchronization with backoff 
+                    mSyncResult.stats.numIoExceptions++;
+                }
+                mFailedResultsCounter++;
+                mLastFailedResult = result;
             }
-            mFailedResultsCounter++;
-            mLastFailedResult = result;
+            return false;
         }
             
     }
@@ -257,38 +445,132 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     }
 
     /**
-     * Synchronize data of folders in the list of received files
+     * Queues the synchronization of the folders in the list of received files
      * 
+     * @param parentTask    Synchronization of the folder containing the files.
      * @param files         Files to recursively fetch 
      */
-    private void fetchChildren(List<OCFile> files) {
+    private void fetchChildren(FolderSyncTask parentTask, List<OCFile> files) {
         int i;
         for (i=0; i < files.size() && !mCancellation; i++) {
             OCFile newFile = files.get(i);
             if (newFile.isDirectory()) {
-                fetchData(newFile.getRemotePath(), newFile.getFileId());
-                
-                // Update folder size on DB
-                getStorageManager().calculateFolderSize(newFile.getFileId());                   
+                parentTask.mPendingSyncs.incrementAndGet();
+                try {
+                    mFolderSyncExecutor.execute(new FolderSyncTask(newFile.getRemotePath(), newFile.getFileId(), parentTask));
+                } catch (RejectedExecutionException e) {
+                    // the pool is stopped; the synchronization was cancelled
+                    parentTask.mPendingSyncs.decrementAndGet();
+                    parentTask.mCompleted = false;
+                    break;
+                }
             }
         }
        
-        if (mCancellation && i <files.size()) Log_OC.d(TAG, "Leaving synchronization before synchronizing " + files.get(i).getRemotePath() + " because cancelation request");
+        if (mCancellation && i <files.size()) {
+            Log_OC.d(TAG, "Leaving synchronization before synchronizing " + files.get(i).getRemotePath() + " because cancelation request");
+            parentTask.mCompleted = false;
+        }
+    }
+    
+    /**
+     * Called when the synchronization of a folder and all its subtree is finished, successfully or not.
+     * 
+     * If the complete subtree is up to date, stores the ETag of the folder so that it can be skipped in next 
+     * synchronizations while the ETag doesn't change in the server.
+     * 
+     * @param task      Synchronization of the folder.
+     */
+    private void onSubtreeFinished(FolderSyncTask task) {
+        SynchronizeFolderOperation synchFolderOp = task.mOperation;
+        if (synchFolderOp != null) {
+            if (task.mCompleted && !mCancellation && synchFolderOp.getRemoteFolderEtag() != null) {
+                getStorageManager().updateEtag(synchFolderOp.getFolderId(), synchFolderOp.getRemoteFolderEtag());
+            }
+            
+            notifySyncedFolder(task.mRemotePath);
+        }
+        
+        if (task.mParentTask != null) {
+            task.mParentTask.onChildFinished(task);
+        } else {
+            mFoldersSyncFinished.countDown();
+        }
     }
 
     
+    /**
+     * Notices the UI that a folder was synchronized.
+     * 
+     * Folders synchronized in a short time are coalesced in a single message, sent at most once every 
+     * {@link #SYNCED_FOLDERS_BROADCAST_INTERVAL}, so that the UI doesn't refresh for every folder
+     * in large synchronizations.
+     * 
+     * @param dirRemotePath     Remote path of a folder that was just synchronized (with or without success)
+     */
+    private void notifySyncedFolder(String dirRemotePath) {
+        synchronized (mSyncedFolders) {
+            mSyncedFolders.add(dirRemotePath);
+            if (mSyncedFoldersBroadcastScheduled) {
+                return;     // will be sent with the scheduled message
+            }
+            if (mBroadcastScheduler.isShutdown()) {
+                return;     // the synchronization already finished; nothing else is sent
+            }
+            long delay = mLastSyncedFoldersBroadcast + SYNCED_FOLDERS_BROADCAST_INTERVAL - System.currentTimeMillis();
+            if (delay > 0) {
+                try {
+                    mBroadcastScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (mSyncedFolders) {
+                                if (mSyncedFoldersBroadcastScheduled) {     // else, already sent 
+                                    sendSyncedFolders(true, null);
+                                }
+                            }
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                    mSyncedFoldersBroadcastScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    return;     // shut down in the meantime; the synchronization finished
+                }
+                return;
+            }
+            sendSyncedFolders(true, null);
+        }
+    }
+    
+    
+    /**
+     * Sends a message to the UI with all the folders synchronized since the last one.
+     * 
+     * @param inProgress        'True' when the synchronization progress is not finished.
+     * @param result            Result of the synchronization, when finished with a failure.
+     */
+    private void sendSyncedFolders(boolean inProgress, RemoteOperationResult result) {
+        synchronized (mSyncedFolders) {
+            ArrayList<String> folders = new ArrayList<String>(mSyncedFolders);
+            mSyncedFolders.clear();
+            mSyncedFoldersBroadcastScheduled = false;
+            mLastSyncedFoldersBroadcast = System.currentTimeMillis();
+            sendStickyBroadcast(inProgress, folders, result);
+        }
+    }
+    
+    
     /**
      * Sends a message to any application component interested in the progress of the synchronization.
      * 
      * @param inProgress        'True' when the synchronization progress is not finished.
-     * @param dirRemotePath     Remote path of a folder that was just synchronized (with or without success)
+     * @param dirRemotePaths    Remote paths of the folders that were synchronized (with or without success) since
+     *                          the last message.
      */
-    private void sendStickyBroadcast(boolean inProgress, String dirRemotePath, RemoteOperationResult result) {
+    private void sendStickyBroadcast(boolean inProgress, ArrayList<String> dirRemotePaths, RemoteOperationResult result) {
         Intent i = new Intent(FileSyncService.SYNC_MESSAGE);
         i.putExtra(FileSyncService.IN_PROGRESS, inProgress);
         i.putExtra(FileSyncService.ACCOUNT_NAME, getAccount().name);
-        if (dirRemotePath != null) {
-            i.putExtra(FileSyncService.SYNC_FOLDER_REMOTE_PATH, dirRemotePath);
+        if (dirRemotePaths != null && dirRemotePaths.size() > 0) {
+            i.putStringArrayListExtra(FileSyncService.SYNC_FOLDER_REMOTE_PATHS, dirRemotePaths);
         }
         if (result != null) {
             i.putExtra(FileSyncService.SYNC_RESULT, result);
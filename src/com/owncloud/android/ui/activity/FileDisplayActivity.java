@@ -19,6 +19,7 @@
 package com.owncloud.android.ui.activity;
 
 import java.io.File;
+import java.util.List;
 
 import android.accounts.Account;
 import android.app.AlertDialog;
@@ -827,7 +828,8 @@ OCFileListFragment.ContainerActivity, FileDetailFragment.ContainerActivity, OnNa
 
             if (getAccount() != null && accountName.equals(getAccount().name)) {  
 
-                String synchFolderRemotePath = intent.getStringExtra(FileSyncService.SYNC_FOLDER_REMOTE_PATH); 
+                // folders synchronized since the last message, coalesced by the synchronization adapter
+                List<String> synchFolderRemotePaths = intent.getStringArrayListExtra(FileSyncService.SYNC_FOLDER_REMOTE_PATHS); 
 
                 boolean fillBlankRoot = false;
                 OCFile currentDir = getCurrentDir();
@@ -836,13 +838,12 @@ OCFileListFragment.ContainerActivity, FileDetailFragment.ContainerActivity, OnNa
                     fillBlankRoot = (currentDir != null);                   
                 }
 
-                if ((synchFolderRemotePath != null && currentDir != null && (currentDir.getRemotePath().equals(synchFolderRemotePath)))
+                if ((synchFolderRemotePaths != null && currentDir != null && synchFolderRemotePaths.contains(currentDir.getRemotePath()))
                         || fillBlankRoot ) {
-                    if (!fillBlankRoot) 
-                        currentDir = getStorageManager().getFileByPath(synchFolderRemotePath);
+                    // the contents of the folder are reloaded out of the main thread by the list fragment
                     OCFileListFragment fileListFragment = getListOfFilesFragment();
                     if (fileListFragment != null) {
-                        fileListFragment.listDirectory(currentDir);
+                        fileListFragment.listDirectory(currentDir, true);
                     }
                     if (getSecondFragment() == null)
                         setFile(currentDir);
@@ -19,12 +19,16 @@ package com.owncloud.android.ui.adapter;
 
 import android.accounts.Account;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.ImageView;
-import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
@@ -33,180 +37,324 @@ import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.datamodel.DataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader.FileUploaderBinder;
+import com.owncloud.android.syncadapter.FileSyncAdapter;
 import com.owncloud.android.ui.activity.TransferServiceGetter;
 
-import java.util.Vector;
+import java.io.File;
 
 
 /**
  * This Adapter populates a ListView with all files and folders in an ownCloud
  * instance.
  * 
+ * Rows are bound directly from a cursor over the contents of a folder in the database, 
+ * created with {@link #createLoader(Context, Account, OCFile)} to query it out of the main 
+ * thread. The cursor reads the rows in windows, so only the rows around the visible ones 
+ * are in memory, and an {@link OCFile} is built only for the rows clicked.
+ * 
  * @author Bartek Przybylski
  * 
  */
-public class FileListListAdapter extends BaseAdapter implements ListAdapter {
+public class FileListListAdapter extends CursorAdapter {
+    
+    /** Columns read to show a row; the rest of properties of a file are read only when clicked */
+    private static final String[] LIST_PROJECTION = new String[] {
+        ProviderTableMeta._ID,
+        ProviderTableMeta.FILE_PATH,
+        ProviderTableMeta.FILE_CONTENT_TYPE,
+        ProviderTableMeta.FILE_CONTENT_LENGTH,
+        ProviderTableMeta.FILE_MODIFIED,
+        ProviderTableMeta.FILE_KEEP_IN_SYNC,
+        ProviderTableMeta.FILE_STORAGE_PATH
+    };
+    
     private Context mContext;
     private OCFile mFile = null;
-    private Vector<OCFile> mFiles = null;
     private DataStorageManager mStorageManager;
     private Account mAccount;
     private TransferServiceGetter mTransferServiceGetter;
-    //total size of a directory (recursive)
-    private Long totalSizeOfDirectoriesRecursive = null;
-    private Long lastModifiedOfAllSubdirectories = null;
+    private ListView mParentList = null;
+
+    /** Indexes of the columns in the current cursor, found once per cursor */
+    private int mPathIndex, mMimeTypeIndex, mLengthIndex, mModifiedIndex, mKeepInSyncIndex, mStoragePathIndex;
     
     public FileListListAdapter(Context context, TransferServiceGetter transferServiceGetter) {
+        super(context, null, 0);
         mContext = context;
         mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
         mTransferServiceGetter = transferServiceGetter;
     }
 
-    @Override
-    public boolean areAllItemsEnabled() {
-        return true;
+    
+    /**
+     * Creates a loader of the contents of a folder in the background, to swap in the adapter with 
+     * {@link #swapDirectory(OCFile, Cursor, DataStorageManager)} when loaded.
+     * 
+     * The folder itself is read again with its contents, and can be got from the loaded cursor with
+     * {@link #getLoadedDirectory(Cursor)}. The loader reloads at most once every 
+     * {@link FileSyncAdapter#SYNCED_FOLDERS_BROADCAST_INTERVAL} when the database changes, and those reloads 
+     * only deliver a new cursor when the folder changed; see {@link #reload(Loader, boolean)}.
+     * 
+     * @param context           Context of the caller.
+     * @param account           Account owning the folder.
+     * @param folder            Folder to list.
+     * @param storageManager    Storage manager to read the folder.
+     * @return                  New loader of a cursor over the contents of 'folder'.
+     */
+    public static Loader<Cursor> createLoader(Context context, Account account, OCFile folder, DataStorageManager storageManager) {
+        return new DirectoryLoader(context, account, folder, storageManager);
     }
-
-    @Override
-    public boolean isEnabled(int position) {
-        return true;
+    
+    
+    /**
+     * Reloads the folder of a loader created with {@link #createLoader(Context, Account, OCFile, DataStorageManager)}.
+     * 
+     * @param loader            Loader to reload.
+     * @param onlyIfChanged     When 'true', the new contents are not delivered if the folder didn't change, as
+     *                          in the reloads due to changes in the database; when 'false', they are always 
+     *                          delivered, for changes not reflected in the folder, like a finished download.
+     */
+    public static void reload(Loader<Cursor> loader, boolean onlyIfChanged) {
+        if (loader instanceof DirectoryLoader && !onlyIfChanged) {
+            ((DirectoryLoader) loader).mDeliverAlways = true;
+        }
+        loader.onContentChanged();
     }
-
-    @Override
-    public int getCount() {
-        return mFiles != null ? mFiles.size() : 0;
+    
+    
+    /**
+     * @param contents      Cursor delivered by a loader created with {@link #createLoader(Context, Account, OCFile, DataStorageManager)}.
+     * @return              Folder listed in 'contents', as read when loaded; NULL if it doesn't exist anymore.
+     */
+    public static OCFile getLoadedDirectory(Cursor contents) {
+        return (contents instanceof DirectoryCursor) ? ((DirectoryCursor) contents).mFolder : null;
     }
-
+    
+    
+    /**
+     * Returns the file in a position, read from the database on demand.
+     */
     @Override
     public Object getItem(int position) {
-        if (mFiles == null || mFiles.size() <= position)
+        if (mStorageManager == null || getCursor() == null || getCount() <= position)
             return null;
-        return mFiles.get(position);
+        return mStorageManager.getFileById(getItemId(position));
     }
 
+    
     @Override
-    public long getItemId(int position) {
-        if (mFiles == null || mFiles.size() <= position)
-            return 0;
-        return mFiles.get(position).getFileId();
+    public Cursor swapCursor(Cursor newCursor) {
+        if (newCursor != null) {
+            mPathIndex = newCursor.getColumnIndex(ProviderTableMeta.FILE_PATH);
+            mMimeTypeIndex = newCursor.getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE);
+            mLengthIndex = newCursor.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH);
+            mModifiedIndex = newCursor.getColumnIndex(ProviderTableMeta.FILE_MODIFIED);
+            mKeepInSyncIndex = newCursor.getColumnIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC);
+            mStoragePathIndex = newCursor.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH);
+        }
+        return super.swapCursor(newCursor);
     }
 
+    
     @Override
-    public int getItemViewType(int position) {
-        return 0;
+    public View getView(int position, View convertView, ViewGroup parent) {
+        mParentList = (parent instanceof ListView) ? (ListView) parent : null;  // for the check boxes in bindView
+        return super.getView(position, convertView, parent);
     }
 
+    
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        View view = convertView;
-        if (view == null) {
-            LayoutInflater inflator = (LayoutInflater) mContext
-                    .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            view = inflator.inflate(R.layout.list_item, null);
-        }
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        LayoutInflater inflator = (LayoutInflater) mContext
+                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        return inflator.inflate(R.layout.list_item, null);
+    }
+
     
-        if (mFiles != null && mFiles.size() > position) {
-            OCFile file = mFiles.get(position);
-            TextView fileName = (TextView) view.findViewById(R.id.Filename);
-            String name = file.getFileName();
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        String remotePath = cursor.getString(mPathIndex);
+        String mimeType = cursor.getString(mMimeTypeIndex);
+        boolean isDirectory = "DIR".equals(mimeType);
+        
+        TextView fileName = (TextView) view.findViewById(R.id.Filename);
+        String name = new File(remotePath).getName();
 
-            fileName.setText(name);
-            ImageView fileIcon = (ImageView) view.findViewById(R.id.imageView1);
-            fileIcon.setImageResource(DisplayUtils.getResourceId(file.getMimetype()));
-            ImageView localStateView = (ImageView) view.findViewById(R.id.imageView2);
-            FileDownloaderBinder downloaderBinder = mTransferServiceGetter.getFileDownloaderBinder();
-            FileUploaderBinder uploaderBinder = mTransferServiceGetter.getFileUploaderBinder();
-            if (downloaderBinder != null && downloaderBinder.isDownloading(mAccount, file)) {
-                localStateView.setImageResource(R.drawable.downloading_file_indicator);
-                localStateView.setVisibility(View.VISIBLE);
-            } else if (uploaderBinder != null && uploaderBinder.isUploading(mAccount, file)) {
-                localStateView.setImageResource(R.drawable.uploading_file_indicator);
-                localStateView.setVisibility(View.VISIBLE);
-            } else if (file.isDown()) {
-                localStateView.setImageResource(R.drawable.local_file_indicator);
-                localStateView.setVisibility(View.VISIBLE);
+        fileName.setText(name);
+        ImageView fileIcon = (ImageView) view.findViewById(R.id.imageView1);
+        fileIcon.setImageResource(DisplayUtils.getResourceId(mimeType));
+        ImageView localStateView = (ImageView) view.findViewById(R.id.imageView2);
+        FileDownloaderBinder downloaderBinder = mTransferServiceGetter.getFileDownloaderBinder();
+        FileUploaderBinder uploaderBinder = mTransferServiceGetter.getFileUploaderBinder();
+        OCFile file = null;
+        if (downloaderBinder != null || uploaderBinder != null) {
+            // the transfer services only need the path and the type
+            file = new OCFile(remotePath);
+            file.setMimetype(mimeType);
+        }
+        String storagePath = isDirectory ? null : cursor.getString(mStoragePathIndex);
+        if (downloaderBinder != null && downloaderBinder.isDownloading(mAccount, file)) {
+            localStateView.setImageResource(R.drawable.downloading_file_indicator);
+            localStateView.setVisibility(View.VISIBLE);
+        } else if (uploaderBinder != null && uploaderBinder.isUploading(mAccount, file)) {
+            localStateView.setImageResource(R.drawable.uploading_file_indicator);
+            localStateView.setVisibility(View.VISIBLE);
+        } else if (storagePath != null && storagePath.length() > 0 && new File(storagePath).exists()) {
+            localStateView.setImageResource(R.drawable.local_file_indicator);
+            localStateView.setVisibility(View.VISIBLE);
+        } else {
+            localStateView.setVisibility(View.INVISIBLE);
+        }
+        
+        TextView fileSizeV = (TextView) view.findViewById(R.id.file_size);
+        TextView lastModV = (TextView) view.findViewById(R.id.last_mod);
+        ImageView checkBoxV = (ImageView) view.findViewById(R.id.custom_checkbox);
+        
+        if (!isDirectory) {
+            fileSizeV.setVisibility(View.VISIBLE);
+            fileSizeV.setText(DisplayUtils.bytesToHumanReadable(cursor.getLong(mLengthIndex)));
+            lastModV.setVisibility(View.VISIBLE);
+            lastModV.setText(DisplayUtils.unixTimeToHumanReadable(cursor.getLong(mModifiedIndex)));
+            // this if-else is needed even thoe fav icon is visible by default
+            // because android reuses views in listview
+            if (cursor.getInt(mKeepInSyncIndex) != 1) {
+                view.findViewById(R.id.imageView3).setVisibility(View.GONE);
             } else {
-                localStateView.setVisibility(View.INVISIBLE);
+                view.findViewById(R.id.imageView3).setVisibility(View.VISIBLE);
             }
             
-            TextView fileSizeV = (TextView) view.findViewById(R.id.file_size);
-            TextView lastModV = (TextView) view.findViewById(R.id.last_mod);
-            ImageView checkBoxV = (ImageView) view.findViewById(R.id.custom_checkbox);
-            
-            if (!file.isDirectory()) {
-                fileSizeV.setVisibility(View.VISIBLE);
-                fileSizeV.setText(DisplayUtils.bytesToHumanReadable(file.getFileLength()));
-                lastModV.setVisibility(View.VISIBLE);
-                lastModV.setText(DisplayUtils.unixTimeToHumanReadable(file.getModificationTimestamp()));
-                // this if-else is needed even thoe fav icon is visible by default
-                // because android reuses views in listview
-                if (!file.keepInSync()) {
-                    view.findViewById(R.id.imageView3).setVisibility(View.GONE);
-                } else {
-                    view.findViewById(R.id.imageView3).setVisibility(View.VISIBLE);
-                }
-                
-                ListView parentList = (ListView)parent;
-                if (parentList.getChoiceMode() == ListView.CHOICE_MODE_NONE) { 
-                    checkBoxV.setVisibility(View.GONE);
+            ListView parentList = mParentList;
+            if (parentList == null || parentList.getChoiceMode() == ListView.CHOICE_MODE_NONE) { 
+                checkBoxV.setVisibility(View.GONE);
+            } else {
+                if (parentList.isItemChecked(cursor.getPosition())) {
+                    checkBoxV.setImageResource(android.R.drawable.checkbox_on_background);
                 } else {
-                    if (parentList.isItemChecked(position)) {
-                        checkBoxV.setImageResource(android.R.drawable.checkbox_on_background);
-                    } else {
-                        checkBoxV.setImageResource(android.R.drawable.checkbox_off_background);
-                    }
-                    checkBoxV.setVisibility(View.VISIBLE);
+                    checkBoxV.setImageResource(android.R.drawable.checkbox_off_background);
                 }
-                
-            } 
-            else {
-                
-                fileSizeV.setVisibility(View.VISIBLE);
-                fileSizeV.setText(DisplayUtils.bytesToHumanReadable(file.getFileLength()));
-                lastModV.setVisibility(View.VISIBLE);
-                lastModV.setText(DisplayUtils.unixTimeToHumanReadable(file.getModificationTimestamp()));
-               checkBoxV.setVisibility(View.GONE);
-               view.findViewById(R.id.imageView3).setVisibility(View.GONE);
+                checkBoxV.setVisibility(View.VISIBLE);
             }
+            
+        } 
+        else {
+            
+            fileSizeV.setVisibility(View.VISIBLE);
+            fileSizeV.setText(DisplayUtils.bytesToHumanReadable(cursor.getLong(mLengthIndex)));
+            lastModV.setVisibility(View.VISIBLE);
+            lastModV.setText(DisplayUtils.unixTimeToHumanReadable(cursor.getLong(mModifiedIndex)));
+           checkBoxV.setVisibility(View.GONE);
+           view.findViewById(R.id.imageView3).setVisibility(View.GONE);
         }
-
-        return view;
-    }
-
-    @Override
-    public int getViewTypeCount() {
-        return 1;
-    }
-
-    @Override
-    public boolean hasStableIds() {
-        return true;
-    }
-
-    @Override
-    public boolean isEmpty() {
-        return (mFiles == null || mFiles.isEmpty());
     }
 
     /**
      * Change the adapted directory for a new one
      * @param directory                 New file to adapt. Can be NULL, meaning "no content to adapt".
+     * @param contents                  Cursor over the contents of 'directory', as loaded by a loader from 
+     *                                  {@link #createLoader(Context, Account, OCFile)}; NULL if 'directory' is NULL.
      * @param updatedStorageManager     Optional updated storage manager; used to replace mStorageManager if is different (and not NULL)
      */
-    public void swapDirectory(OCFile directory, DataStorageManager updatedStorageManager) {
+    public void swapDirectory(OCFile directory, Cursor contents, DataStorageManager updatedStorageManager) {
         mFile = directory;
         if (updatedStorageManager != null && updatedStorageManager != mStorageManager) {
             mStorageManager = updatedStorageManager;
             mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
         }
-        if (mStorageManager != null) {
-            mFiles = mStorageManager.getDirectoryContent(mFile);
-        } else {
-            mFiles = null;
+        swapCursor(mFile != null ? contents : null);  // the old cursor is closed by its loader
+    }
+    
+    /**
+     * @return      Folder currently adapted, or NULL if none.
+     */
+    public OCFile getCurrentDirectory() {
+        return mFile;
+    }
+    
+    
+    /**
+     * Cursor over the contents of a folder, with the folder as read when loaded.
+     */
+    private static class DirectoryCursor extends CursorWrapper {
+        
+        private final OCFile mFolder;
+        
+        DirectoryCursor(Cursor contents, OCFile folder) {
+            super(contents);
+            mFolder = folder;
+        }
+        
+        /**
+         * Compares only the row of the folder, whose ETag, size and modification date change with its 
+         * contents, and the number of children; the rows of the children are not read.
+         * 
+         * @return  'true' if 'other' lists the same folder with no changes.
+         */
+        boolean sameContents(DirectoryCursor other) {
+            OCFile folder = other.mFolder;
+            return mFolder.getFileId() == folder.getFileId() && 
+                    mFolder.getFileLength() == folder.getFileLength() &&
+                    mFolder.getModificationTimestamp() == folder.getModificationTimestamp() &&
+                    (mFolder.getEtag() == null ? folder.getEtag() == null : mFolder.getEtag().equals(folder.getEtag())) &&
+                    getCount() == other.getCount();
+        }
+    }
+    
+    
+    /**
+     * Loads the contents of a folder in a {@link DirectoryCursor}, reading the folder again in every load. 
+     */
+    private static class DirectoryLoader extends CursorLoader {
+        
+        private final Account mAccount;
+        private final String mFolderPath;
+        private final DataStorageManager mStorageManager;
+        
+        /** Last cursor delivered, accessed only from the main thread */
+        private DirectoryCursor mDelivered = null;
+        
+        /** When 'true', the next result is delivered although the folder didn't change; main thread only */
+        private boolean mDeliverAlways = false;
+        
+        DirectoryLoader(Context context, Account account, OCFile folder, DataStorageManager storageManager) {
+            super(context);
+            mAccount = account;
+            mFolderPath = folder.getRemotePath();
+            mStorageManager = storageManager;
+            setProjection(LIST_PROJECTION);
+            setSelection(ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PARENT + "=?");
+            setUpdateThrottle(FileSyncAdapter.SYNCED_FOLDERS_BROADCAST_INTERVAL);     // don't reload for every batch saved
+        }
+        
+        @Override
+        public Cursor loadInBackground() {
+            OCFile folder = mStorageManager.getFileByPath(mFolderPath);
+            if (folder == null || !folder.isDirectory()) {
+                return null;
+            }
+            String folderId = String.valueOf(folder.getFileId());
+            // same order than OCFile#compareTo(OCFile): folders first, then by name
+            setUri(ProviderTableMeta.CONTENT_URI_DIR.buildUpon().appendPath(folderId)
+                    .appendQueryParameter(ProviderTableMeta.QUERY_SORT, ProviderTableMeta.SORT_BY_NAME).build());
+            setSelectionArgs(new String[] { mAccount.name, folderId });
+            Cursor contents = super.loadInBackground();
+            return (contents != null) ? new DirectoryCursor(contents, folder) : null;
+        }
+        
+        @Override
+        public void deliverResult(Cursor cursor) {
+            if (isStarted() && !mDeliverAlways && cursor instanceof DirectoryCursor && mDelivered != null && 
+                    cursor != mDelivered && !mDelivered.isClosed() && ((DirectoryCursor) cursor).sameContents(mDelivered)) {
+                // nothing to update in the list; keep the cursor already delivered
+                cursor.close();
+                return;
+            }
+            mDelivered = (cursor instanceof DirectoryCursor) ? (DirectoryCursor) cursor : null;
+            mDeliverAlways = false;
+            super.deliverResult(cursor);
         }
-        notifyDataSetChanged();
     }
     
 }
@@ -39,7 +39,7 @@ public class ExtendedListFragment extends SherlockFragment implements OnItemClic
     
     private static final String TAG = ExtendedListFragment.class.getSimpleName();
 
-    private static final String KEY_SAVED_LIST_POSITION = "SAVED_LIST_POSITION"; 
+    protected static final String KEY_SAVED_LIST_POSITION = "SAVED_LIST_POSITION"; 
 
     protected ExtendedListView mList;
     
@@ -45,8 +45,11 @@ import com.owncloud.android.ui.preview.PreviewMediaFragment;
 
 import android.accounts.Account;
 import android.app.Activity;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Handler;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.view.ContextMenu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -60,13 +63,15 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
  * @author Bartek Przybylski
  * 
  */
-public class OCFileListFragment extends ExtendedListFragment implements EditNameDialogListener, ConfirmationDialogFragmentListener {
+public class OCFileListFragment extends ExtendedListFragment implements EditNameDialogListener, ConfirmationDialogFragmentListener, LoaderManager.LoaderCallbacks<Cursor> {
     
     private static final String TAG = OCFileListFragment.class.getSimpleName();
 
     private static final String MY_PACKAGE = OCFileListFragment.class.getPackage() != null ? OCFileListFragment.class.getPackage().getName() : "com.owncloud.android.ui.fragment";
     private static final String EXTRA_FILE = MY_PACKAGE + ".extra.FILE";
     
+    private static final int DIRECTORY_LOADER_ID = 0;
+    
     private OCFileListFragment.ContainerActivity mContainerActivity;
     
     private OCFile mFile = null;
@@ -75,6 +80,12 @@ public class OCFileListFragment extends ExtendedListFragment implements EditName
     private Handler mHandler;
     private OCFile mTargetFile;
     
+    /** Folder being loaded in the background, shown when its contents are ready */
+    private OCFile mLoadingFile = null;
+    
+    /** Position to restore in the list when the first contents are loaded; -1 if none */
+    private int mPendingReferencePosition = -1;
+    
     /**
      * {@inheritDoc}
      */
@@ -100,6 +111,7 @@ public class OCFileListFragment extends ExtendedListFragment implements EditName
         mAdapter = new FileListListAdapter(getActivity(), mContainerActivity);
         if (savedInstanceState != null) {
             mFile = savedInstanceState.getParcelable(EXTRA_FILE);
+            mPendingReferencePosition = savedInstanceState.getInt(KEY_SAVED_LIST_POSITION, -1);
         }
         setListAdapter(mAdapter);
         
@@ -343,9 +355,25 @@ public class OCFileListFragment extends ExtendedListFragment implements EditName
      * it will either refresh the last known directory. list the root
      * if there never was a directory.
      * 
+     * The contents of the directory are loaded out of the main thread, and shown
+     * when ready in {@link #onLoadFinished(Loader, Cursor)}.
+     * 
      * @param directory File to be listed
      */
     public void listDirectory(OCFile directory) {
+        listDirectory(directory, false);
+    }
+    
+    /**
+     * Lists the given directory on the view, as {@link #listDirectory(OCFile)}.
+     * 
+     * Listing again the directory already listed reuses its loader.
+     * 
+     * @param directory         File to be listed
+     * @param onlyIfChanged     When 'true' and the directory is already listed, the list is only updated 
+     *                          if the directory changed in the database.
+     */
+    public void listDirectory(OCFile directory, boolean onlyIfChanged) {
         DataStorageManager storageManager = mContainerActivity.getStorageManager();
         if (storageManager != null) {
 
@@ -366,9 +394,13 @@ public class OCFileListFragment extends ExtendedListFragment implements EditName
                 directory = storageManager.getFileById(directory.getParentId());
             }
 
-            mAdapter.swapDirectory(directory, storageManager);
-            if (mFile == null || !mFile.equals(directory)) {
-                mList.setSelectionFromTop(0, 0);
+            Loader<Cursor> loader = getLoaderManager().getLoader(DIRECTORY_LOADER_ID);
+            if (loader != null && directory.equals(mLoadingFile)) {
+                FileListListAdapter.reload(loader, onlyIfChanged);      // in the background
+                
+            } else {
+                mLoadingFile = directory;
+                getLoaderManager().restartLoader(DIRECTORY_LOADER_ID, null, this);
             }
             mFile = directory;
 
@@ -376,6 +408,36 @@ public class OCFileListFragment extends ExtendedListFragment implements EditName
     }
     
     
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        Account account = AccountUtils.getCurrentOwnCloudAccount(getActivity());
+        return FileListListAdapter.createLoader(getActivity(), account, mLoadingFile, mContainerActivity.getStorageManager());
+    }
+    
+    
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor contents) {
+        OCFile previous = mAdapter.getCurrentDirectory();
+        OCFile loaded = FileListListAdapter.getLoadedDirectory(contents);
+        if (loaded != null && loaded.equals(mFile)) {
+            mFile = loaded;     // fresher
+        }
+        mAdapter.swapDirectory(loaded, contents, mContainerActivity.getStorageManager());
+        if (mPendingReferencePosition >= 0) {
+            setReferencePosition(mPendingReferencePosition);
+            mPendingReferencePosition = -1;
+        } else if (previous == null || !previous.equals(mLoadingFile)) {
+            mList.setSelectionFromTop(0, 0);
+        }
+    }
+    
+    
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mAdapter.swapDirectory(null, null, null);
+    }
+    
+    
     
     /**
      * Interface to implement by any Activity that includes some instance of FileListFragment
@@ -0,0 +1,126 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksums of the contents of files, used to know if a file really changed since it was last synchronized.
+ *
+ * Checksums are written as "TYPE:value", with the value in lower case hexadecimal; that's the format of the
+ * checksums reported by the ownCloud server in the property oc:checksums, so both can be compared directly.
+ */
+public class FileChecksum {
+
+    /** Type of the checksums computed */
+    public static final String TYPE = "SHA1";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    /**
+     * @return      New digest to compute a checksum of type {@link #TYPE} incrementally.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);  // mandatory in every Java platform
+        }
+    }
+
+
+    /**
+     * @param digest    Digest with all the contents of a file, as returned by {@link #newDigest()}; it's reset.
+     * @return          Checksum of the contents, as "TYPE:value".
+     */
+    public static String toChecksum(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        StringBuilder checksum = new StringBuilder(TYPE.length() + 1 + hash.length * 2);
+        checksum.append(TYPE).append(':');
+        for (byte b : hash) {
+            checksum.append(HEX_DIGITS[(b >> 4) & 0x0f]).append(HEX_DIGITS[b & 0x0f]);
+        }
+        return checksum.toString();
+    }
+
+
+    /**
+     * Adds to a digest the first bytes of a file.
+     *
+     * @param digest    Digest to update.
+     * @param file      File to read.
+     * @param length    Number of bytes to read from the beginning of the file.
+     * @throws IOException  If the file could not be read, or it's shorter than 'length'.
+     */
+    public static void update(MessageDigest digest, File file, long length) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long left = length;
+            while (left > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file " + file.getName());
+                }
+                digest.update(buffer, 0, read);
+                left -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * @param file      File to read.
+     * @return          Checksum of the contents of the file, as "TYPE:value".
+     * @throws IOException  If the file could not be read.
+     */
+    public static String compute(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, file, file.length());
+        return toChecksum(digest);
+    }
+
+
+    /**
+     * @param checksums     Checksums of a file reported by a server, as a list of "TYPE:value" separated by
+     *                      spaces; may be NULL.
+     * @return              Checksum of type {@link #TYPE} in 'checksums', as "TYPE:value", or NULL if there is none.
+     */
+    public static String findChecksum(String checksums) {
+        if (checksums != null) {
+            for (String checksum : checksums.trim().split("\\s+")) {
+                int pos = checksum.indexOf(':');
+                if (pos > 0 && TYPE.equalsIgnoreCase(checksum.substring(0, pos))) {
+                    return TYPE + ":" + checksum.substring(pos + 1).toLowerCase();
+                }
+            }
+        }
+        return null;
+    }
+
+}
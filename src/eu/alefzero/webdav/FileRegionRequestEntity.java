@@ -0,0 +1,247 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.alefzero.webdav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.owncloud.android.Log_OC;
+import com.owncloud.android.network.ProgressiveDataTransferer;
+import com.owncloud.android.utils.FileChecksum;
+
+import eu.alefzero.webdav.OnDatatransferProgressListener;
+
+
+/**
+ * A RequestEntity that represents a region of a file: the full file, or a piece of it in chunked uploads.
+ *
+ * The region is read with absolute positions in blocks of {@link #BUFFER_SIZE} bytes, and every block is
+ * written to the request in a single call, so the cost of system calls and copies per byte sent is much
+ * lower than with small blocks. Several entities can send different regions of the same channel at the
+ * same time.
+ *
+ * Listeners are not notified on every block, but when {@link #NOTIFICATION_BYTES} bytes or
+ * {@link #NOTIFICATION_INTERVAL} milliseconds passed since the last notification. The first and the last
+ * blocks are always notified, so listeners can measure the time spent sending the body of the request.
+ *
+ * Entities for the full contents of a file compute the checksum of the contents while they are sent,
+ * so the file doesn't need to be read again to know it.
+ */
+public class FileRegionRequestEntity implements RequestEntity, ProgressiveDataTransferer {
+
+    private static final String TAG = FileRegionRequestEntity.class.getSimpleName();
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Bytes written before notifying the listeners again */
+    public static final long NOTIFICATION_BYTES = 256 * 1024;
+
+    /** Milliseconds passed before notifying the listeners again */
+    public static final long NOTIFICATION_INTERVAL = 250;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final String mContentType;
+    private final long mOffset;
+    private final long mLength;
+    private long mTransferred;
+    private String mChecksum;
+    Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
+
+
+    /**
+     * Entity for the full contents of a file. The file is opened every time the request is written.
+     *
+     * @param file          File to send.
+     * @param contentType   MIME type of the file.
+     */
+    public FileRegionRequestEntity(final File file, final String contentType) {
+        super();
+        if (file == null) {
+            throw new IllegalArgumentException("File may not be null");
+        }
+        mFile = file;
+        mChannel = null;
+        mContentType = contentType;
+        mOffset = 0;
+        mLength = -1;
+        mTransferred = 0;
+    }
+
+
+    /**
+     * Entity for a region of a file already opened. The channel is not closed by the entity.
+     *
+     * @param channel       Open channel to the file to send.
+     * @param file          File to send, used to report progress.
+     * @param contentType   MIME type of the file.
+     * @param offset        Position of the first byte of the region in the file.
+     * @param length        Maximum length of the region; it ends at the end of the file if sooner.
+     */
+    public FileRegionRequestEntity(final FileChannel channel, final File file, final String contentType, long offset, long length) {
+        super();
+        if (channel == null) {
+            throw new IllegalArgumentException("File may not be null");
+        }
+        if (offset < 0 || length <= 0) {
+            throw new IllegalArgumentException("Invalid region of file: offset " + offset + ", length " + length);
+        }
+        mFile = file;
+        mChannel = channel;
+        mContentType = contentType;
+        mOffset = offset;
+        mLength = length;
+        mTransferred = 0;
+    }
+
+
+    @Override
+    public long getContentLength() {
+        if (mChannel == null) {
+            return mFile.length();
+        }
+        try {
+            return Math.max(0, Math.min(mLength, mChannel.size() - mOffset));
+        } catch (IOException e) {
+            return mLength;
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return mContentType;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+    @Override
+    public void addDatatransferProgressListeners(Collection<OnDatatransferProgressListener> listeners) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.addAll(listeners);
+        }
+    }
+
+    @Override
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.remove(listener);
+        }
+    }
+
+
+    /**
+     * @return      Checksum of the contents of the file sent in the last complete write of the request, as
+     *              "TYPE:value"; NULL for entities of a region of a file, or if the request was not written.
+     */
+    public String getChecksum() {
+        return mChecksum;
+    }
+
+
+    @Override
+    public void writeRequest(final OutputStream out) throws IOException {
+        RandomAccessFile raf = null;
+        FileChannel channel = mChannel;
+        MessageDigest digest = (mChannel == null) ? FileChecksum.newDigest() : null;
+        mChecksum = null;
+        try {
+            if (channel == null) {
+                raf = new RandomAccessFile(mFile, "r");
+                channel = raf.getChannel();
+            }
+            long size = mFile.length();
+            if (size == 0) size = -1;
+            long position = mOffset;
+            long end = (mLength < 0) ? channel.size() : Math.min(mOffset + mLength, channel.size());
+
+            // a heap buffer lets the blocks go to the stream with no further copy
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, end - position)));
+            byte[] array = buffer.array();
+            long notPublished = 0;
+            long lastNotification = -1;
+            int readCount = 0;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                readCount = channel.read(buffer, position);
+                if (readCount < 0) {
+                    throw new IOException("Unexpected end of file " + mFile.getName());
+                }
+                out.write(array, 0, readCount);
+                if (digest != null) {
+                    digest.update(array, 0, readCount);
+                }
+                position += readCount;
+                mTransferred += readCount;
+                notPublished += readCount;
+
+                long now = System.currentTimeMillis();
+                if (lastNotification < 0 || position >= end || notPublished >= NOTIFICATION_BYTES ||
+                        now - lastNotification >= NOTIFICATION_INTERVAL) {
+                    notifyProgress(notPublished, size);
+                    notPublished = 0;
+                    lastNotification = now;
+                }
+            }
+            if (digest != null) {
+                mChecksum = FileChecksum.toChecksum(digest);
+            }
+
+        } catch (IOException io) {
+            Log_OC.e(TAG, io.getMessage());
+            throw new RuntimeException("Ugly solution to workaround the default policy of retries when the server falls while uploading ; temporal fix; really", io);
+
+        } finally {
+            if (raf != null) {
+                raf.close();    // closes the channel too
+            }
+        }
+    }
+
+
+    private void notifyProgress(long progressRate, long size) {
+        synchronized (mDataTransferListeners) {
+            Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+            while (it.hasNext()) {
+                it.next().onTransferProgress(progressRate, mTransferred, size, mFile.getName());
+            }
+        }
+    }
+
+}
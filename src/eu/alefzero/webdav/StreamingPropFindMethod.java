@@ -0,0 +1,63 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.alefzero.webdav;
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.xmlpull.v1.XmlPullParserException;
+
+
+/**
+ * PROPFIND method whose multistatus response is read resource by resource with a {@link WebdavMultiStatusParser}.
+ *
+ * {@link PropFindMethod} parses the full response into a DOM document while it's received; this method
+ * leaves the response body untouched until {@link #getResponseBodyAsEntries(String)} is called.
+ */
+public class StreamingPropFindMethod extends PropFindMethod {
+
+    public StreamingPropFindMethod(String uri) throws IOException {
+        super(uri);
+    }
+
+    public StreamingPropFindMethod(String uri, DavPropertyNameSet propNameSet, int depth) throws IOException {
+        super(uri, propNameSet, depth);
+    }
+
+    /**
+     * Multistatus responses are not parsed when received.
+     */
+    @Override
+    protected void processResponseBody(HttpState httpState, HttpConnection httpConnection) {
+        // nothing to do; the response body is read by the caller
+    }
+
+    /**
+     * Provides a streaming parser to read the resources in the multistatus response one by one.
+     *
+     * @param splitElement      Prefix of the hrefs in the response to remove to get the path of the resources.
+     * @return                  Parser over the response body.
+     */
+    public WebdavMultiStatusParser getResponseBodyAsEntries(String splitElement) throws IOException, XmlPullParserException {
+        return new WebdavMultiStatusParser(getResponseBodyAsStream(), splitElement);
+    }
+
+}
@@ -17,81 +17,161 @@
 package eu.alefzero.webdav;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.jackrabbit.webdav.DavConstants;
 import org.apache.jackrabbit.webdav.MultiStatusResponse;
+import org.apache.jackrabbit.webdav.Status;
 import org.apache.jackrabbit.webdav.property.DavProperty;
 import org.apache.jackrabbit.webdav.property.DavPropertyName;
 import org.apache.jackrabbit.webdav.property.DavPropertySet;
+import org.w3c.dom.Node;
 
 import com.owncloud.android.Log_OC;
+import com.owncloud.android.utils.FileChecksum;
 
 import android.net.Uri;
 
 public class WebdavEntry {
-    private String mName, mPath, mUri, mContentType;
+    private String mName, mPath, mUri, mContentType, mEtag, mChecksum;
     private long mContentLength, mCreateTimestamp, mModifiedTimestamp;
 
+    /** Properties of a WebDAV resource read as plain text */
+    private static final DavPropertyName[] TEXT_PROPERTIES = {
+        DavPropertyName.DISPLAYNAME,
+        DavPropertyName.GETCONTENTTYPE,
+        DavPropertyName.GETCONTENTLENGTH,
+        DavPropertyName.GETLASTMODIFIED,
+        DavPropertyName.CREATIONDATE,
+        DavPropertyName.GETETAG
+    };
+
+    /** Key of the ownCloud property {@link WebdavUtils#PROPERTY_CHECKSUMS} in the values of properties */
+    static final String PROPERTY_CHECKSUMS = "oc:checksums";
+
     public WebdavEntry(MultiStatusResponse ms, String splitElement) {
         resetData();
         if (ms.getStatus().length != 0) {
-            mUri = ms.getHref();
-
-            mPath = mUri.split(splitElement, 2)[1];
-
+            // properties not found in the server come in a separate propstat, that may be listed first
             int status = ms.getStatus()[0].getStatusCode();
+            for (Status propstatStatus : ms.getStatus()) {
+                if (propstatStatus.getStatusCode() / 100 == 2) {
+                    status = propstatStatus.getStatusCode();
+                    break;
+                }
+            }
             DavPropertySet propSet = ms.getProperties(status);
+            Map<String, String> properties = new HashMap<String, String>();
             @SuppressWarnings("rawtypes")
-            DavProperty prop = propSet.get(DavPropertyName.DISPLAYNAME);
-            if (prop != null)
-                mName = (String) prop.getName().toString();
-            else {
-                String[] tmp = mPath.split("/");
-                if (tmp.length > 0)
-                    mName = tmp[tmp.length - 1];
-            }
-
-            // use unknown mimetype as default behavior
-            mContentType = "application/octet-stream";
-            prop = propSet.get(DavPropertyName.GETCONTENTTYPE);
-            if (prop != null) {
-                mContentType = (String) prop.getValue();
-                // dvelasco: some builds of ownCloud server 4.0.x added a trailing ';' to the MIME type ; if looks fixed, but let's be cautious
-                if (mContentType.indexOf(";") >= 0) {
-                    mContentType = mContentType.substring(0, mContentType.indexOf(";"));
+            DavProperty prop = null;
+            for (DavPropertyName name : TEXT_PROPERTIES) {
+                prop = propSet.get(name);
+                if (prop != null && prop.getValue() != null) {
+                    properties.put(name.getName(), (String) prop.getValue());
                 }
             }
             
+            prop = propSet.get(WebdavUtils.PROPERTY_CHECKSUMS);
+            if (prop != null && prop.getValue() != null) {
+                properties.put(PROPERTY_CHECKSUMS, getText(prop.getValue()));
+            }
+
             // check if it's a folder in the standard way: see RFC2518 12.2 . RFC4918 14.3 
             prop = propSet.get(DavPropertyName.RESOURCETYPE);
-            if (prop!= null) {
-                Object value = prop.getValue();
-                if (value != null) {
-                    mContentType = "DIR";   // a specific attribute would be better, but this is enough; unless while we have no reason to distinguish MIME types for folders
-                }
-            }
+            boolean collection = (prop != null && prop.getValue() != null);
+            
+            init(ms.getHref(), splitElement, properties, collection);
 
-            prop = propSet.get(DavPropertyName.GETCONTENTLENGTH);
-            if (prop != null)
-                mContentLength = Long.parseLong((String) prop.getValue());
+        } else {
+            Log_OC.e("WebdavEntry",
+                    "General fuckup, no status for webdav response");
+        }
+    }
 
-            prop = propSet.get(DavPropertyName.GETLASTMODIFIED);
-            if (prop != null) {
-                Date d = WebdavUtils
-                        .parseResponseDate((String) prop.getValue());
-                mModifiedTimestamp = (d != null) ? d.getTime() : 0;
-            }
+    /**
+     * Builds an entry from the values of the properties of a WebDAV resource, as read by {@link WebdavMultiStatusParser}.
+     * 
+     * @param href              Href of the resource.
+     * @param splitElement      Prefix of the href to remove to get the path of the resource.
+     * @param properties        Text values of the DAV properties of the resource, by property name.
+     * @param collection        'true' if the resource type of the resource is a collection.
+     */
+    WebdavEntry(String href, String splitElement, Map<String, String> properties, boolean collection) {
+        resetData();
+        init(href, splitElement, properties, collection);
+    }
+
+    private void init(String href, String splitElement, Map<String, String> properties, boolean collection) {
+        mUri = href;
 
-            prop = propSet.get(DavPropertyName.CREATIONDATE);
-            if (prop != null) {
-                Date d = WebdavUtils
-                        .parseResponseDate((String) prop.getValue());
-                mCreateTimestamp = (d != null) ? d.getTime() : 0;
+        mPath = mUri.split(splitElement, 2)[1];
+
+        String value = properties.get(DavConstants.PROPERTY_DISPLAYNAME);
+        if (value != null)
+            mName = value;
+        else {
+            String[] tmp = mPath.split("/");
+            if (tmp.length > 0)
+                mName = tmp[tmp.length - 1];
+        }
+
+        // use unknown mimetype as default behavior
+        mContentType = "application/octet-stream";
+        value = properties.get(DavConstants.PROPERTY_GETCONTENTTYPE);
+        if (value != null) {
+            mContentType = value;
+            // dvelasco: some builds of ownCloud server 4.0.x added a trailing ';' to the MIME type ; if looks fixed, but let's be cautious
+            if (mContentType.indexOf(";") >= 0) {
+                mContentType = mContentType.substring(0, mContentType.indexOf(";"));
             }
+        }
+        
+        if (collection) {
+            mContentType = "DIR";   // a specific attribute would be better, but this is enough; unless while we have no reason to distinguish MIME types for folders
+        }
 
-        } else {
-            Log_OC.e("WebdavEntry",
-                    "General fuckup, no status for webdav response");
+        value = properties.get(DavConstants.PROPERTY_GETCONTENTLENGTH);
+        if (value != null)
+            mContentLength = Long.parseLong(value);
+
+        value = properties.get(DavConstants.PROPERTY_GETLASTMODIFIED);
+        if (value != null) {
+            Date d = WebdavUtils
+                    .parseResponseDate(value);
+            mModifiedTimestamp = (d != null) ? d.getTime() : 0;
+        }
+
+        value = properties.get(DavConstants.PROPERTY_CREATIONDATE);
+        if (value != null) {
+            Date d = WebdavUtils
+                    .parseResponseDate(value);
+            mCreateTimestamp = (d != null) ? d.getTime() : 0;
         }
+
+        value = properties.get(DavConstants.PROPERTY_GETETAG);
+        if (value != null) {
+            mEtag = WebdavUtils.parseEtag(value);
+        }
+
+        mChecksum = FileChecksum.findChecksum(properties.get(PROPERTY_CHECKSUMS));
+    }
+
+    /**
+     * @return      Text in the value of a property with nested elements, as built by jackrabbit.
+     */
+    private static String getText(Object value) {
+        if (value instanceof Node) {
+            return ((Node) value).getTextContent();
+        } else if (value instanceof List) {
+            StringBuilder text = new StringBuilder();
+            for (Object item : (List<?>) value) {
+                text.append(getText(item)).append(' ');
+            }
+            return text.toString();
+        }
+        return value.toString();
     }
 
     public String path() {
@@ -130,8 +210,20 @@ public class WebdavEntry {
         return mModifiedTimestamp;
     }
 
+    public String etag() {
+        return mEtag;
+    }
+
+    /**
+     * @return      Checksum of the contents of the file in the server, as "TYPE:value", or NULL if
+     *              the server didn't report a checksum of type {@link FileChecksum#TYPE}.
+     */
+    public String checksum() {
+        return mChecksum;
+    }
+
     private void resetData() {
-        mName = mUri = mContentType = null;
+        mName = mUri = mContentType = mEtag = mChecksum = null;
         mContentLength = mCreateTimestamp = mModifiedTimestamp = 0;
     }
 }
@@ -0,0 +1,226 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2013 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.alefzero.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+
+/**
+ * Streaming parser for the multistatus responses of PROPFIND requests.
+ *
+ * Reads the response one resource at a time, building a {@link WebdavEntry} for each of them
+ * on demand. The full document is never kept in memory, so the memory used doesn't depend on
+ * the number of resources in the response.
+ */
+public class WebdavMultiStatusParser {
+
+    private static final String NAMESPACE_DAV = "DAV:";
+
+    private XmlPullParser mParser;
+    private String mSplitElement;
+
+
+    /**
+     * @param in                Stream with the multistatus response.
+     * @param splitElement      Prefix of the hrefs in the response to remove to get the path of the resources.
+     * @throws XmlPullParserException   If the parser could not be created.
+     */
+    public WebdavMultiStatusParser(InputStream in, String splitElement) throws XmlPullParserException {
+        mParser = Xml.newPullParser();
+        mParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        mParser.setInput(in, null);     // encoding detected from the XML declaration
+        mSplitElement = splitElement;
+    }
+
+
+    /**
+     * Reads the next resource in the response.
+     *
+     * The first resource in the response to a PROPFIND request is the target of the request.
+     *
+     * @return      Next resource in the response, or NULL if there are no more.
+     */
+    public WebdavEntry nextEntry() throws XmlPullParserException, IOException {
+        int eventType = mParser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG && isDavElement(DavConstants.XML_RESPONSE)) {
+                return readResponse();
+            }
+            eventType = mParser.next();
+        }
+        return null;
+    }
+
+
+    private WebdavEntry readResponse() throws XmlPullParserException, IOException {
+        String href = null;
+        Map<String, String> properties = new HashMap<String, String>();
+        boolean[] collection = new boolean[] { false };
+        int depth = mParser.getDepth();
+        int eventType = mParser.next();
+        while (!isEndOf(eventType, depth)) {
+            if (eventType == XmlPullParser.START_TAG) {
+                if (href == null && isDavElement(DavConstants.XML_HREF)) {
+                    href = readText();
+
+                } else if (isDavElement(DavConstants.XML_PROPSTAT)) {
+                    readPropstat(properties, collection);
+                }
+            }
+            eventType = mParser.next();
+        }
+        if (href == null) {
+            throw new XmlPullParserException("Response without href", mParser, null);
+        }
+        return new WebdavEntry(href, mSplitElement, properties, collection[0]);
+    }
+
+
+    /**
+     * Reads a 'propstat' element, adding its properties to 'properties' if its status is successful.
+     */
+    private void readPropstat(Map<String, String> properties, boolean[] collection) throws XmlPullParserException, IOException {
+        Map<String, String> propstatProperties = new HashMap<String, String>();
+        boolean propstatCollection = false;
+        boolean success = false;
+        int depth = mParser.getDepth();
+        int eventType = mParser.next();
+        while (!isEndOf(eventType, depth)) {
+            if (eventType == XmlPullParser.START_TAG) {
+                if (isDavElement(DavConstants.XML_STATUS)) {
+                    success = isSuccessStatus(readText());
+
+                } else if (isDavElement(DavConstants.XML_PROP)) {
+                    propstatCollection = readProp(propstatProperties);
+                }
+            }
+            eventType = mParser.next();
+        }
+        if (success) {
+            properties.putAll(propstatProperties);
+            collection[0] |= propstatCollection;
+        }
+    }
+
+
+    /**
+     * Reads the values of the DAV properties in a 'prop' element.
+     *
+     * @return      'true' if the resource type of the resource is a collection
+     */
+    private boolean readProp(Map<String, String> properties) throws XmlPullParserException, IOException {
+        boolean collection = false;
+        int depth = mParser.getDepth();
+        int eventType = mParser.next();
+        while (!isEndOf(eventType, depth)) {
+            if (eventType == XmlPullParser.START_TAG && mParser.getDepth() == depth + 1) {
+                if (isDavElement(DavConstants.PROPERTY_RESOURCETYPE)) {
+                    collection = hasChildElements();
+
+                } else if (NAMESPACE_DAV.equals(mParser.getNamespace())) {
+                    String name = mParser.getName();
+                    properties.put(name, readText());
+
+                } else if (isElement(WebdavUtils.PROPERTY_CHECKSUMS)) {
+                    properties.put(WebdavEntry.PROPERTY_CHECKSUMS, readText());
+
+                } else {
+                    readText();     // other properties in other namespaces are skipped
+                }
+            }
+            eventType = mParser.next();
+        }
+        return collection;
+    }
+
+
+    /**
+     * Reads the text in the current element, including the text of nested elements, until its end tag.
+     *
+     * @return      Text in the current element, trimmed.
+     */
+    private String readText() throws XmlPullParserException, IOException {
+        StringBuilder text = new StringBuilder();
+        int depth = mParser.getDepth();
+        int eventType = mParser.next();
+        while (!isEndOf(eventType, depth)) {
+            if (eventType == XmlPullParser.TEXT) {
+                text.append(mParser.getText());
+            }
+            eventType = mParser.next();
+        }
+        return text.toString().trim();
+    }
+
+
+    /**
+     * Skips the current element, until its end tag.
+     *
+     * @return      'true' if the current element contains any other element.
+     */
+    private boolean hasChildElements() throws XmlPullParserException, IOException {
+        boolean children = false;
+        int depth = mParser.getDepth();
+        int eventType = mParser.next();
+        while (!isEndOf(eventType, depth)) {
+            children |= (eventType == XmlPullParser.START_TAG);
+            eventType = mParser.next();
+        }
+        return children;
+    }
+
+
+    private boolean isEndOf(int eventType, int depth) throws XmlPullParserException {
+        if (eventType == XmlPullParser.END_DOCUMENT) {
+            throw new XmlPullParserException("Unexpected end of multistatus response", mParser, null);
+        }
+        return (eventType == XmlPullParser.END_TAG && mParser.getDepth() == depth);
+    }
+
+
+    private boolean isDavElement(String name) {
+        return name.equals(mParser.getName()) && NAMESPACE_DAV.equals(mParser.getNamespace());
+    }
+
+
+    private boolean isElement(DavPropertyName name) {
+        return name.getName().equals(mParser.getName()) &&
+                name.getNamespace().getURI().equals(mParser.getNamespace());
+    }
+
+
+    /**
+     * @param statusLine    Status line in a 'status' element, as "HTTP/1.1 200 OK"
+     * @return              'true' if the status code is 2xx
+     */
+    private static boolean isSuccessStatus(String statusLine) {
+        String[] parts = statusLine.split(" ");
+        return (parts.length > 1 && parts[1].startsWith("2"));
+    }
+
+}
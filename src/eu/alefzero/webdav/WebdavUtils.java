@@ -23,9 +23,19 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.apache.jackrabbit.webdav.xml.Namespace;
+
 import android.net.Uri;
 
 public class WebdavUtils {
+    /** Namespace of the properties specific to ownCloud servers */
+    public static final Namespace NAMESPACE_OC = Namespace.getNamespace("oc", "http://owncloud.org/ns");
+
+    /** Checksums of the contents of a file, as a list of "TYPE:value" separated by spaces; ownCloud specific */
+    public static final DavPropertyName PROPERTY_CHECKSUMS = DavPropertyName.create("checksums", NAMESPACE_OC);
+
     public static final SimpleDateFormat DISPLAY_DATE_FORMAT = new SimpleDateFormat(
             "dd.MM.yyyy hh:mm");
     private static final SimpleDateFormat DATETIME_FORMATS[] = {
@@ -42,6 +52,27 @@ public class WebdavUtils {
         return ret;
     }
 
+    /**
+     * Builds the set of properties to request in PROPFIND methods whose response is read 
+     * into {@link WebdavEntry} objects.
+     * 
+     * Requesting only these properties instead of 'allprop' saves the server the computation
+     * of the rest of properties, and reduces the size of the response.
+     * 
+     * @return      New set with the names of the properties read by {@link WebdavEntry}.
+     */
+    public static DavPropertyNameSet getEntryPropertyNames() {
+        DavPropertyNameSet propNames = new DavPropertyNameSet();
+        propNames.add(DavPropertyName.GETETAG);
+        propNames.add(DavPropertyName.GETLASTMODIFIED);
+        propNames.add(DavPropertyName.GETCONTENTLENGTH);
+        propNames.add(DavPropertyName.GETCONTENTTYPE);
+        propNames.add(DavPropertyName.RESOURCETYPE);
+        propNames.add(DavPropertyName.CREATIONDATE);
+        propNames.add(PROPERTY_CHECKSUMS);     // servers not knowing it answer it as not found
+        return propNames;
+    }
+
     public static String prepareXmlForPatch() {
         return "<?xml version=\"1.0\" ?><D:propertyupdate xmlns:D=\"DAV:\"></D:propertyupdate>";
     }
@@ -58,6 +89,29 @@ public class WebdavUtils {
         return null;
     }
 
+    /**
+     * Normalizes an ETag value received from the server, removing the enclosing quotes.
+     * 
+     * ETags are compared as opaque strings, but the quotes may be included or not depending
+     * on the source: PROPFIND responses or HTTP headers. 
+     * 
+     * @param rawEtag   ETag as received from the server.
+     * @return          ETag without enclosing quotes, or NULL if rawEtag is NULL.
+     */
+    public static String parseEtag(String rawEtag) {
+        if (rawEtag == null) {
+            return null;
+        }
+        String etag = rawEtag.trim();
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+            etag = etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+
     /**
      * Encodes a path according to URI RFC 2396. 
      * 
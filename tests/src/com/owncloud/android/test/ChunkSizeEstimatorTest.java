@@ -0,0 +1,65 @@
+package com.owncloud.android.test;
+
+import com.owncloud.android.network.ChunkSizeEstimator;
+
+import android.test.AndroidTestCase;
+
+public class ChunkSizeEstimatorTest extends AndroidTestCase {
+
+    public void testGrowsOnFastNetworks() {
+        ChunkSizeEstimator estimator = new ChunkSizeEstimator();
+        long previous = estimator.getChunkSize();
+        for (int i = 0; i < 20; i++) {
+            long chunkSize = estimator.getChunkSize();
+            // 5 MB/s, 50 ms waiting for every response
+            estimator.onChunkSent(chunkSize, chunkSize / 5000, 50);
+            assertTrue(estimator.getChunkSize() >= previous);
+            assertTrue(estimator.getChunkSize() <= 2 * previous);
+            previous = estimator.getChunkSize();
+        }
+        assertEquals(ChunkSizeEstimator.MAX_CHUNK_SIZE, estimator.getChunkSize());
+        assertEquals(ChunkSizeEstimator.MAX_CHUNK_SIZE, estimator.getMaxChunkSizeChosen());
+        assertEquals(20, estimator.getChunksSent());
+        assertTrue(Math.abs(estimator.getThroughput() - 5000000) < 50000);
+    }
+
+    public void testShrinksOnSlowNetworks() {
+        ChunkSizeEstimator estimator = new ChunkSizeEstimator();
+        for (int i = 0; i < 20; i++) {
+            long chunkSize = estimator.getChunkSize();
+            // 10 KB/s
+            estimator.onChunkSent(chunkSize, chunkSize / 10, 500);
+        }
+        assertEquals(ChunkSizeEstimator.MIN_CHUNK_SIZE, estimator.getChunkSize());
+        assertEquals(ChunkSizeEstimator.MIN_CHUNK_SIZE, estimator.getMinChunkSizeChosen());
+    }
+
+    public void testLongResponseTimesNeedLargerChunks() {
+        ChunkSizeEstimator fastResponses = new ChunkSizeEstimator();
+        ChunkSizeEstimator slowResponses = new ChunkSizeEstimator();
+        for (int i = 0; i < 20; i++) {
+            // 200 KB/s
+            fastResponses.onChunkSent(fastResponses.getChunkSize(), fastResponses.getChunkSize() / 200, 100);
+            slowResponses.onChunkSent(slowResponses.getChunkSize(), slowResponses.getChunkSize() / 200, 2000);
+        }
+        assertTrue(slowResponses.getChunkSize() > fastResponses.getChunkSize());
+    }
+
+    public void testChunkTooLarge() {
+        ChunkSizeEstimator estimator = new ChunkSizeEstimator();
+        for (int i = 0; i < 20; i++) {
+            estimator.onChunkSent(estimator.getChunkSize(), estimator.getChunkSize() / 5000, 50);
+        }
+        long refused = estimator.getChunkSize();
+        assertTrue(estimator.onChunkTooLarge(refused));
+        assertEquals(refused / 2, estimator.getChunkSize());
+        for (int i = 0; i < 20; i++) {
+            estimator.onChunkSent(estimator.getChunkSize(), estimator.getChunkSize() / 5000, 50);
+        }
+        assertEquals(refused / 2, estimator.getChunkSize());
+
+        while (estimator.onChunkTooLarge(estimator.getChunkSize()));
+        assertEquals(ChunkSizeEstimator.MIN_CHUNK_SIZE, estimator.getChunkSize());
+    }
+
+}
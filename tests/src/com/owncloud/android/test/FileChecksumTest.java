@@ -0,0 +1,39 @@
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+
+import com.owncloud.android.utils.FileChecksum;
+
+import android.test.AndroidTestCase;
+
+public class FileChecksumTest extends AndroidTestCase {
+
+    public void testChecksumOfFile() throws Exception {
+        File file = File.createTempFile("checksum", ".txt", getContext().getCacheDir());
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("The quick brown fox jumps over the lazy dog".getBytes("US-ASCII"));
+            out.close();
+            assertEquals("SHA1:2fd4e1c67a2d28fced849ee1bb76e7391b93eb12", FileChecksum.compute(file));
+
+            // a resumed transfer adds the rest of the contents to the digest of the first bytes
+            MessageDigest digest = FileChecksum.newDigest();
+            FileChecksum.update(digest, file, 10);
+            digest.update("brown fox jumps over the lazy dog".getBytes("US-ASCII"));
+            assertEquals(FileChecksum.compute(file), FileChecksum.toChecksum(digest));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testChecksumFromServer() {
+        assertEquals("SHA1:abcdef0123", FileChecksum.findChecksum("MD5:00aa SHA1:ABCDEF0123 ADLER32:1f"));
+        assertEquals("SHA1:abcdef0123", FileChecksum.findChecksum(" sha1:abcdef0123 "));
+        assertNull(FileChecksum.findChecksum("MD5:00aa"));
+        assertNull(FileChecksum.findChecksum(""));
+        assertNull(FileChecksum.findChecksum(null));
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.owncloud.android.test;
+
+import java.util.Random;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.providers.FileContentProvider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures the cost of the lookups done by FileDataStorageManager during a synchronization
+ * on a files table with 100k entries, before and after creating the indexes of the
+ * FileContentProvider.
+ *
+ * Times are written to the log; the test only fails if the indexes are not used.
+ */
+public class FileContentProviderBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = FileContentProviderBenchmarkTest.class.getSimpleName();
+
+    private static final String ACCOUNT_NAME = "benchmark@owncloud.example.com";
+
+    private static final int NUM_FOLDERS = 1000;
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int NUM_LOOKUPS = 500;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        createTable();
+        fillTable();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testLookupsBeforeAndAfterIndexes() {
+        long pathBefore = timeLookupsByPath();
+        long parentBefore = timeLookupsByParent();
+
+        FileContentProvider.createIndexes(mDb);
+
+        long pathAfter = timeLookupsByPath();
+        long parentAfter = timeLookupsByParent();
+
+        Log.i(TAG, "Lookups by path, " + NUM_LOOKUPS + " queries on " + (NUM_FOLDERS * (FILES_PER_FOLDER + 1)) + " rows: " +
+                pathBefore + " ms without indexes, " + pathAfter + " ms with indexes");
+        Log.i(TAG, "Lookups by parent, " + NUM_LOOKUPS + " queries on " + (NUM_FOLDERS * (FILES_PER_FOLDER + 1)) + " rows: " +
+                parentBefore + " ms without indexes, " + parentAfter + " ms with indexes");
+
+        assertTrue(usesIndex(ProviderTableMeta.FILE_PATH));
+        assertTrue(usesIndex(ProviderTableMeta.FILE_PARENT));
+    }
+
+    private void createTable() {
+        mDb.execSQL("CREATE TABLE " + ProviderTableMeta.DB_NAME + "("
+                + ProviderTableMeta._ID + " INTEGER PRIMARY KEY, "
+                + ProviderTableMeta.FILE_NAME + " TEXT, "
+                + ProviderTableMeta.FILE_PATH + " TEXT, "
+                + ProviderTableMeta.FILE_PARENT + " INTEGER, "
+                + ProviderTableMeta.FILE_CONTENT_TYPE + " TEXT, "
+                + ProviderTableMeta.FILE_CONTENT_LENGTH + " INTEGER, "
+                + ProviderTableMeta.FILE_ACCOUNT_OWNER + " TEXT, "
+                + ProviderTableMeta.FILE_KEEP_IN_SYNC + " INTEGER );"
+                );
+    }
+
+    private void fillTable() {
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO " + ProviderTableMeta.DB_NAME + " ("
+                + ProviderTableMeta._ID + ", "
+                + ProviderTableMeta.FILE_NAME + ", "
+                + ProviderTableMeta.FILE_PATH + ", "
+                + ProviderTableMeta.FILE_PARENT + ", "
+                + ProviderTableMeta.FILE_CONTENT_TYPE + ", "
+                + ProviderTableMeta.FILE_CONTENT_LENGTH + ", "
+                + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", "
+                + ProviderTableMeta.FILE_KEEP_IN_SYNC + ") VALUES (?, ?, ?, ?, ?, ?, ?, 0)");
+        mDb.beginTransaction();
+        try {
+            long id = 1;
+            for (int i = 0; i < NUM_FOLDERS; i++) {
+                long folderId = id++;
+                String folderName = "folder" + i;
+                bindAndInsert(insert, folderId, folderName, "/" + folderName + "/", 0, "DIR");
+                for (int j = 0; j < FILES_PER_FOLDER; j++) {
+                    String fileName = "file" + j + ".jpg";
+                    bindAndInsert(insert, id++, fileName, "/" + folderName + "/" + fileName, folderId, "image/jpeg");
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insert.close();
+        }
+    }
+
+    private void bindAndInsert(SQLiteStatement insert, long id, String name, String path, long parentId, String mimeType) {
+        insert.bindLong(1, id);
+        insert.bindString(2, name);
+        insert.bindString(3, path);
+        insert.bindLong(4, parentId);
+        insert.bindString(5, mimeType);
+        insert.bindLong(6, 1024);
+        insert.bindString(7, ACCOUNT_NAME);
+        insert.executeInsert();
+    }
+
+    private long timeLookupsByPath() {
+        Random random = new Random(0);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            String path = "/folder" + random.nextInt(NUM_FOLDERS) + "/file" + random.nextInt(FILES_PER_FOLDER) + ".jpg";
+            Cursor c = mDb.query(ProviderTableMeta.DB_NAME, null,
+                    ProviderTableMeta.FILE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+                    new String[] { path, ACCOUNT_NAME }, null, null, null);
+            assertTrue(c.moveToFirst());
+            c.close();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private long timeLookupsByParent() {
+        Random random = new Random(0);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            long parentId = 1 + random.nextInt(NUM_FOLDERS) * (FILES_PER_FOLDER + 1);
+            Cursor c = mDb.query(ProviderTableMeta.DB_NAME, null,
+                    ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PARENT + "=?",
+                    new String[] { ACCOUNT_NAME, String.valueOf(parentId) }, null, null, null);
+            assertEquals(FILES_PER_FOLDER, c.getCount());
+            c.close();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private boolean usesIndex(String column) {
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + ProviderTableMeta.DB_NAME +
+                " WHERE " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + column + "=?",
+                new String[] { ACCOUNT_NAME, "1" });
+        boolean index = false;
+        while (c.moveToNext()) {
+            String detail = c.getString(c.getColumnCount() - 1);
+            index |= (detail != null && detail.contains("INDEX"));
+        }
+        c.close();
+        return index;
+    }
+
+}
@@ -1,9 +1,14 @@
 package com.owncloud.android.test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
 import com.owncloud.android.providers.FileContentProvider;
 
 import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.test.ProviderTestCase2;
@@ -13,42 +18,175 @@ import android.util.Log;
 @TargetApi(Build.VERSION_CODES.CUPCAKE)
 public class FileContentProviderTest extends ProviderTestCase2<FileContentProvider> {
 
-	private static final String TAG = FileContentProvider.class.getName();
-	
-	private static MockContentResolver resolve;
-	
-	public FileContentProviderTest(Class<FileContentProvider> providerClass,
-			String providerAuthority) {
-		super(providerClass, providerAuthority);
-		// TODO Auto-generated constructor stub
-	}
-	
-	public FileContentProviderTest() {
-		super(FileContentProvider.class, "com.owncloud.android.providers.FileContentProvider");
-	}
-	
-	@Override
-	public void setUp() {
-		Log.i(TAG, "Entered setup");
-		try {
-			super.setUp();
-			resolve = this.getMockContentResolver();
-		} catch (Exception e) {
-			
-		}
-	}
-	
-	public void testGetTypeFile() {
-		Uri testuri = Uri.parse("content://org.owncloud/file/");
-		assertEquals(ProviderTableMeta.CONTENT_TYPE_ITEM, resolve.getType(testuri));
-
-		testuri = Uri.parse("content://org.owncloud/file/123");
-		assertEquals(ProviderTableMeta.CONTENT_TYPE_ITEM, resolve.getType(testuri));
-	}
-	
-	public void testGetTypeRoot() {
-		Uri testuri = Uri.parse("content://org.owncloud/");
-		assertEquals(ProviderTableMeta.CONTENT_TYPE, resolve.getType(testuri));
-	}
+    private static final String TAG = FileContentProvider.class.getName();
+
+    private static MockContentResolver resolve;
+
+    public FileContentProviderTest(Class<FileContentProvider> providerClass,
+            String providerAuthority) {
+        super(providerClass, providerAuthority);
+        // TODO Auto-generated constructor stub
+    }
+
+    public FileContentProviderTest() {
+        super(FileContentProvider.class, "com.owncloud.android.providers.FileContentProvider");
+    }
+
+    @Override
+    public void setUp() {
+        Log.i(TAG, "Entered setup");
+        try {
+            super.setUp();
+            resolve = this.getMockContentResolver();
+        } catch (Exception e) {
+
+        }
+    }
+
+    public void testGetTypeFile() {
+        Uri testuri = Uri.parse("content://org.owncloud/file/");
+        assertEquals(ProviderTableMeta.CONTENT_TYPE_ITEM, resolve.getType(testuri));
+
+        testuri = Uri.parse("content://org.owncloud/file/123");
+        assertEquals(ProviderTableMeta.CONTENT_TYPE_ITEM, resolve.getType(testuri));
+    }
+
+    public void testGetTypeRoot() {
+        Uri testuri = Uri.parse("content://org.owncloud/");
+        assertEquals(ProviderTableMeta.CONTENT_TYPE, resolve.getType(testuri));
+    }
+
+    public void testQueryMimeTypePrefix() {
+        long dir = insertFile("/dir/", 0, "DIR", 0, 0, null, null);
+        insertFile("/dir/a.png", dir, "image/png", 1, 0, null, null);
+        insertFile("/dir/b.jpg", dir, "image/jpeg", 1, 0, null, null);
+        insertFile("/dir/c.txt", dir, "text/plain", 1, 0, null, null);
+        insertFile("/dir/d", dir, "imagex/other", 1, 0, null, null);
+        insertFile("/dir/e", dir, "image", 1, 0, null, null);
+        insertFile("/dir/f.bmp", dir, "application/octet-stream", 1, 0, null, null);
+        insertFile("/dir/g.gif", dir, null, 1, 0, null, null);
+
+        Uri uri = dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_MIMETYPE_PREFIX, "image/").build();
+        assertEquals(list("/dir/a.png", "/dir/b.jpg"), queryPaths(uri));
+
+        uri = dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_MIMETYPE_PREFIX, "image/")
+                .appendQueryParameter(ProviderTableMeta.QUERY_INCLUDE_UNKNOWN_MIMETYPE, "1").build();
+        assertEquals(list("/dir/a.png", "/dir/b.jpg", "/dir/f.bmp", "/dir/g.gif"), queryPaths(uri));
+    }
+
+    public void testQueryKeepInSync() {
+        long dir = insertFile("/dir/", 0, "DIR", 0, 0, null, null);
+        insertFile("/dir/a", dir, "text/plain", 1, 0, 1, null);
+        insertFile("/dir/b", dir, "text/plain", 1, 0, 0, null);
+        insertFile("/dir/c", dir, "text/plain", 1, 0, null, null);
+
+        Uri uri = dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_KEEP_IN_SYNC, "1").build();
+        assertEquals(list("/dir/a"), queryPaths(uri));
+
+        uri = dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_KEEP_IN_SYNC, "0").build();
+        assertEquals(list("/dir/b", "/dir/c"), queryPaths(uri));
+    }
+
+    public void testQueryDownloaded() {
+        long dir = insertFile("/dir/", 0, "DIR", 0, 0, null, null);
+        insertFile("/dir/a", dir, "text/plain", 1, 0, null, "/sdcard/owncloud/a");
+        insertFile("/dir/b", dir, "text/plain", 1, 0, null, null);
+
+        Uri uri = dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_DOWNLOADED, "1").build();
+        assertEquals(list("/dir/a"), queryPaths(uri));
+
+        uri = dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_DOWNLOADED, "0").build();
+        assertEquals(list("/dir/b"), queryPaths(uri));
+    }
+
+    public void testQuerySort() {
+        long dir = insertFile("/dir/", 0, "DIR", 0, 0, null, null);
+        insertFile("/dir/B", dir, "text/plain", 30, 100, null, null);
+        insertFile("/dir/a", dir, "text/plain", 10, 300, null, null);
+        insertFile("/dir/c", dir, "text/plain", 20, 200, null, null);
+        insertFile("/dir/z/", dir, "DIR", 5, 50, null, null);
+
+        assertEquals(list("/dir/z/", "/dir/a", "/dir/B", "/dir/c"), 
+                queryPaths(sortUri(dir, ProviderTableMeta.SORT_BY_NAME, false)));
+        assertEquals(list("/dir/z/", "/dir/c", "/dir/B", "/dir/a"), 
+                queryPaths(sortUri(dir, ProviderTableMeta.SORT_BY_NAME, true)));
+        assertEquals(list("/dir/z/", "/dir/a", "/dir/c", "/dir/B"), 
+                queryPaths(sortUri(dir, ProviderTableMeta.SORT_BY_SIZE, false)));
+        assertEquals(list("/dir/z/", "/dir/B", "/dir/c", "/dir/a"), 
+                queryPaths(sortUri(dir, ProviderTableMeta.SORT_BY_SIZE, true)));
+        assertEquals(list("/dir/z/", "/dir/B", "/dir/c", "/dir/a"), 
+                queryPaths(sortUri(dir, ProviderTableMeta.SORT_BY_MODIFIED, false)));
+        assertEquals(list("/dir/z/", "/dir/a", "/dir/c", "/dir/B"), 
+                queryPaths(sortUri(dir, ProviderTableMeta.SORT_BY_MODIFIED, true)));
+    }
+
+    public void testQueryUnknownSort() {
+        long dir = insertFile("/dir/", 0, "DIR", 0, 0, null, null);
+        try {
+            queryPaths(dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_SORT, "owner").build());
+            fail("Unknown sort order accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private String owner() {
+        return "test_" + getName();        // every test sees only its own files
+    }
+
+    private long insertFile(String path, long parent, String mimeType, long length, long modified, 
+            Integer keepInSync, String storagePath) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_PATH, path);
+        String name = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        cv.put(ProviderTableMeta.FILE_NAME, name.substring(name.lastIndexOf('/') + 1));
+        cv.put(ProviderTableMeta.FILE_PARENT, parent);
+        cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, mimeType);
+        cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, length);
+        cv.put(ProviderTableMeta.FILE_MODIFIED, modified);
+        cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, owner());
+        if (keepInSync != null) {
+            cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, keepInSync);
+        }
+        if (storagePath != null) {
+            cv.put(ProviderTableMeta.FILE_STORAGE_PATH, storagePath);
+        }
+        Uri inserted = getProvider().insert(ProviderTableMeta.CONTENT_URI_FILE, cv);
+        return Long.parseLong(inserted.getLastPathSegment());
+    }
+
+    private Uri.Builder dirUri(long dir) {
+        return ProviderTableMeta.CONTENT_URI_DIR.buildUpon().appendPath(String.valueOf(dir));
+    }
+
+    private Uri sortUri(long dir, String sort, boolean descending) {
+        return dirUri(dir).appendQueryParameter(ProviderTableMeta.QUERY_SORT, sort)
+                .appendQueryParameter(ProviderTableMeta.QUERY_SORT_DESCENDING, descending ? "1" : "0").build();
+    }
+
+    /**
+     * @return    Remote paths of the files selected by 'uri', in the order returned; by name if the uri sets no order.
+     */
+    private List<String> queryPaths(Uri uri) {
+        Cursor c = getProvider().query(uri, new String[] { ProviderTableMeta.FILE_PATH }, 
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", new String[] { owner() }, null);
+        List<String> paths = new ArrayList<String>();
+        try {
+            while (c.moveToNext()) {
+                paths.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return paths;
+    }
+
+    private List<String> list(String... paths) {
+        List<String> list = new ArrayList<String>();
+        for (String path : paths) {
+            list.add(path);
+        }
+        return list;
+    }
 
 }
@@ -0,0 +1,206 @@
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.owncloud.android.network.ProgressiveDataTransferer;
+
+import eu.alefzero.webdav.FileRegionRequestEntity;
+import eu.alefzero.webdav.OnDatatransferProgressListener;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures the request entity for regions of files, writing a 16 MB file, whole and in chunks, to a stream
+ * that discards the data.
+ *
+ * Throughput and CPU time per GB are written to the log; the test only fails if the entities
+ * don't write the expected bytes.
+ */
+public class FileRegionRequestEntityBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = FileRegionRequestEntityBenchmarkTest.class.getSimpleName();
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 1024000;
+    private static final int ROUNDS = 3;
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), TAG + ".bin");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(data);
+        FileOutputStream fos = new FileOutputStream(mFile);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        mRaf = new RandomAccessFile(mFile, "r");
+        mChannel = mRaf.getChannel();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mRaf.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testSameBytes() throws Exception {
+        long expected = crc(mFile);
+        assertEquals(expected, crc(new FileRegionRequestEntity(mFile, "application/octet-stream")));
+
+        CRC32 chunks = new CRC32();
+        for (long offset = 0; offset < FILE_SIZE; offset += CHUNK_SIZE) {
+            FileRegionRequestEntity entity = new FileRegionRequestEntity(mChannel, mFile, "application/octet-stream", offset, CHUNK_SIZE);
+            assertEquals(Math.min(CHUNK_SIZE, FILE_SIZE - offset), entity.getContentLength());
+            CrcOutputStream out = new CrcOutputStream(chunks);
+            entity.writeRequest(out);
+            assertEquals(entity.getContentLength(), out.mCount);
+        }
+        assertEquals(expected, chunks.getValue());
+    }
+
+    public void testThrottledProgress() throws Exception {
+        FileRegionRequestEntity entity = new FileRegionRequestEntity(mFile, "application/octet-stream");
+        CountingListener listener = new CountingListener();
+        entity.addDatatransferProgressListener(listener);
+        entity.writeRequest(new CrcOutputStream(new CRC32()));
+
+        assertEquals(FILE_SIZE, listener.mTotal);
+        assertEquals(FILE_SIZE, listener.mLastTransferred);
+        assertTrue(listener.mNotifications <= FILE_SIZE / FileRegionRequestEntity.NOTIFICATION_BYTES + 2);
+        Log.i(TAG, "Progress notifications for " + FILE_SIZE + " bytes: " + listener.mNotifications);
+    }
+
+    public void testWriteCost() throws Exception {
+        // warm up the file cache and the code
+        write(new FileRegionRequestEntity(mFile, "application/octet-stream"));
+
+        long[] region = new long[2];
+        long[] regionChunks = new long[2];
+        for (int i = 0; i < ROUNDS; i++) {
+            add(region, write(new FileRegionRequestEntity(mFile, "application/octet-stream")));
+            for (long offset = 0; offset < FILE_SIZE; offset += CHUNK_SIZE) {
+                add(regionChunks, write(new FileRegionRequestEntity(mChannel, mFile, "application/octet-stream", offset, CHUNK_SIZE)));
+            }
+        }
+
+        report("FileRegionRequestEntity, full file", region);
+        report("FileRegionRequestEntity, chunks", regionChunks);
+    }
+
+    /**
+     * @return  Wall time and CPU time of the thread spent writing the entity, in nanoseconds.
+     */
+    private long[] write(RequestEntity entity) throws IOException {
+        // uploads are always followed by a listener
+        ((ProgressiveDataTransferer) entity).addDatatransferProgressListener(new CountingListener());
+        long start = System.nanoTime();
+        long cpuStart = Debug.threadCpuTimeNanos();
+        entity.writeRequest(new NullOutputStream());
+        return new long[] { System.nanoTime() - start, Debug.threadCpuTimeNanos() - cpuStart };
+    }
+
+    private void add(long[] total, long[] measure) {
+        total[0] += measure[0];
+        total[1] += measure[1];
+    }
+
+    private void report(String name, long[] times) {
+        long bytes = (long) FILE_SIZE * ROUNDS;
+        long bytesPerSecond = (times[0] > 0) ? (long) (bytes * 1e9 / times[0]) : -1;
+        long cpuMsPerGb = (long) ((double) times[1] / 1e6 * GB / bytes);
+        Log.i(TAG, name + ": " + bytesPerSecond + " bytes/s, " + cpuMsPerGb + " ms of CPU per GB");
+    }
+
+    private long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private long crc(RequestEntity entity) throws IOException {
+        CRC32 crc = new CRC32();
+        CrcOutputStream out = new CrcOutputStream(crc);
+        entity.writeRequest(out);
+        assertEquals(FILE_SIZE, out.mCount);
+        return crc.getValue();
+    }
+
+    private static class CrcOutputStream extends OutputStream {
+        private CRC32 mCrc;
+        private long mCount = 0;
+
+        public CrcOutputStream(CRC32 crc) {
+            mCrc = crc;
+        }
+
+        @Override
+        public void write(int b) {
+            mCrc.update(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCrc.update(b, off, len);
+            mCount += len;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static class CountingListener implements OnDatatransferProgressListener {
+        private int mNotifications = 0;
+        private long mTotal = 0;
+        private long mLastTransferred = 0;
+
+        @Override
+        public void onTransferProgress(long progressRate) {
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            mNotifications++;
+            mTotal += progressRate;
+            mLastTransferred = totalTransferredSoFar;
+        }
+    }
+
+}
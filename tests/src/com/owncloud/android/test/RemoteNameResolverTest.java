@@ -0,0 +1,116 @@
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.owncloud.android.operations.RemoteNameResolver;
+
+import eu.alefzero.webdav.WebdavClient;
+
+import android.test.AndroidTestCase;
+
+public class RemoteNameResolverTest extends AndroidTestCase {
+
+    /**
+     * Resolver on a fake server, counting the requests done.
+     */
+    private static class FakeServerResolver extends RemoteNameResolver {
+        final Set<String> mServerPaths = new HashSet<String>();
+        int mListings = 0;
+        int mProbes = 0;
+
+        @Override
+        protected Set<String> readFolderNames(WebdavClient client, String folderPath) throws IOException {
+            mListings++;
+            Set<String> names = new HashSet<String>();
+            for (String path : mServerPaths) {
+                if (path.startsWith(folderPath) && path.indexOf('/', folderPath.length()) < 0) {
+                    names.add(path.substring(folderPath.length()));
+                }
+            }
+            return names;
+        }
+
+        @Override
+        protected boolean exists(WebdavClient client, String remotePath) throws IOException {
+            mProbes++;
+            return mServerPaths.contains(remotePath);
+        }
+    }
+
+    public void testBatchReadsFolderOnce() throws IOException {
+        FakeServerResolver resolver = new FakeServerResolver();
+        resolver.mServerPaths.add("/Photos/IMG_0001.jpg");
+        Object batch = new Object();
+
+        assertEquals("/Photos/IMG_0001 (2).jpg", resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0001.jpg", batch));
+        assertEquals("/Photos/IMG_0002.jpg", resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0002.jpg", batch));
+        assertEquals(1, resolver.mListings);
+        assertEquals(0, resolver.mProbes);
+    }
+
+    public void testReservedNamesAreNotRepeated() throws IOException {
+        FakeServerResolver resolver = new FakeServerResolver();
+        Object batch = new Object();
+
+        String first = resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0001.jpg", batch);
+        String second = resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0001.jpg", null);
+        String third = resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0001.jpg", new Object());
+        assertEquals("/Photos/IMG_0001.jpg", first);
+        assertEquals("/Photos/IMG_0001 (2).jpg", second);
+        assertEquals("/Photos/IMG_0001 (3).jpg", third);
+
+        // a failed upload frees its name
+        resolver.release(second, false);
+        assertEquals("/Photos/IMG_0001 (2).jpg", resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0001.jpg", batch));
+
+        // a created file keeps it taken for the batch, without reading the folder again
+        resolver.release(first, true);
+        assertEquals("/Photos/IMG_0001 (4).jpg", resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0001.jpg", batch));
+        assertEquals(2, resolver.mListings);
+    }
+
+    public void testListingIsNotReusedAfterTheBatch() throws IOException {
+        FakeServerResolver resolver = new FakeServerResolver();
+        Object batch = new Object();
+        resolver.release(resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0001.jpg", batch), true);
+        resolver.mServerPaths.add("/Photos/IMG_0001.jpg");
+        resolver.finishBatch(batch);
+
+        // created by other client after the batch
+        resolver.mServerPaths.add("/Photos/IMG_0002.jpg");
+
+        assertEquals("/Photos/IMG_0002 (2).jpg", resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0002.jpg", null));
+        assertEquals("/Photos/IMG_0002 (3).jpg", resolver.reserveAvailableRemotePath(null, "/Photos/IMG_0002.jpg", new Object()));
+        assertEquals(2, resolver.mListings);
+    }
+
+    public void testFreeNameIsKept() {
+        Set<String> taken = new HashSet<String>();
+        taken.add("IMG_0002.jpg");
+        assertEquals("IMG_0001.jpg", RemoteNameResolver.getAvailableName("IMG_0001.jpg", taken));
+    }
+
+    public void testFirstFreeSuffix() {
+        Set<String> taken = new HashSet<String>();
+        taken.add("IMG_0001.jpg");
+        for (int i = 2; i <= 50; i++) {
+            taken.add("IMG_0001 (" + i + ").jpg");
+        }
+        assertEquals("IMG_0001 (51).jpg", RemoteNameResolver.getAvailableName("IMG_0001.jpg", taken));
+
+        taken.remove("IMG_0001 (7).jpg");
+        assertEquals("IMG_0001 (7).jpg", RemoteNameResolver.getAvailableName("IMG_0001.jpg", taken));
+    }
+
+    public void testNamesWithoutExtension() {
+        Set<String> taken = new HashSet<String>();
+        taken.add("README");
+        assertEquals("README (2)", RemoteNameResolver.getAvailableName("README", taken));
+
+        taken.add("archive.tar.gz");
+        assertEquals("archive.tar (2).gz", RemoteNameResolver.getAvailableName("archive.tar.gz", taken));
+    }
+
+}
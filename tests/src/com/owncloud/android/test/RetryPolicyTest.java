@@ -0,0 +1,78 @@
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import com.owncloud.android.operations.RemoteOperationResult;
+import com.owncloud.android.operations.RetryPolicy;
+import com.owncloud.android.operations.RemoteOperationResult.ResultCode;
+
+import android.test.AndroidTestCase;
+
+public class RetryPolicyTest extends AndroidTestCase {
+
+    public void testTransientFailuresAreRetried() {
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(new SocketTimeoutException())));
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(new UnknownHostException())));
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(new IOException())));
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(ResultCode.NO_NETWORK_CONNECTION)));
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(false, 500)));
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(false, 503)));
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(false, 408)));
+        assertTrue(RetryPolicy.isRetryable(new RemoteOperationResult(false, 429)));
+    }
+
+    public void testPermanentFailuresAreNotRetried() {
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(true, 201)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(false, 401)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(false, 403)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(false, 404)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(false, 409)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(false, 507)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(ResultCode.INVALID_OVERWRITE)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL)));
+        assertFalse(RetryPolicy.isRetryable(new RemoteOperationResult(ResultCode.CANCELLED)));
+        assertFalse(RetryPolicy.isRetryable(null));
+    }
+
+    public void testDelayGrowsUpToTheMaximum() {
+        Random random = new Random(1);
+        long previousMax = 0;
+        for (int attempts = 1; attempts <= 20; attempts++) {
+            long max = Math.min(RetryPolicy.MAX_DELAY, RetryPolicy.INITIAL_DELAY << Math.min(attempts - 1, 30));
+            assertTrue(max >= previousMax);
+            for (int i = 0; i < 100; i++) {
+                long delay = RetryPolicy.getRetryDelay(attempts, random);
+                assertTrue(delay >= max / 2);
+                assertTrue(delay <= max);
+            }
+            previousMax = max;
+        }
+        assertEquals(RetryPolicy.MAX_DELAY, previousMax);
+    }
+
+    public void testDelaysAreSpread() {
+        Random random = new Random(2);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = RetryPolicy.getRetryDelay(3, random);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        // jitter must cover most of the range, so that clients failing together don't retry together
+        assertTrue(max - min > RetryPolicy.INITIAL_DELAY * 4 / 2 * 9 / 10);
+    }
+
+    public void testAttemptsAreLimited() {
+        Random random = new Random(3);
+        RemoteOperationResult timeout = new RemoteOperationResult(new SocketTimeoutException());
+        assertTrue(RetryPolicy.getRetryDelay(timeout, 1, random) > 0);
+        assertTrue(RetryPolicy.getRetryDelay(timeout, RetryPolicy.MAX_ATTEMPTS - 1, random) > 0);
+        assertEquals(-1, RetryPolicy.getRetryDelay(timeout, RetryPolicy.MAX_ATTEMPTS, random));
+        assertEquals(-1, RetryPolicy.getRetryDelay(new RemoteOperationResult(false, 401), 1, random));
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.owncloud.android.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jackrabbit.webdav.MultiStatus;
+import org.apache.jackrabbit.webdav.MultiStatusResponse;
+import org.apache.jackrabbit.webdav.xml.DomUtil;
+import org.w3c.dom.Document;
+
+import eu.alefzero.webdav.WebdavEntry;
+import eu.alefzero.webdav.WebdavMultiStatusParser;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the streaming parser of PROPFIND responses with the DOM based parsing of jackrabbit
+ * on a multistatus response for a folder with 20k entries.
+ *
+ * Times and allocated bytes are written to the log; the test only fails if both parsers
+ * don't read the same entries.
+ */
+public class WebdavMultiStatusParserBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = WebdavMultiStatusParserBenchmarkTest.class.getSimpleName();
+
+    private static final String BASE_PATH = "/owncloud/remote.php/webdav";
+    private static final String FOLDER_PATH = "/Photos/";
+
+    private static final int NUM_ENTRIES = 20000;
+
+    private byte[] mResponse;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mResponse = buildResponse();
+    }
+
+    public void testSameEntries() throws Exception {
+        List<WebdavEntry> domEntries = parseWithDom();
+        List<WebdavEntry> streamEntries = new ArrayList<WebdavEntry>();
+        WebdavMultiStatusParser parser = new WebdavMultiStatusParser(new ByteArrayInputStream(mResponse), BASE_PATH);
+        for (WebdavEntry we = parser.nextEntry(); we != null; we = parser.nextEntry()) {
+            streamEntries.add(we);
+        }
+
+        assertEquals(NUM_ENTRIES + 1, streamEntries.size());
+        assertEquals(domEntries.size(), streamEntries.size());
+        for (int i = 0; i < domEntries.size(); i++) {
+            WebdavEntry expected = domEntries.get(i);
+            WebdavEntry actual = streamEntries.get(i);
+            assertEquals(expected.path(), actual.path());
+            assertEquals(expected.contentType(), actual.contentType());
+            assertEquals(expected.contentLength(), actual.contentLength());
+            assertEquals(expected.modifiedTimestamp(), actual.modifiedTimestamp());
+            assertEquals(expected.createTimestamp(), actual.createTimestamp());
+            assertEquals(expected.etag(), actual.etag());
+        }
+        assertTrue(streamEntries.get(0).isDirectory());
+        assertFalse(streamEntries.get(1).isDirectory());
+    }
+
+    public void testParsingCost() throws Exception {
+        Debug.startAllocCounting();
+        try {
+            System.gc();
+            Debug.resetThreadAllocSize();
+            long start = System.currentTimeMillis();
+            int domCount = parseWithDom().size();
+            long domTime = System.currentTimeMillis() - start;
+            long domAlloc = Debug.getThreadAllocSize();
+
+            System.gc();
+            Debug.resetThreadAllocSize();
+            start = System.currentTimeMillis();
+            int streamCount = 0;
+            WebdavMultiStatusParser parser = new WebdavMultiStatusParser(new ByteArrayInputStream(mResponse), BASE_PATH);
+            while (parser.nextEntry() != null) {
+                streamCount++;
+            }
+            long streamTime = System.currentTimeMillis() - start;
+            long streamAlloc = Debug.getThreadAllocSize();
+
+            Log.i(TAG, "Multistatus response with " + domCount + " entries, " + mResponse.length + " bytes");
+            Log.i(TAG, "DOM parsing: " + domTime + " ms, " + domAlloc + " bytes allocated");
+            Log.i(TAG, "Streaming parsing: " + streamTime + " ms, " + streamAlloc + " bytes allocated");
+
+            assertEquals(domCount, streamCount);
+
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private List<WebdavEntry> parseWithDom() throws Exception {
+        Document doc = DomUtil.parseDocument(new ByteArrayInputStream(mResponse));
+        MultiStatus resp = MultiStatus.createFromXml(doc.getDocumentElement());
+        MultiStatusResponse[] responses = resp.getResponses();
+        List<WebdavEntry> entries = new ArrayList<WebdavEntry>(responses.length);
+        for (int i = 0; i < responses.length; i++) {
+            entries.add(new WebdavEntry(responses[i], BASE_PATH));
+        }
+        return entries;
+    }
+
+    private byte[] buildResponse() throws Exception {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        xml.append("<d:multistatus xmlns:d=\"DAV:\" xmlns:s=\"http://sabredav.org/ns\">");
+        appendResponse(xml, FOLDER_PATH, true, 0, 0);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            appendResponse(xml, FOLDER_PATH + "IMG_" + i + ".jpg", false, 1024L * i, i);
+        }
+        xml.append("</d:multistatus>");
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    private void appendResponse(StringBuilder xml, String path, boolean folder, long length, int index) {
+        xml.append("<d:response>");
+        xml.append("<d:href>").append(BASE_PATH).append(path).append("</d:href>");
+        xml.append("<d:propstat><d:prop>");
+        xml.append("<d:getlastmodified>Tue, 12 Mar 2013 10:").append(index % 60 < 10 ? "0" : "").append(index % 60)
+                .append(":00 GMT</d:getlastmodified>");
+        xml.append("<d:getetag>\"5140a0c0").append(Integer.toHexString(index)).append("\"</d:getetag>");
+        if (folder) {
+            xml.append("<d:resourcetype><d:collection/></d:resourcetype>");
+        } else {
+            xml.append("<d:resourcetype/>");
+            xml.append("<d:getcontentlength>").append(length).append("</d:getcontentlength>");
+            xml.append("<d:getcontenttype>image/jpeg</d:getcontenttype>");
+        }
+        xml.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>");
+        xml.append("<d:propstat><d:prop><s:quota-used-bytes/></d:prop>");
+        xml.append("<d:status>HTTP/1.1 404 Not Found</d:status></d:propstat>");
+        xml.append("</d:response>");
+    }
+
+}